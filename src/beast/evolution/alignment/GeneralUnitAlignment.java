@@ -1,11 +1,27 @@
 package beast.evolution.alignment;
 
 import beast.core.Input;
+import beast.core.Plugin;
 import beast.evolution.alignment.Alignment;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * @author Chieh-Hsi Wu
@@ -19,8 +35,14 @@ public class GeneralUnitAlignment extends Alignment {
     public Input<String> siteToUnitMapInput = new Input<String>(
             "siteToUnitMap",
             "A string integers that maps from the site to unit.",
-            Input.Validate.XOR,
-            unitDefinitionInput
+            Input.Validate.OPTIONAL
+    );
+
+    public Input<String> siteToUnitMapFileInput = new Input<String>(
+            "siteToUnitMapFile",
+            "The name of a file containing white space separated integers that map from the site to unit. " +
+                    "Useful when the alignment is too long for the map to be given by siteToUnitMap.",
+            Input.Validate.OPTIONAL
     );
 
     public Input<String> geneEndingSitePosInput = new Input<String>(
@@ -29,70 +51,114 @@ public class GeneralUnitAlignment extends Alignment {
             Input.Validate.OPTIONAL
     );
 
+    public Input<Integer> blockLengthInput = new Input<Integer>(
+            "blockLength",
+            "The number of consecutive sites in each unit if the unit definition is block. " +
+                    "If the gene ending positions are given, then the last block of each gene may be shorter.",
+            Input.Validate.OPTIONAL
+    );
+
     public Input<Boolean> reorderInput = new Input<Boolean>(
             "reorder",
             "Whether order not to reorder the map",
             true
     );
 
+    public Input<String> unitCacheFileInput = new Input<String>(
+            "unitCacheFile",
+            "The name of a file in which the unit maps and the pattern weights of the units are cached between runs. " +
+                    "The file is read if it was created from the same sequences and unit definition, otherwise it is (re)written. " +
+                    "The site patterns are built by the alignment as usual.",
+            Input.Validate.OPTIONAL
+    );
 
+    private static final int UNIT_CACHE_MAGIC = 0x47554143;
+    private static final int UNIT_CACHE_VERSION = 5;
 
-    private int[] sitesToUnitsMap;
-    private int[][] unitsToSitesMap;
 
 
-    public void initAndValidate() throws Exception{
-        super.initAndValidate();
+    //The unit of each site, which is kept for every unit definition so that the unit of a site is a single lookup.
+    private int[] sitesToUnitsMap;
 
-        sitesToUnitsMap = new int[getSiteCount()];
-        String unitDefinition = unitDefinitionInput.get();
+    /*
+     * Flattened (compressed sparse row) layout of the units to sites map.
+     * The sites of unit i are unitSites[unitSiteOffsets[i]],..., unitSites[unitSiteOffsets[i + 1] - 1].
+     */
+    private int[] unitSiteOffsets;
+    private int[] unitSites;
+
+    /*
+     * When the units are single sites, (codon positions within) contiguous genes or blocks within genes,
+     * the sites of a unit are an arithmetic sequence, so only the first site and the stride of each unit
+     * are stored instead of unitSites.
+     * The ith site of unit u is unitSiteStarts[u] + i*unitSiteStrides[u].
+     */
+    private int[] unitSiteStarts;
+    private int[] unitSiteStrides;
+
+    /*
+     * Compressed pattern weights of each unit, stored in the same layout as the sites.
+     * Unit i has the unique patterns unitPatterns[unitPatternOffsets[i]],..., unitPatterns[unitPatternOffsets[i + 1] - 1],
+     * and unitPatternWeights holds the number of sites in unit i with each of those patterns.
+     */
+    private int[] unitPatternOffsets;
+    private int[] unitPatterns;
+    private int[] unitPatternWeights;
+
+    /*
+     * Units with identical pattern weight vectors have identical likelihoods under any site model,
+     * so they are grouped into equivalence classes. unitClasses[i] is the class of unit i.
+     */
+    private int[] unitClasses;
+    private int unitClassCount;
+
+    //Whether the unit structures were read from the unit cache file.
+    private boolean unitsReadFromCache;
 
-        if(siteToUnitMapInput.get() != null){
-            String[] mapStr = siteToUnitMapInput.get().trim().split("\\s+");
-            HashMap<Integer,Integer> unitCounts = new HashMap<Integer, Integer>();
-            ArrayList<Integer>[] arrayLists = (ArrayList<Integer>[])new ArrayList[getSiteCount()];
 
-            int unit;
-            int listCount = 0;
-            for(int i = 0; i < mapStr.length; i++){
-                unit = Integer.parseInt(mapStr[i]);
+    public void initAndValidate() throws Exception{
+        String unitDefinition = unitDefinitionInput.get();
 
+        int mapInputCount = (siteToUnitMapInput.get() == null ? 0 : 1) +
+                (siteToUnitMapFileInput.get() == null ? 0 : 1) +
+                (unitDefinition == null ? 0 : 1);
+        if(mapInputCount != 1){
+            throw new RuntimeException("Exactly one of unitDefinition, siteToUnitMap and siteToUnitMapFile needs to be specified.");
+        }
 
-                if(!unitCounts.containsKey(unit)){
-                    if(reorderInput.get()){
-                        unitCounts.put(unit,listCount);
-                    }else{
-                        unitCounts.put(unit,unit);
-                    }
+        super.initAndValidate();
 
-                    System.err.println("Label "+unit+" is mapped to unit " +unitCounts.get(unit));
-                    listCount++;
-                }
-                sitesToUnitsMap[i] = unitCounts.get(unit);
-                if(arrayLists[unitCounts.get(unit)] == null)
-                    arrayLists[unitCounts.get(unit)] = new ArrayList<Integer>();
+        //The cache holds the unit structures only, which are built on the site patterns of the alignment.
+        unitsReadFromCache = false;
+        byte[] unitCacheDigest = null;
+        if(unitCacheFileInput.get() != null){
+            unitCacheDigest = getUnitCacheDigest();
+            if(readUnitCache(new File(unitCacheFileInput.get()), unitCacheDigest)){
+                System.err.println("Units are read from "+unitCacheFileInput.get()+".");
+                unitsReadFromCache = true;
+                return;
+            }
+        }
 
-                arrayLists[unitCounts.get(unit)].add(i);
+        if(siteToUnitMapInput.get() != null){
 
+            sitesToUnitsMap = new int[getSiteCount()];
+            initiateSiteToUnitMap(new StringReader(siteToUnitMapInput.get()));
 
-            }
+        }else if(siteToUnitMapFileInput.get() != null){
 
-            unitsToSitesMap = new int[listCount][];
-            for(int i = 0; i < unitsToSitesMap.length; i++){
-                unitsToSitesMap[i] = new int[arrayLists[i].size()];
-                for(int j = 0; j < unitsToSitesMap[i].length;j++){
-                    unitsToSitesMap[i][j] = arrayLists[i].get(j);
-                }
+            sitesToUnitsMap = new int[getSiteCount()];
+            Reader reader = new FileReader(siteToUnitMapFileInput.get());
+            try{
+                initiateSiteToUnitMap(reader);
+            }finally{
+                reader.close();
             }
 
         }else if(unitDefinition.equals("site")){
 
-
-            sitesToUnitsMap = new int[getSiteCount()];
-            unitsToSitesMap = new int[getSiteCount()][1];
-            for(int i = 0; i < sitesToUnitsMap.length;i++){
-                sitesToUnitsMap[i] = unitsToSitesMap[i][0] = i;
-            }
+            //Each site is a block of length one, so the units are stored as site ranges rather than one array per site.
+            initiateBlockUnits(new int[]{getSiteCount()}, 1);
 
         }else if(unitDefinition.equals("codon")){
 
@@ -105,78 +171,567 @@ public class GeneralUnitAlignment extends Alignment {
                 throw new RuntimeException("If the unit is by gene/contigs, " +
                         "then the starting site positions of each gene/contigs.");
 
-            String[] geneEndingSitePosStr = geneEndingSitePosInput.get().trim().split("\\s+");
-            int[] geneEndingSitePos = new int[geneEndingSitePosStr.length];
+            int[] geneEndingSitePos = parseGeneEndingSitePositions();
+
+            if(geneEndingSitePos[geneEndingSitePos.length -1 ] != getSiteCount()){
+                throw new RuntimeException("The last contig ending is not the end of the alignment.");
+            }
+
 
-            geneEndingSitePos[0] = Integer.parseInt(geneEndingSitePosStr[0]);
-            for(int i = 1; i < geneEndingSitePos.length; i++){
-                geneEndingSitePos[i] = Integer.parseInt(geneEndingSitePosStr[i]);
-                if(geneEndingSitePos[i - 1] > geneEndingSitePos[i])
-                    throw new RuntimeException("The ending positions need to be increasing order.");
+            initiateGeneUnits(geneEndingSitePos, 1);
 
 
+        }else if(unitDefinition.equals("codonByGene")){
+
+
+            System.err.println("Assuming all genes start from the same codon position");
+
+            if(geneEndingSitePosInput.get() == null)
+                throw new RuntimeException("If the unit is by gene/contigs, " +
+                        "then the starting site positions of each gene/contigs.");
+
+
+            int[] geneEndingSitePos = parseGeneEndingSitePositions();
+
+            initiateCodonByGene(geneEndingSitePos);
+
+
+
+        }else if(unitDefinition.equals("block")){
+
+            if(blockLengthInput.get() == null || blockLengthInput.get() < 1)
+                throw new RuntimeException("If the unit is by block, then a positive block length is required.");
+
+            //Blocks do not cross gene boundaries if the genes are specified.
+            int[] geneEndingSitePos = new int[]{getSiteCount()};
+            if(geneEndingSitePosInput.get() != null){
+                geneEndingSitePos = parseGeneEndingSitePositions();
+                if(geneEndingSitePos[geneEndingSitePos.length -1 ] != getSiteCount()){
+                    throw new RuntimeException("The last contig ending is not the end of the alignment.");
+                }
             }
 
-            if(geneEndingSitePos[geneEndingSitePos.length -1 ] != getSiteCount()){
-                throw new RuntimeException("The last contig ending is not the end of the alignment.");
+            initiateBlockUnits(geneEndingSitePos, blockLengthInput.get());
+
+        }else{
+            throw new RuntimeException("Please specify whether the assignment unit is site, genes, codon, codonByGene, block." +
+                    "If it is none of the option above then please provide mapping of sites to units which should be a string of integers.");
+
+        }
+
+        setupUnitPatternIndex();
+        setupUnitClassIndex();
+
+        if(unitCacheDigest != null){
+            writeUnitCache(new File(unitCacheFileInput.get()), unitCacheDigest);
+        }
+
+    }
+
+    /*
+     * Reads the site to unit map as a stream of integer labels, one per site,
+     * and builds the flattened units to sites map directly from primitive arrays.
+     * If reorder is true, the labels are mapped to units in the order they first appear,
+     * otherwise the labels themselves are the unit indices and need to be 0, 1,..., (unit count - 1).
+     */
+    private void initiateSiteToUnitMap(Reader reader) throws IOException{
+        int siteCount = getSiteCount();
+        int[] labels = sitesToUnitsMap;
+        int labelCount = 0;
+
+        char[] buffer = new char[8192];
+        int charCount;
+        boolean inLabel = false;
+        boolean negative = false;
+        long label = 0;
+        while((charCount = reader.read(buffer)) != -1){
+            for(int i = 0; i < charCount; i++){
+                char c = buffer[i];
+                if(c >= '0' && c <= '9'){
+                    label = label*10 + (c - '0');
+                    if(label > Integer.MAX_VALUE){
+                        throw new RuntimeException("The label of site "+(labelCount + 1)+" in the site to unit map is too large.");
+                    }
+                    inLabel = true;
+                }else if(c == '-' && !inLabel && !negative){
+                    negative = true;
+                }else if(Character.isWhitespace(c) || c == ','){
+                    if(inLabel){
+                        if(labelCount == siteCount){
+                            throw new RuntimeException("The site to unit map has more labels than the "+siteCount+" sites in the alignment.");
+                        }
+                        labels[labelCount++] = (int)(negative ? -label : label);
+                        label = 0;
+                        inLabel = false;
+                        negative = false;
+                    }else if(negative){
+                        throw new RuntimeException("Unexpected '-' in the site to unit map.");
+                    }
+                }else{
+                    throw new RuntimeException("Unexpected character '"+c+"' in the site to unit map.");
+                }
             }
+        }
 
+        //The last label is not followed by a separator.
+        if(inLabel){
+            if(labelCount == siteCount){
+                throw new RuntimeException("The site to unit map has more labels than the "+siteCount+" sites in the alignment.");
+            }
+            labels[labelCount++] = (int)(negative ? -label : label);
+        }else if(negative){
+            throw new RuntimeException("Unexpected '-' in the site to unit map.");
+        }
+
+        if(labelCount != siteCount){
+            throw new RuntimeException("The site to unit map has "+labelCount+" labels " +
+                    "but there are "+siteCount+" sites in the alignment.");
+        }
+
+        int unitCount = relabelSiteToUnitMap(labels);
+
+        //Build the flattened units to sites map with a counting sort of the sites by unit.
+        unitSiteOffsets = new int[unitCount + 1];
+        for(int i = 0; i < siteCount; i++){
+            unitSiteOffsets[sitesToUnitsMap[i] + 1]++;
+        }
+        for(int i = 0; i < unitCount; i++){
+            if(unitSiteOffsets[i + 1] == 0){
+                throw new RuntimeException("Unit "+i+" has no sites. " +
+                        "If reorder is false, the labels in the site to unit map need to be 0, 1,..., (unit count - 1).");
+            }
+            unitSiteOffsets[i + 1] += unitSiteOffsets[i];
+        }
+
+        unitSites = new int[siteCount];
+        int[] nextPositions = Arrays.copyOf(unitSiteOffsets, unitCount);
+        for(int i = 0; i < siteCount; i++){
+            unitSites[nextPositions[sitesToUnitsMap[i]]++] = i;
+        }
 
-            unitsToSitesMap = new int[geneEndingSitePos.length][];
-            int prevEnd = 0;
-            int k = 0;
-            for(int i = 0; i < geneEndingSitePos.length; i++){
-                unitsToSitesMap[i] = new int[geneEndingSitePos[i] - prevEnd];
-                int length = geneEndingSitePos[i] - prevEnd;
-                for(int j = 0; j < length; j++){
-                    unitsToSitesMap[i][j] = k++;
+        System.err.println(siteCount+" sites are mapped to "+unitCount+" units.");
+    }
+
+    /*
+     * Replaces the labels in the given site to unit map by the unit indices and returns the number of units.
+     */
+    private int relabelSiteToUnitMap(int[] labels){
+        if(!reorderInput.get()){
+            int unitCount = 0;
+            for(int i = 0; i < labels.length; i++){
+                if(labels[i] < 0){
+                    throw new RuntimeException("The labels in the site to unit map cannot be negative if reorder is false.");
                 }
-                prevEnd = geneEndingSitePos[i];
+                unitCount = Math.max(unitCount, labels[i] + 1);
             }
+            return unitCount;
+        }
 
-            k = 0;
-            prevEnd = 0;
-            sitesToUnitsMap = new int[getSiteCount()];
-            for(int i  = 0; i < geneEndingSitePos.length; i++){
-                for(int j = prevEnd; j < geneEndingSitePos[i]; j++){
-                    //System.out.println(i);
-                    sitesToUnitsMap[k++] = i;
+        int minLabel = Integer.MAX_VALUE;
+        int maxLabel = Integer.MIN_VALUE;
+        for(int i = 0; i < labels.length; i++){
+            minLabel = Math.min(minLabel, labels[i]);
+            maxLabel = Math.max(maxLabel, labels[i]);
+        }
+
+        int[] sortedLabels = null;
+        int[] labelToUnit;
+        if((long)maxLabel - minLabel < labels.length){
+            //The labels are dense, so they can index the lookup table directly.
+            labelToUnit = new int[maxLabel - minLabel + 1];
+        }else{
+            //Otherwise the labels are looked up by their rank among the distinct labels.
+            sortedLabels = labels.clone();
+            Arrays.sort(sortedLabels);
+            int distinctCount = 0;
+            for(int i = 0; i < sortedLabels.length; i++){
+                if(i == 0 || sortedLabels[i] != sortedLabels[i - 1]){
+                    sortedLabels[distinctCount++] = sortedLabels[i];
                 }
-                prevEnd = geneEndingSitePos[i];
+            }
+            sortedLabels = Arrays.copyOf(sortedLabels, distinctCount);
+            labelToUnit = new int[distinctCount];
+        }
+        Arrays.fill(labelToUnit, -1);
 
+        int unitCount = 0;
+        for(int i = 0; i < labels.length; i++){
+            int key = sortedLabels == null ? labels[i] - minLabel : Arrays.binarySearch(sortedLabels, labels[i]);
+            if(labelToUnit[key] == -1){
+                labelToUnit[key] = unitCount++;
             }
+            labels[i] = labelToUnit[key];
+        }
+        return unitCount;
+    }
 
+    /*
+     * Computes a digest of the inputs of the alignment, which are the sequences, the data type and the unit definition,
+     * and of the contents of the site to unit map file, which identifies what a unit cache file was created from.
+     */
+    private byte[] getUnitCacheDigest() throws Exception{
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        for(Input<?> input: listInputs()){
+            Object value = input.get();
+            if(input == unitCacheFileInput || value == null){
+                continue;
+            }
 
-        }else if(unitDefinition.equals("codonByGene")){
+            digest.update((input.getName() + "=").getBytes("UTF-8"));
+            if(input == siteToUnitMapFileInput){
+                updateDigestWithFile(digest, new File(siteToUnitMapFileInput.get()));
+            }else if(value instanceof List){
+                for(Object item: (List<?>)value){
+                    updateDigest(digest, item);
+                }
+            }else{
+                updateDigest(digest, value);
+            }
+            digest.update((byte)';');
+        }
 
+        return digest.digest();
+    }
 
-            System.err.println("Assuming all genes start from the same codon position");
+    /*
+     * Adds a value to the digest, where a plugin, such as a sequence, is added by the values of its inputs.
+     */
+    private static void updateDigest(MessageDigest digest, Object value) throws Exception{
+        if(value instanceof Plugin){
+            Plugin plugin = (Plugin)value;
+            digest.update((plugin.getClass().getName() + "{").getBytes("UTF-8"));
+            for(Input<?> input: plugin.listInputs()){
+                digest.update((input.getName() + "=" + input.get() + ";").getBytes("UTF-8"));
+            }
+            digest.update((byte)'}');
+        }else{
+            digest.update(String.valueOf(value).getBytes("UTF-8"));
+        }
+    }
 
-            if(geneEndingSitePosInput.get() == null)
-                throw new RuntimeException("If the unit is by gene/contigs, " +
-                        "then the starting site positions of each gene/contigs.");
+    private static void updateDigestWithFile(MessageDigest digest, File file) throws IOException{
+        InputStream in = new FileInputStream(file);
+        try{
+            byte[] buffer = new byte[8192];
+            int byteCount;
+            while((byteCount = in.read(buffer)) != -1){
+                digest.update(buffer, 0, byteCount);
+            }
+        }finally{
+            in.close();
+        }
+    }
 
+    /*
+     * Reads the unit cache file and the unit structures in it.
+     * Every length and index in the file is checked against the site patterns of the alignment before it is used.
+     * Returns false if the file does not exist, is not a valid cache
+     * or was created from a different alignment or unit definition.
+     */
+    private boolean readUnitCache(File cacheFile, byte[] unitCacheDigest){
+        if(!cacheFile.isFile()){
+            return false;
+        }
 
-            String[] geneEndingSitePosStr = geneEndingSitePosInput.get().trim().split("\\s+");
-            int[] geneEndingSitePos = new int[geneEndingSitePosStr.length];
-            geneEndingSitePos[0] = Integer.parseInt(geneEndingSitePosStr[0]);
-            for(int i = 1; i < geneEndingSitePos.length; i++){
-                geneEndingSitePos[i] = Integer.parseInt(geneEndingSitePosStr[i]);
-                //System.out.println("Gene "+i+" ends at "+geneEndingSitePos[i]);
-                if(geneEndingSitePos[i - 1] > geneEndingSitePos[i])
-                    throw new RuntimeException("The ending positions need to be increasing order.");
+        try{
+            checkUnitCache(cacheFile.length() <= Integer.MAX_VALUE, "the file is too large");
+            byte[] bytes = new byte[(int)cacheFile.length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(cacheFile));
+            try{
+                in.readFully(bytes);
+            }finally{
+                in.close();
             }
 
-            initiateCodonByGene(geneEndingSitePos);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            if(buffer.remaining() < 12 + unitCacheDigest.length ||
+                    buffer.getInt() != UNIT_CACHE_MAGIC || buffer.getInt() != UNIT_CACHE_VERSION ||
+                    buffer.getInt() != unitCacheDigest.length){
+                return false;
+            }
 
+            byte[] fileDigest = new byte[unitCacheDigest.length];
+            buffer.get(fileDigest);
+            if(!MessageDigest.isEqual(fileDigest, unitCacheDigest)){
+                return false;
+            }
 
+            IntBuffer ints = buffer.asIntBuffer();
+            checkUnitCache(ints.remaining() >= 2, "the file is truncated");
+            unitClassCount = ints.get();
+            checkUnitCache(ints.get() == getPatternCount(), "the number of patterns is wrong");
+            sitesToUnitsMap = readCachedArray(ints);
+            unitSiteOffsets = readCachedArray(ints);
+            unitSites = readCachedArray(ints);
+            unitSiteStarts = readCachedArray(ints);
+            unitSiteStrides = readCachedArray(ints);
+            unitPatternOffsets = readCachedArray(ints);
+            unitPatterns = readCachedArray(ints);
+            unitPatternWeights = readCachedArray(ints);
+            unitClasses = readCachedArray(ints);
+            checkUnitCache(!ints.hasRemaining(), "the file has trailing data");
+
+            checkCachedUnits(getSiteCount(), getPatternCount());
+            return true;
+        }catch(Exception e){
+            System.err.println("Unable to read the unit cache "+cacheFile+": "+e.getMessage());
+            clearUnits();
+            return false;
+        }
+    }
+
+    /*
+     * Reads an array stored as its length followed by its elements, where a length of -1 stands for null.
+     */
+    private static int[] readCachedArray(IntBuffer ints) throws IOException{
+        checkUnitCache(ints.hasRemaining(), "the file is truncated");
+        int length = ints.get();
+        if(length == -1){
+            return null;
+        }
+        checkUnitCache(length >= 0 && length <= ints.remaining(), "an array length is out of range");
+        int[] array = new int[length];
+        ints.get(array);
+        return array;
+    }
+
+    private static void checkUnitCache(boolean valid, String message) throws IOException{
+        if(!valid){
+            throw new IOException(message);
+        }
+    }
 
+    /*
+     * Checks that every offset and index of the cached unit structures is within the arrays it refers to.
+     */
+    private void checkCachedUnits(int siteCount, int patternCount) throws IOException{
+        checkOffsets(unitSiteOffsets, siteCount);
+        int unitCount = unitSiteOffsets.length - 1;
+
+        if(unitSites != null){
+            checkUnitCache(unitSites.length == siteCount, "the unit sites have the wrong length");
+            checkIndices(unitSites, siteCount);
         }else{
-            throw new RuntimeException("Please specify whether the assignment unit is site, genes, codon, codonByGene." +
-                    "If it is none of the option above then please provide mapping of sites to units which should be a string of integers.");
+            checkUnitCache(unitSiteStarts != null && unitSiteStarts.length == unitCount &&
+                    unitSiteStrides != null && unitSiteStrides.length == unitCount, "the unit site ranges are invalid");
+            for(int i = 0; i < unitCount; i++){
+                int unitSiteCount = unitSiteOffsets[i + 1] - unitSiteOffsets[i];
+                checkUnitCache(unitSiteCount == 0 || (unitSiteStarts[i] >= 0 && unitSiteStrides[i] > 0 &&
+                        unitSiteStarts[i] + (long)(unitSiteCount - 1)*unitSiteStrides[i] < siteCount),
+                        "the site range of unit "+i+" is out of range");
+            }
+        }
+
+        checkUnitCache(sitesToUnitsMap != null && sitesToUnitsMap.length == siteCount, "the site to unit map has the wrong length");
+        checkIndices(sitesToUnitsMap, unitCount);
+
+        checkUnitCache(unitPatternOffsets != null && unitPatternOffsets.length == unitCount + 1 &&
+                unitPatterns != null && unitPatternWeights != null &&
+                unitPatternWeights.length == unitPatterns.length, "the unit patterns are invalid");
+        checkUnitCache(unitPatternOffsets[0] == 0, "the unit pattern offsets are invalid");
+        checkOffsets(unitPatternOffsets, unitPatterns.length);
+        checkIndices(unitPatterns, patternCount);
+
+        checkUnitCache(unitClasses != null && unitClasses.length == unitCount && unitClassCount >= 0, "the unit classes are invalid");
+        checkIndices(unitClasses, unitClassCount);
+    }
+
+    /*
+     * Checks that the offsets do not decrease, start from a non-negative value and end at the given length.
+     */
+    private static void checkOffsets(int[] offsets, int length) throws IOException{
+        checkUnitCache(offsets != null && offsets.length > 0 && offsets[0] >= 0 && offsets[offsets.length - 1] == length,
+                "an offset array is invalid");
+        for(int i = 1; i < offsets.length; i++){
+            checkUnitCache(offsets[i - 1] <= offsets[i], "an offset array is not in increasing order");
+        }
+    }
+
+    private static void checkIndices(int[] indices, int bound) throws IOException{
+        for(int index: indices){
+            checkUnitCache(index >= 0 && index < bound, "an index is out of range");
+        }
+    }
+
+    /*
+     * Drops the unit structures read from an invalid cache, so that they are built from scratch.
+     */
+    private void clearUnits(){
+        sitesToUnitsMap = null;
+        unitSiteOffsets = null;
+        unitSites = null;
+        unitSiteStarts = null;
+        unitSiteStrides = null;
+        unitPatternOffsets = null;
+        unitPatterns = null;
+        unitPatternWeights = null;
+        unitClasses = null;
+        unitClassCount = 0;
+    }
+
+    /*
+     * Writes the unit structures to a temporary file in the directory of the unit cache file,
+     * which then replaces the cache file by a rename, so that a run never reads a partly written cache.
+     * Failing to write the cache does not stop the analysis.
+     */
+    private void writeUnitCache(File cacheFile, byte[] unitCacheDigest){
+        int[][] arrays = new int[][]{
+                sitesToUnitsMap,
+                unitSiteOffsets,
+                unitSites,
+                unitSiteStarts,
+                unitSiteStrides,
+                unitPatternOffsets,
+                unitPatterns,
+                unitPatternWeights,
+                unitClasses
+        };
+
+        File tempFile = null;
+        try{
+            tempFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getAbsoluteFile().getParentFile());
+            FileOutputStream fileOut = new FileOutputStream(tempFile);
+            try{
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 65536));
+                out.writeInt(UNIT_CACHE_MAGIC);
+                out.writeInt(UNIT_CACHE_VERSION);
+                out.writeInt(unitCacheDigest.length);
+                out.write(unitCacheDigest);
+
+                out.writeInt(unitClassCount);
+                out.writeInt(getPatternCount());
+                for(int[] array: arrays){
+                    if(array == null){
+                        out.writeInt(-1);
+                    }else{
+                        out.writeInt(array.length);
+                        for(int value: array){
+                            out.writeInt(value);
+                        }
+                    }
+                }
+                out.flush();
+                fileOut.getFD().sync();
+            }finally{
+                fileOut.close();
+            }
+
+            if(!tempFile.renameTo(cacheFile)){
+                //Some file systems do not rename over an existing file.
+                if(!cacheFile.delete() || !tempFile.renameTo(cacheFile)){
+                    throw new IOException("cannot rename "+tempFile+" to "+cacheFile);
+                }
+            }
+        }catch(IOException e){
+            System.err.println("Unable to write the unit cache "+cacheFile+": "+e.getMessage());
+            if(tempFile != null){
+                tempFile.delete();
+            }
+        }
+    }
+
+    /*
+     * Counts the number of sites of each unique pattern in every unit,
+     * so that the weights and likelihoods of a unit can be handled pattern by pattern rather than site by site.
+     */
+    private void setupUnitPatternIndex(){
+        int unitCount = getUnitCount();
+        int[] patternCounts = new int[getPatternCount()];
+        int[] unitPatternList = new int[getPatternCount()];
+
+        //The number of unique patterns in a unit is at most its number of sites.
+        int[] patterns = new int[getSiteCount()];
+        int[] weights = new int[getSiteCount()];
+        unitPatternOffsets = new int[unitCount + 1];
+
+        int k = 0;
+        for(int i = 0; i < unitCount; i++){
+            int uniqueCount = 0;
+            int siteCount = getSiteCountGivenUnit(i);
+            for(int j = 0; j < siteCount; j++){
+                int patternIndex = getPatternIndex(getSiteInUnit(i, j));
+                if(patternCounts[patternIndex] == 0){
+                    unitPatternList[uniqueCount++] = patternIndex;
+                }
+                patternCounts[patternIndex]++;
+            }
+
+            //Keep the patterns in ascending order, so that units can be compared directly.
+            Arrays.sort(unitPatternList, 0, uniqueCount);
+            for(int j = 0; j < uniqueCount; j++){
+                patterns[k] = unitPatternList[j];
+                weights[k] = patternCounts[unitPatternList[j]];
+                patternCounts[unitPatternList[j]] = 0;
+                k++;
+            }
+            unitPatternOffsets[i + 1] = k;
+        }
+
+        unitPatterns = Arrays.copyOf(patterns, k);
+        unitPatternWeights = Arrays.copyOf(weights, k);
+    }
+
+    /*
+     * Groups units with the same pattern weight vectors into classes.
+     */
+    private void setupUnitClassIndex(){
+        int unitCount = getUnitCount();
+        unitClasses = new int[unitCount];
+        unitClassCount = 0;
+
+        //The first unit of each class
+        int[] classRepresentatives = new int[unitCount];
+        //Maps the hash of a pattern weight vector to the classes with that hash
+        HashMap<Integer, ArrayList<Integer>> hashToClasses = new HashMap<Integer, ArrayList<Integer>>();
+
+        for(int i = 0; i < unitCount; i++){
+            int hash = 1;
+            for(int j = unitPatternOffsets[i]; j < unitPatternOffsets[i + 1]; j++){
+                hash = 31*(31*hash + unitPatterns[j]) + unitPatternWeights[j];
+            }
+
+            ArrayList<Integer> classes = hashToClasses.get(hash);
+            if(classes == null){
+                classes = new ArrayList<Integer>(1);
+                hashToClasses.put(hash, classes);
+            }
+
+            int unitClass = -1;
+            for(int candidateClass: classes){
+                if(hasSamePatterns(classRepresentatives[candidateClass], i)){
+                    unitClass = candidateClass;
+                    break;
+                }
+            }
+
+            if(unitClass == -1){
+                unitClass = unitClassCount++;
+                classRepresentatives[unitClass] = i;
+                classes.add(unitClass);
+            }
+            unitClasses[i] = unitClass;
+        }
+
+    }
 
+    /*
+     * Whether the two units have the same pattern weight vectors.
+     */
+    private boolean hasSamePatterns(int unit1, int unit2){
+        int offset1 = unitPatternOffsets[unit1];
+        int offset2 = unitPatternOffsets[unit2];
+        int length = unitPatternOffsets[unit1 + 1] - offset1;
+        if(length != unitPatternOffsets[unit2 + 1] - offset2){
+            return false;
         }
 
+        for(int i = 0; i < length; i++){
+            if(unitPatterns[offset1 + i] != unitPatterns[offset2 + i] ||
+                    unitPatternWeights[offset1 + i] != unitPatternWeights[offset2 + i]){
+                return false;
+            }
+        }
+        return true;
     }
 
     private void initiateCodonByGene(int[] geneEndingSitePos){
@@ -190,56 +745,181 @@ public class GeneralUnitAlignment extends Alignment {
                     "Site count is "+getSiteCount()+" but the end position of the last gene is "+geneEndingSitePos.length+".");
         }
 
-        unitsToSitesMap = new int[geneEndingSitePos.length*3][];
-        System.out.println(unitsToSitesMap.length);
-        sitesToUnitsMap = new int[getSiteCount()];
-        int k = 0;
-        int prevEnd = 0;
-
-        //Going through each gene segment
         for(int i = 0; i < geneEndingSitePos.length; i++){
+            int length = geneEndingSitePos[i] - (i == 0 ? 0 : geneEndingSitePos[i - 1]);
+            if(length  % 3 > 0){
+                System.err.println("The number of sites in the gene is not a multiple of three.");
+            }
+        }
+
+        initiateGeneUnits(geneEndingSitePos, 3);
+
+    }
+
+    /*
+     * Splits each gene into the given number of units, where the jth unit of a gene holds
+     * the sites at positions j, j + unitsPerGene, j + 2*unitsPerGene,... of the gene.
+     * With one unit per gene, the units are the genes, and with three, they are the codon positions of the genes.
+     */
+    private void initiateGeneUnits(int[] geneEndingSitePos, int unitsPerGene){
+        int unitCount = geneEndingSitePos.length*unitsPerGene;
+        unitSiteOffsets = new int[unitCount + 1];
+        unitSiteStarts = new int[unitCount];
+        unitSiteStrides = new int[unitCount];
 
-            //Length of a geneSegment
+        int prevEnd = 0;
+        for(int i = 0; i < geneEndingSitePos.length; i++){
             int length = geneEndingSitePos[i] - prevEnd;
-            int dim = length/3;
-            for(int j = 0; j < 3; j++){
-                unitsToSitesMap[i*3+j] = new int[dim];
+            for(int j = 0; j < unitsPerGene; j++){
+                int unit = i*unitsPerGene + j;
+                unitSiteStarts[unit] = prevEnd + j;
+                unitSiteStrides[unit] = unitsPerGene;
+                unitSiteOffsets[unit + 1] = unitSiteOffsets[unit] + Math.max(0, (length - j + unitsPerGene - 1)/unitsPerGene);
             }
+            prevEnd = geneEndingSitePos[i];
+        }
+        setupRangeSiteToUnitMap();
 
+    }
 
-            if(length  % 3 > 0){
-                System.err.println("The number of sites in the gene is not a multiple of three.");
-                dim += 1;
-                for(int j = 0; j < length  % 3; j++){
-                    unitsToSitesMap[i*3+j] = new int[dim];
-                }
-            }
+    /*
+     * Splits each gene into blocks of consecutive sites of the given length.
+     * The last block of a gene is shorter if the gene length is not a multiple of the block length.
+     */
+    private void initiateBlockUnits(int[] geneEndingSitePos, int blockLength){
+        int unitCount = 0;
+        int prevEnd = 0;
+        for(int i = 0; i < geneEndingSitePos.length; i++){
+            unitCount += (geneEndingSitePos[i] - prevEnd + blockLength - 1)/blockLength;
+            prevEnd = geneEndingSitePos[i];
+        }
 
+        unitSiteOffsets = new int[unitCount + 1];
+        unitSiteStarts = new int[unitCount];
+        unitSiteStrides = new int[unitCount];
 
-            for(int j = 0; j < length; j++){
-                //System.out.println(unitsToSitesMap[i*3 + j%3].length+" "+unitsToSitesMap.length);
-                unitsToSitesMap[i*3 + j%3][j/3] = k;
-                sitesToUnitsMap[k] = i*3 + j%3;
-                k++;
+        int unit = 0;
+        prevEnd = 0;
+        for(int i = 0; i < geneEndingSitePos.length; i++){
+            for(int start = prevEnd; start < geneEndingSitePos[i]; start += blockLength){
+                unitSiteStarts[unit] = start;
+                unitSiteStrides[unit] = 1;
+                unitSiteOffsets[unit + 1] = unitSiteOffsets[unit] + Math.min(blockLength, geneEndingSitePos[i] - start);
+                unit++;
             }
-
             prevEnd = geneEndingSitePos[i];
+        }
+
+        setupRangeSiteToUnitMap();
 
+        System.err.println(getSiteCount()+" sites are split into "+unitCount+" blocks.");
+    }
+
+    /*
+     * Sets the unit of each site from the site ranges of the units.
+     */
+    private void setupRangeSiteToUnitMap(){
+        sitesToUnitsMap = new int[getSiteCount()];
+        for(int unit = 0; unit < unitSiteStarts.length; unit++){
+            int unitSiteCount = unitSiteOffsets[unit + 1] - unitSiteOffsets[unit];
+            for(int i = 0; i < unitSiteCount; i++){
+                sitesToUnitsMap[unitSiteStarts[unit] + i*unitSiteStrides[unit]] = unit;
+            }
         }
+    }
 
+    /*
+     * Parses the gene ending positions, which need to be in increasing order.
+     */
+    private int[] parseGeneEndingSitePositions(){
+        String[] geneEndingSitePosStr = geneEndingSitePosInput.get().trim().split("\\s+");
+        int[] geneEndingSitePos = new int[geneEndingSitePosStr.length];
+
+        geneEndingSitePos[0] = Integer.parseInt(geneEndingSitePosStr[0]);
+        for(int i = 1; i < geneEndingSitePos.length; i++){
+            geneEndingSitePos[i] = Integer.parseInt(geneEndingSitePosStr[i]);
+            if(geneEndingSitePos[i - 1] > geneEndingSitePos[i])
+                throw new RuntimeException("The ending positions need to be increasing order.");
+        }
+        return geneEndingSitePos;
     }
 
     public int getUnitBySite(int siteIndex){
         return sitesToUnitsMap[siteIndex];
     }
 
+    public int getUnitCount(){
+        return unitSiteOffsets.length - 1;
+    }
+
     public int getSiteCountGivenUnit(int unitIndex){
-        return unitsToSitesMap[unitIndex].length;
+        return unitSiteOffsets[unitIndex + 1] - unitSiteOffsets[unitIndex];
 
     }
 
+    /*
+     * Returns the index of the ith site in the given unit, where 0 <= i < getSiteCountGivenUnit(unitIndex).
+     * Unlike getSitesByUnit, this does not create a new array, so it should be used in loops.
+     */
+    public int getSiteInUnit(int unitIndex, int i){
+        if(unitSites == null){
+            return unitSiteStarts[unitIndex] + i*unitSiteStrides[unitIndex];
+        }
+        return unitSites[unitSiteOffsets[unitIndex] + i];
+    }
+
+    /*
+     * Returns the number of unique patterns in the given unit.
+     */
+    public int getPatternCountGivenUnit(int unitIndex){
+        return unitPatternOffsets[unitIndex + 1] - unitPatternOffsets[unitIndex];
+    }
+
+    /*
+     * Returns the index of the ith unique pattern in the given unit, where 0 <= i < getPatternCountGivenUnit(unitIndex).
+     */
+    public int getPatternInUnit(int unitIndex, int i){
+        return unitPatterns[unitPatternOffsets[unitIndex] + i];
+    }
+
+    /*
+     * Returns the number of sites in the given unit that have the ith unique pattern of that unit.
+     */
+    public int getPatternWeightInUnit(int unitIndex, int i){
+        return unitPatternWeights[unitPatternOffsets[unitIndex] + i];
+    }
+
+    /*
+     * Returns the equivalence class of the given unit.
+     * Units in the same class have the same patterns with the same weights.
+     */
+    public int getUnitClass(int unitIndex){
+        return unitClasses[unitIndex];
+    }
+
+    public int getUnitClassCount(){
+        return unitClassCount;
+    }
+
+    /*
+     * Returns whether the unit structures were read from the unit cache file rather than built.
+     */
+    public boolean isReadFromUnitCache(){
+        return unitsReadFromCache;
+    }
+
+    /*
+     * Returns a copy of the sites in the given unit.
+     */
     public int[] getSitesByUnit(int unitIndex){
-        return Arrays.copyOf(unitsToSitesMap[unitIndex], unitsToSitesMap[unitIndex].length);
+        if(unitSites == null){
+            int[] sites = new int[getSiteCountGivenUnit(unitIndex)];
+            for(int i = 0; i < sites.length; i++){
+                sites[i] = unitSiteStarts[unitIndex] + i*unitSiteStrides[unitIndex];
+            }
+            return sites;
+        }
+        return Arrays.copyOfRange(unitSites, unitSiteOffsets[unitIndex], unitSiteOffsets[unitIndex + 1]);
     }
 
 
@@ -0,0 +1,56 @@
+package beast.evolution.likelihood;
+
+import beast.evolution.datatype.DataType;
+import beast.evolution.substitutionmodel.EigenDecomposition;
+import beast.evolution.substitutionmodel.SubstitutionModel;
+import beast.evolution.tree.Node;
+
+/**
+ * Gives a likelihood a view of its substitution model whose transition probabilities are read through
+ * a transition matrix cache shared with other likelihoods (see TransitionMatrixCache),
+ * so that the full tree likelihood uses the cached matrices without any change to its pruning.
+ * The view is not an input of any plugin, so the dirtiness of the likelihood is still that of its site model.
+ *
+ * @author Chieh-Hsi Wu
+ */
+public class CachedSubstitutionModel extends SubstitutionModel.Base {
+    private SubstitutionModel model;
+    private TransitionMatrixCache matrixCache;
+
+    public CachedSubstitutionModel(SubstitutionModel model, TransitionMatrixCache matrixCache){
+        this.model = model;
+        this.matrixCache = matrixCache;
+    }
+
+    public void initAndValidate(){
+    }
+
+    public void setModel(SubstitutionModel model){
+        this.model = model;
+    }
+
+    public SubstitutionModel getModel(){
+        return model;
+    }
+
+    public void getTransitionProbabilities(Node node, double startTime, double endTime, double rate, double[] matrix){
+        matrixCache.getTransitionProbabilities(model, node, startTime, endTime, rate, matrix);
+    }
+
+    public EigenDecomposition getEigenDecomposition(Node node){
+        return model.getEigenDecomposition(node);
+    }
+
+    public double[] getFrequencies(){
+        return model.getFrequencies();
+    }
+
+    public boolean canReturnComplexDiagonalization(){
+        return model.canReturnComplexDiagonalization();
+    }
+
+    public boolean canHandleDataType(DataType dataType) throws Exception{
+        return model.canHandleDataType(dataType);
+    }
+
+}
@@ -0,0 +1,152 @@
+package beast.evolution.likelihood;
+
+/**
+ * Groups the positions of sites or units by the ID numbers of their clusters, together with the pattern weights
+ * of each group, for the temporary likelihoods that evaluate a set of sites or units cluster by cluster.
+ * The groups are indexed by the ID numbers through a stamped array, and all the arrays are kept between calls,
+ * so that grouping does not allocate once the buffers have grown to the sizes required.
+ * The groups are numbered in the order in which their clusters are first seen,
+ * and the positions within a group are kept in the order in which they were added.
+ *
+ * @author Chieh-Hsi Wu
+ */
+public class ClusterGrouping {
+    private int patternCount;
+
+    //The group of each cluster ID number, valid if the stamp of the ID is equal to the current stamp.
+    private int[] groupsByID = new int[0];
+    private int[] idStamps = new int[0];
+    private int stamp = 1;
+
+    private int groupCount;
+    private int[] groupIDs = new int[0];
+    private int[][] groupWeights = new int[0][];
+    //The patterns with non-zero weights in each group, so that only those are reset.
+    private int[][] groupPatterns = new int[0][];
+    private int[] groupPatternCounts = new int[0];
+
+    //The positions of each group as a linked list.
+    private int[] firstPositions = new int[0];
+    private int[] lastPositions = new int[0];
+    private int[] nextPositions = new int[0];
+
+    public ClusterGrouping(int patternCount){
+        this.patternCount = patternCount;
+    }
+
+    /*
+     * Discards the groups of the previous call. The positions added next must be less than positionCount.
+     */
+    public void clear(int positionCount){
+        for(int i = 0; i < groupCount; i++){
+            int[] weights = groupWeights[i];
+            int[] patterns = groupPatterns[i];
+            for(int j = 0; j < groupPatternCounts[i]; j++){
+                weights[patterns[j]] = 0;
+            }
+            groupPatternCounts[i] = 0;
+        }
+        groupCount = 0;
+        stamp++;
+
+        if(nextPositions.length < positionCount){
+            nextPositions = new int[positionCount];
+        }
+    }
+
+    /*
+     * Adds a position to the group of the cluster with the given ID number,
+     * and returns the group, which is groupCount - 1 if the cluster has not been seen since the last clear.
+     */
+    public int add(int id, int position){
+        int group;
+        if(id < idStamps.length && idStamps[id] == stamp){
+            group = groupsByID[id];
+            nextPositions[lastPositions[group]] = position;
+        }else{
+            group = addGroup(id);
+            firstPositions[group] = position;
+        }
+        lastPositions[group] = position;
+        nextPositions[position] = -1;
+        return group;
+    }
+
+    /*
+     * Adds to the weight of a pattern in a group.
+     */
+    public void addPatternWeight(int group, int patternIndex, int weight){
+        int[] weights = groupWeights[group];
+        if(weights[patternIndex] == 0){
+            groupPatterns[group][groupPatternCounts[group]++] = patternIndex;
+        }
+        weights[patternIndex] += weight;
+    }
+
+    public int getGroupCount(){
+        return groupCount;
+    }
+
+    public int getGroupID(int group){
+        return groupIDs[group];
+    }
+
+    public int[] getPatternWeights(int group){
+        return groupWeights[group];
+    }
+
+    /*
+     * Returns the first position in a group, followed by getNextPosition until it returns -1.
+     */
+    public int getFirstPosition(int group){
+        return firstPositions[group];
+    }
+
+    public int getNextPosition(int position){
+        return nextPositions[position];
+    }
+
+    private int addGroup(int id){
+        if(id >= idStamps.length){
+            int newLength = Math.max(id + 1, 2*idStamps.length);
+            int[] newGroupsByID = new int[newLength];
+            int[] newIDStamps = new int[newLength];
+            System.arraycopy(groupsByID, 0, newGroupsByID, 0, groupsByID.length);
+            System.arraycopy(idStamps, 0, newIDStamps, 0, idStamps.length);
+            groupsByID = newGroupsByID;
+            idStamps = newIDStamps;
+        }
+
+        if(groupCount == groupIDs.length){
+            int newLength = Math.max(4, 2*groupIDs.length);
+            int[] newGroupIDs = new int[newLength];
+            int[][] newGroupWeights = new int[newLength][];
+            int[][] newGroupPatterns = new int[newLength][];
+            int[] newGroupPatternCounts = new int[newLength];
+            int[] newFirstPositions = new int[newLength];
+            int[] newLastPositions = new int[newLength];
+            System.arraycopy(groupIDs, 0, newGroupIDs, 0, groupCount);
+            System.arraycopy(groupWeights, 0, newGroupWeights, 0, groupCount);
+            System.arraycopy(groupPatterns, 0, newGroupPatterns, 0, groupCount);
+            System.arraycopy(groupPatternCounts, 0, newGroupPatternCounts, 0, groupCount);
+            System.arraycopy(firstPositions, 0, newFirstPositions, 0, groupCount);
+            System.arraycopy(lastPositions, 0, newLastPositions, 0, groupCount);
+            for(int i = groupCount; i < newLength; i++){
+                newGroupWeights[i] = new int[patternCount];
+                newGroupPatterns[i] = new int[patternCount];
+            }
+            groupIDs = newGroupIDs;
+            groupWeights = newGroupWeights;
+            groupPatterns = newGroupPatterns;
+            groupPatternCounts = newGroupPatternCounts;
+            firstPositions = newFirstPositions;
+            lastPositions = newLastPositions;
+        }
+
+        groupsByID[id] = groupCount;
+        idStamps[id] = stamp;
+        groupIDs[groupCount] = id;
+        return groupCount++;
+    }
+
+}
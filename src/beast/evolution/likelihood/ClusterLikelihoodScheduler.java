@@ -0,0 +1,252 @@
+package beast.evolution.likelihood;
+
+import beast.app.BeastMCMC;
+import beast.evolution.substitutionmodel.SubstitutionModel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Calculates the likelihoods of the clusters of a DP tree likelihood on several threads,
+ * where the work is divided by its cost rather than by cluster, since the sizes of the clusters are usually very uneven.
+ * The cost of a cluster is the number of patterns it evaluates times the number of nodes in the tree.
+ * The clusters are calculated by the full tree likelihood, which reuses the partials of the clean subtrees,
+ * except the clusters with few enough active patterns to be evaluated over those patterns only (see SparseWVTreeLikelihood),
+ * which are split into ranges of their active patterns if they cost more than a thread's share of the work.
+ * The tasks are then packed onto the threads, largest first, each onto the thread with the least work so far.
+ * The clusters calculated by the full tree likelihood that share a substitution model are kept on the same thread,
+ * since the calculation of the transition probabilities is not thread safe.
+ * The lists, tasks and sums are kept between calls, so that scheduling does not allocate once they have grown.
+ *
+ * @author Chieh-Hsi Wu
+ */
+public class ClusterLikelihoodScheduler {
+    private int threadCount;
+    private int patternCount;
+    private int nodeCount;
+
+    private ArrayList<Task> tasks = new ArrayList<Task>();
+    //The tasks created so far, which are reused by later calls.
+    private ArrayList<Task> taskPool = new ArrayList<Task>();
+    private int usedTaskCount;
+    private ArrayList<ArrayList<Task>> buckets = new ArrayList<ArrayList<Task>>();
+    private double[] bucketCosts;
+    private ArrayList<SparseWVTreeLikelihood> sparseTreeLiks = new ArrayList<SparseWVTreeLikelihood>();
+    private IdentityHashMap<SubstitutionModel, Task> denseTasks = new IdentityHashMap<SubstitutionModel, Task>();
+    private double[] sparseSums = new double[0];
+    private double[] sparseLogPs = new double[0];
+    //The partials buffers of each thread for the sparse evaluation.
+    private double[][][] buffers;
+
+    private volatile Exception exception;
+
+    private static final Comparator<Task> LARGEST_FIRST = new Comparator<Task>(){
+        public int compare(Task task1, Task task2){
+            return Double.compare(task2.cost, task1.cost);
+        }
+    };
+
+    public ClusterLikelihoodScheduler(int threadCount, int patternCount, int nodeCount){
+        this.threadCount = threadCount;
+        this.patternCount = patternCount;
+        this.nodeCount = nodeCount;
+        bucketCosts = new double[threadCount];
+        buffers = new double[threadCount][][];
+        for(int i = 0; i < threadCount; i++){
+            buckets.add(new ArrayList<Task>());
+            buffers[i] = new double[nodeCount][];
+        }
+    }
+
+    /*
+     * Calculates the likelihoods of the given clusters and returns the sum of their log-likelihoods.
+     */
+    public double calculateLogP(List<? extends TreeLikelihood> treeLiks) throws Exception{
+        tasks.clear();
+        usedTaskCount = 0;
+        sparseTreeLiks.clear();
+        denseTasks.clear();
+
+        //The matrices of the sparse clusters are calculated here, as the substitution models may be shared.
+        double totalCost = 0.0;
+        for(TreeLikelihood treeLik: treeLiks){
+            if(treeLik instanceof SparseWVTreeLikelihood){
+                SparseWVTreeLikelihood sparseTreeLik = (SparseWVTreeLikelihood)treeLik;
+                if(sparseTreeLik.prepareSparseCalculation()){
+                    sparseTreeLiks.add(sparseTreeLik);
+                    totalCost += sparseTreeLik.getActivePatternCount()*nodeCount;
+                    continue;
+                }
+            }
+
+            //A clean likelihood only integrates the partials at the root.
+            double cost = treeLik.isDirtyCalculation() ? patternCount*nodeCount : patternCount;
+            //The model of the site model, as the likelihood may read it through a view (see CachedSubstitutionModel).
+            SubstitutionModel substModel = treeLik.m_siteModel.m_pSubstModel.get();
+            Task task = denseTasks.get(substModel);
+            if(task == null){
+                task = nextTask();
+                denseTasks.put(substModel, task);
+                tasks.add(task);
+            }
+            task.denseTreeLiks.add(treeLik);
+            task.cost += cost;
+            totalCost += cost;
+        }
+
+        //Split the sparse clusters that cost more than a thread's share.
+        double targetCost = totalCost/threadCount;
+        int sparseTaskCount = 0;
+        for(int i = 0; i < sparseTreeLiks.size(); i++){
+            int activeCount = sparseTreeLiks.get(i).getActivePatternCount();
+            int chunkCount = Math.max(1, Math.min(threadCount, (int)Math.ceil(activeCount*nodeCount/targetCost)));
+            int chunkSize = Math.max(1, (activeCount + chunkCount - 1)/chunkCount);
+            for(int from = 0; from < activeCount; from += chunkSize){
+                Task task = nextTask();
+                task.sparseTreeLik = sparseTreeLiks.get(i);
+                task.sparseIndex = i;
+                task.from = from;
+                task.to = Math.min(activeCount, from + chunkSize);
+                task.cost = (task.to - task.from)*nodeCount;
+                task.sumIndex = sparseTaskCount++;
+                tasks.add(task);
+            }
+        }
+        if(sparseSums.length < sparseTaskCount){
+            sparseSums = new double[2*sparseTaskCount];
+        }
+        if(sparseLogPs.length < sparseTreeLiks.size()){
+            sparseLogPs = new double[2*sparseTreeLiks.size()];
+        }
+
+        //Pack the tasks onto the threads.
+        Collections.sort(tasks, LARGEST_FIRST);
+        for(int i = 0; i < threadCount; i++){
+            buckets.get(i).clear();
+            bucketCosts[i] = 0.0;
+        }
+        for(Task task: tasks){
+            int leastLoaded = 0;
+            for(int i = 1; i < threadCount; i++){
+                if(bucketCosts[i] < bucketCosts[leastLoaded]){
+                    leastLoaded = i;
+                }
+            }
+            buckets.get(leastLoaded).add(task);
+            bucketCosts[leastLoaded] += task.cost;
+        }
+
+        run(sparseSums);
+
+        //Collect the log-likelihoods.
+        double logP = 0.0;
+        for(int i = 0; i < sparseTreeLiks.size(); i++){
+            sparseLogPs[i] = 0.0;
+        }
+        for(Task task: tasks){
+            if(task.sparseTreeLik != null){
+                sparseLogPs[task.sparseIndex] += sparseSums[task.sumIndex];
+            }else{
+                for(TreeLikelihood treeLik: task.denseTreeLiks){
+                    logP += treeLik.getCurrentLogP();
+                }
+            }
+        }
+        for(int i = 0; i < sparseTreeLiks.size(); i++){
+            sparseTreeLiks.get(i).setSparseLogP(sparseLogPs[i]);
+            logP += sparseLogPs[i];
+        }
+        return logP;
+    }
+
+    /*
+     * Returns a cleared task, which is taken from the tasks of the earlier calls if there is one left.
+     */
+    private Task nextTask(){
+        Task task;
+        if(usedTaskCount < taskPool.size()){
+            task = taskPool.get(usedTaskCount);
+            task.sparseTreeLik = null;
+            task.denseTreeLiks.clear();
+            task.cost = 0.0;
+        }else{
+            task = new Task();
+            taskPool.add(task);
+        }
+        usedTaskCount++;
+        return task;
+    }
+
+    /*
+     * Runs the tasks of the first thread on the calling thread and the others on the BEAST executor,
+     * and waits for all of them to finish.
+     */
+    private void run(final double[] sparseSums) throws Exception{
+        exception = null;
+        int busyCount = 0;
+        for(int i = 1; i < threadCount; i++){
+            if(buckets.get(i).size() > 0){
+                busyCount++;
+            }
+        }
+
+        final CountDownLatch latch = new CountDownLatch(busyCount);
+        for(int i = 1; i < threadCount; i++){
+            if(buckets.get(i).size() == 0){
+                continue;
+            }
+            final int bucket = i;
+            BeastMCMC.g_exec.execute(new Runnable(){
+                public void run(){
+                    try{
+                        runBucket(bucket, sparseSums);
+                    }catch(Exception e){
+                        exception = e;
+                    }finally{
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        try{
+            runBucket(0, sparseSums);
+        }finally{
+            latch.await();
+        }
+        if(exception != null){
+            throw exception;
+        }
+    }
+
+    private void runBucket(int bucket, double[] sparseSums) throws Exception{
+        for(Task task: buckets.get(bucket)){
+            if(task.sparseTreeLik != null){
+                sparseSums[task.sumIndex] = task.sparseTreeLik.calculateActivePatterns(task.from, task.to, buffers[bucket]);
+            }else{
+                for(TreeLikelihood treeLik: task.denseTreeLiks){
+                    treeLik.calculateLogP();
+                }
+            }
+        }
+    }
+
+    /*
+     * Either a range of the active patterns of a sparse cluster,
+     * or the clusters calculated by the full tree likelihood that share a substitution model.
+     */
+    private static class Task {
+        SparseWVTreeLikelihood sparseTreeLik;
+        int sparseIndex;
+        int from;
+        int to;
+        int sumIndex;
+        ArrayList<TreeLikelihood> denseTreeLiks = new ArrayList<TreeLikelihood>();
+        double cost;
+    }
+
+}
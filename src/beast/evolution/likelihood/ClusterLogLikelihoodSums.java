@@ -0,0 +1,140 @@
+package beast.evolution.likelihood;
+
+import beast.evolution.alignment.GeneralUnitAlignment;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The log-likelihoods of the clusters of a DP tree likelihood in the order of its likelihoods,
+ * which are updated from the pattern log-likelihoods of the clusters when units move between them,
+ * without traversing the tree, as long as the pattern log-likelihoods do not change.
+ * The incremental updates build up rounding errors, so the log-likelihoods of the clusters that units have moved
+ * to or from are summed again from their pattern weights every resumInterval calls of getLogP,
+ * and all of them are reset from the likelihoods after each full calculation.
+ *
+ * @author Chieh-Hsi Wu
+ */
+public class ClusterLogLikelihoodSums {
+    private int resumInterval;
+    private double[] logPs = new double[0];
+    private double[] storedLogPs = new double[0];
+    //Whether a unit has moved to or from a cluster since its log-likelihood was last summed.
+    private boolean[] changed = new boolean[0];
+    private boolean[] storedChanged = new boolean[0];
+    //The number of calls of getLogP since the changed clusters were last summed.
+    private int updateCount;
+    private int storedUpdateCount;
+
+    public ClusterLogLikelihoodSums(int resumInterval){
+        if(resumInterval < 1){
+            throw new RuntimeException("The interval between the sums of the cluster log-likelihoods needs to be positive.");
+        }
+        this.resumInterval = resumInterval;
+    }
+
+    /*
+     * Returns the number of clusters at the last reset, which is 0 before the first one.
+     */
+    public int getClusterCount(){
+        return logPs.length;
+    }
+
+    /*
+     * Sets the log-likelihoods of the clusters to those of their likelihoods after a full calculation.
+     */
+    public void reset(List<NewWVTreeLikelihood> treeLiks){
+        if(logPs.length != treeLiks.size()){
+            logPs = new double[treeLiks.size()];
+            changed = new boolean[treeLiks.size()];
+        }else{
+            Arrays.fill(changed, false);
+        }
+        for(int i = 0; i < logPs.length; i++){
+            logPs[i] = treeLiks.get(i).getCurrentLogP();
+        }
+        updateCount = 0;
+    }
+
+    /*
+     * Moves the log-likelihood of a unit from one cluster to another.
+     */
+    public void moveUnit(
+            GeneralUnitAlignment alignment,
+            int unitIndex,
+            int prevCluster,
+            NewWVTreeLikelihood prevTreeLik,
+            int currCluster,
+            NewWVTreeLikelihood currTreeLik){
+        changed[prevCluster] = true;
+        changed[currCluster] = true;
+        int unitPatternCount = alignment.getPatternCountGivenUnit(unitIndex);
+        for(int i = 0; i < unitPatternCount; i++){
+            int patternIndex = alignment.getPatternInUnit(unitIndex, i);
+            int weight = alignment.getPatternWeightInUnit(unitIndex, i);
+            logPs[prevCluster] -= weight*prevTreeLik.getPatternLogLikelihood(patternIndex);
+            logPs[currCluster] += weight*currTreeLik.getPatternLogLikelihood(patternIndex);
+        }
+    }
+
+    /*
+     * Returns the sum of the log-likelihoods of the clusters, after the weights of the moves have been applied to the likelihoods.
+     */
+    public double getLogP(List<NewWVTreeLikelihood> treeLiks){
+        updateCount++;
+        if(updateCount >= resumInterval){
+            for(int i = 0; i < logPs.length; i++){
+                if(changed[i]){
+                    logPs[i] = sumPatternLogLikelihoods(treeLiks.get(i));
+                    changed[i] = false;
+                }
+            }
+            updateCount = 0;
+        }
+
+        double logP = 0.0;
+        for(double clusterLogP: logPs){
+            logP += clusterLogP;
+        }
+        return logP;
+    }
+
+    public double getClusterLogP(int cluster){
+        return logPs[cluster];
+    }
+
+    /*
+     * Sums the log-likelihoods of the patterns of a likelihood with its current pattern weights.
+     */
+    public static double sumPatternLogLikelihoods(NewWVTreeLikelihood treeLik){
+        int[] weights = treeLik.getPatternWeights();
+        double logP = 0.0;
+        for(int i = 0; i < weights.length; i++){
+            if(weights[i] != 0){
+                logP += weights[i]*treeLik.getPatternLogLikelihood(i);
+            }
+        }
+        return logP;
+    }
+
+    public void store(){
+        if(storedLogPs.length != logPs.length){
+            storedLogPs = new double[logPs.length];
+            storedChanged = new boolean[logPs.length];
+        }
+        System.arraycopy(logPs, 0, storedLogPs, 0, logPs.length);
+        System.arraycopy(changed, 0, storedChanged, 0, changed.length);
+        storedUpdateCount = updateCount;
+    }
+
+    public void restore(){
+        double[] tempLogPs = logPs;
+        logPs = storedLogPs;
+        storedLogPs = tempLogPs;
+        boolean[] tempChanged = changed;
+        changed = storedChanged;
+        storedChanged = tempChanged;
+        updateCount = storedUpdateCount;
+    }
+
+}
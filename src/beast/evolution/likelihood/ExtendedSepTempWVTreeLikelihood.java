@@ -1,15 +1,16 @@
 package beast.evolution.likelihood;
 
-import beast.core.parameter.QuietRealParameter;
+import beast.core.Input;
 import beast.core.parameter.RealParameter;
 import beast.evolution.alignment.GeneralUnitAlignment;
 import beast.evolution.sitemodel.DPNtdBMAGIBMASepSiteModel;
 import beast.evolution.sitemodel.DummySiteModel;
 import beast.evolution.sitemodel.QuietGammaSiteBMA;
+import beast.evolution.substitutionmodel.SubstitutionModel;
 import beast.evolution.substitutionmodel.SwitchingNtdBMA;
+import beast.evolution.substitutionmodel.ThreadSafeSubstitutionModel;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 
 /**
  * Created by IntelliJ IDEA.
@@ -19,6 +20,41 @@ import java.util.HashMap;
  * To change this template use File | Settings | File Templates.
  */
 public class ExtendedSepTempWVTreeLikelihood extends SepTempWVTreeLikelihood{
+    public Input<GeneralUnitDPSepTreeLikelihood> dpTreeLikelihoodInput = new Input<GeneralUnitDPSepTreeLikelihood>(
+            "dpTreeLikelihood",
+            "The DP tree likelihood whose transition matrix cache, if any, is used for the models of the clusters. " +
+                    "The models must not have changed since its last calculation, " +
+                    "as when the clusters in the current state are evaluated."
+    );
+
+    //Groups the sites by their clusters, reused by every call.
+    protected ClusterGrouping clusterGrouping;
+    //The pattern weights of a unit, reused by every call.
+    protected int[] unitPatternWeights;
+    //The view of the model of a cluster used by calculateLogPs when it runs at the same time as other likelihoods.
+    protected ThreadSafeSubstitutionModel threadSafeModel;
+    //The view of the model of a cluster through the transition matrix cache of the DP tree likelihood.
+    protected CachedSubstitutionModel cachedModel;
+
+    public void initAndValidate() throws Exception{
+        super.initAndValidate();
+        if(dpTreeLikelihoodInput.get() != null && dpTreeLikelihoodInput.get().getTransitionMatrixCache() != null){
+            cachedModel = new CachedSubstitutionModel(null, dpTreeLikelihoodInput.get().getTransitionMatrixCache());
+        }
+    }
+
+    /*
+     * Makes calculateLogPs read the models of the clusters through a view of its own (see ThreadSafeSubstitutionModel),
+     * so that it can run at the same time as the other copies of the temporary likelihood (see TempLikelihoodContext),
+     * which set it once when they are built.
+     */
+    public void setConcurrent(boolean concurrent){
+        if(!concurrent){
+            threadSafeModel = null;
+        }else if(threadSafeModel == null){
+            threadSafeModel = new ThreadSafeSubstitutionModel();
+        }
+    }
 
     public double[] calculateLogP (
             RealParameter rateParameter,
@@ -27,69 +63,28 @@ public class ExtendedSepTempWVTreeLikelihood extends SepTempWVTreeLikelihood{
 
         double[] logPs = new double[siteIndex.length];
 
+        //Group the sites by the ID numbers of their substModels
+        ClusterGrouping grouping = resetClusterGrouping(siteIndex.length);
+        for(int i = 0; i < siteIndex.length;i++){
+            SwitchingNtdBMA ntdBMA = ((SwitchingNtdBMA)dpNtdRateSepSiteModel.getModel(alignment.getUnitBySite(siteIndex[i])));
+            int group = grouping.add(ntdBMA.getIDNumber(), i);
+            //increment the weight of the pattern at site siteIndex[i] by 1
+            grouping.addPatternWeight(group, alignment.getPatternIndex(siteIndex[i]), 1);
+        }
 
+        int substModelCount = grouping.getGroupCount();
 
-            //Stores a list of subst models
-            ArrayList<SwitchingNtdBMA> ntdBMAMap = new ArrayList<SwitchingNtdBMA>();
-            //Stores the ID number of the substModel and pattern weights
-            HashMap<Integer,int[]> clusterWeightsMap = new HashMap<Integer,int[]>();
-            //Stores the ID number of the substModel and the sites with that model
-            HashMap<Integer, ArrayList<Integer>> clusterSitesMap = new HashMap<Integer, ArrayList<Integer>>();
-
-            int patternIndex;
-            int modelID;
-
-            for(int i = 0; i < siteIndex.length;i++){
-
-                patternIndex = alignment.getPatternIndex(siteIndex[i]);
-                //System.out.println((SwitchingNtdBMA)dpNtdRateSepSiteModel.getModel(siteIndex[i]));
-                SwitchingNtdBMA ntdBMA = ((SwitchingNtdBMA)dpNtdRateSepSiteModel.getModel(alignment.getUnitBySite(siteIndex[i])));
-                modelID = ntdBMA.getIDNumber();
-
-                if(clusterWeightsMap.containsKey(modelID)){
-                    //increment the weight of the pattern at site siteIndex[i] by 1
-                    clusterWeightsMap.get(modelID)[patternIndex]++;
-                    //add the site to the cluster
-                    clusterSitesMap.get(modelID).add(i);
-
-                }else{
-                    //Create a new pattern weights vector
-                    int[] patternWeights = new int[alignment.getPatternCount()];
-                    //Increment the weight of the pattern at site siteIndex[i]
-                    patternWeights[patternIndex]++;
-                    //Add the new pattern weight vector to the HashMap
-                    clusterWeightsMap.put(modelID,patternWeights);
-
-                    //Add the new substModel to the array list
-                    ntdBMAMap.add(ntdBMA);
-
-                    //Create a new array list to store sites
-                    ArrayList<Integer> clusterSites = new ArrayList<Integer>();
-                    //Add site index to the corresponding list
-                    clusterSites.add(i);
-                    //Put the list in the HashMap
-                    clusterSitesMap.put(modelID,clusterSites);
-                }
-
-            }
-
-            int substModelCount = ntdBMAMap.size();
-            int site;
+        for(int i = 0; i < substModelCount;i++){
 
-            for(int i = 0; i < substModelCount;i++){
+            //The substModel of the group is that of its first site
+            int firstSite = siteIndex[grouping.getFirstPosition(i)];
+            setClusterModel(dpNtdRateSepSiteModel.getModel(alignment.getUnitBySite(firstSite)));
+            ((DummySiteModel)m_siteModel).getRateParameter().setValueQuietly(0,rateParameter.getValue());
+            setPatternWeights(grouping.getPatternWeights(i));
+            calculateLogP();
 
-                m_siteModel.m_pSubstModel.setValue(ntdBMAMap.get(i), m_siteModel);
-                ((DummySiteModel)m_siteModel).getRateParameter().setValueQuietly(0,rateParameter.getValue());
-                modelID = ntdBMAMap.get(i).getIDNumber();
-                setPatternWeights(clusterWeightsMap.get(modelID));
-                calculateLogP();
-
-                ArrayList<Integer> arrayIndex = clusterSitesMap.get(modelID);
-                for(Integer index:arrayIndex){
-                    site = siteIndex[index];
-                    logPs[index] = m_fPatternLogLikelihoods[m_data.get().getPatternIndex(site)] ;
-                }
-            }
+            setGroupLogLikelihoods(alignment, grouping, i, siteIndex, logPs);
+        }
 
 
         return logPs;
@@ -134,65 +129,27 @@ public class ExtendedSepTempWVTreeLikelihood extends SepTempWVTreeLikelihood{
         setModelParameterVals(modelParameters,modelCode,freqs);
 
         try{
-            //Stores a list of rates
-            ArrayList<QuietRealParameter> rates = new ArrayList<QuietRealParameter>();
-            //Stores the ID number of the substModel and pattern weights
-            HashMap<Integer,int[]> clusterWeightsMap = new HashMap<Integer,int[]>();
-            //Stores the ID number of the substModel and the sites with that model
-            HashMap<Integer, ArrayList<Integer>> clusterSitesMap = new HashMap<Integer, ArrayList<Integer>>();
-
-            int patternIndex;
-            int rateID;
-
+            //Group the sites by the ID numbers of their rates
+            ClusterGrouping grouping = resetClusterGrouping(siteIndex.length);
             for(int i = 0; i < siteIndex.length;i++){
-
-                patternIndex = alignment.getPatternIndex(siteIndex[i]);
-                QuietRealParameter rate = dpNtdRateSepSiteModel.getRate(alignment.getUnitBySite(siteIndex[i]));
-                rateID = rate.getIDNumber();
-
-                if(clusterWeightsMap.containsKey(rateID)){
-                    //increment the weight of the pattern at site siteIndex[i] by 1
-                    clusterWeightsMap.get(rateID)[patternIndex]++;
-                    //add the site to the cluster
-                    clusterSitesMap.get(rateID).add(i);
-
-                }else{
-                    //Create a new pattern weights vector
-                    int[] patternWeights = new int[alignment.getPatternCount()];
-                    //Increment the weight of the pattern at site siteIndex[i]
-                    patternWeights[patternIndex]++;
-                    //Add the new pattern weight vector to the HashMap
-                    clusterWeightsMap.put(rateID,patternWeights);
-
-                    //Add the new substModel to the array list
-                    rates.add(rate);
-
-                    //Create a new array list to store sites
-                    ArrayList<Integer> clusterSites = new ArrayList<Integer>();
-                    //Add site index to the corresponding list
-                    clusterSites.add(i);
-                    //Put the list in the HashMap
-                    clusterSitesMap.put(rateID,clusterSites);
-                }
-
+                int rateID = dpNtdRateSepSiteModel.getRate(alignment.getUnitBySite(siteIndex[i])).getIDNumber();
+                int group = grouping.add(rateID, i);
+                //increment the weight of the pattern at site siteIndex[i] by 1
+                grouping.addPatternWeight(group, alignment.getPatternIndex(siteIndex[i]), 1);
             }
 
-            int rateCount = rates.size();
-            int site;
+            int rateCount = grouping.getGroupCount();
 
             for(int i = 0; i < rateCount;i++){
 
+                //The rate of the group is that of its first site
+                int firstSite = siteIndex[grouping.getFirstPosition(i)];
                 m_siteModel.m_pSubstModel.setValue(substModel, m_siteModel);
-                ((DummySiteModel)m_siteModel).getRateParameter().setValueQuietly(0,rates.get(i).getValue());
-                rateID = rates.get(i).getIDNumber();
-                setPatternWeights(clusterWeightsMap.get(rateID));
+                ((DummySiteModel)m_siteModel).getRateParameter().setValueQuietly(0,dpNtdRateSepSiteModel.getRate(alignment.getUnitBySite(firstSite)).getValue());
+                setPatternWeights(grouping.getPatternWeights(i));
                 calculateLogP();
 
-                ArrayList<Integer> arrayIndex = clusterSitesMap.get(rateID);
-                for(Integer index:arrayIndex){
-                    site = siteIndex[index];
-                    logPs[index] = m_fPatternLogLikelihoods[m_data.get().getPatternIndex(site)] ;
-                }
+                setGroupLogLikelihoods(alignment, grouping, i, siteIndex, logPs);
             }
 
         }catch(Exception e){
@@ -216,93 +173,34 @@ public class ExtendedSepTempWVTreeLikelihood extends SepTempWVTreeLikelihood{
         setModelParameterVals(modelParameters,modelCode,freqs);
 
         try{
-            //Stores a list of rates
-            ArrayList<Double> rates = new ArrayList<Double>();
-            ArrayList<Double> alpha = new ArrayList<Double>();
-            ArrayList<Double> invPr = new ArrayList<Double>();
-            ArrayList<Double> siteModelChoice = new ArrayList<Double>();
-            ArrayList<Integer> rateIDs = new ArrayList<Integer>();
-
-            //Stores the ID number of the substModel and pattern weights
-            HashMap<Integer,int[]> clusterWeightsMap = new HashMap<Integer,int[]>();
-            //Stores the ID number of the substModel and the sites with that model
-            HashMap<Integer, ArrayList<Integer>> clusterSitesMap = new HashMap<Integer, ArrayList<Integer>>();
-
-            int patternIndex;
-            int rateID;
-
-
             DPNtdBMAGIBMASepSiteModel dpSiteModel = (DPNtdBMAGIBMASepSiteModel) dpNtdRateSepSiteModel;
 
+            //Group the sites by the ID numbers of their rates
+            ClusterGrouping grouping = resetClusterGrouping(siteIndex.length);
             for(int i = 0; i < siteIndex.length;i++){
-
-                patternIndex = alignment.getPatternIndex(siteIndex[i]);
-                //QuietRealParameter rate = dpSiteModel.getRate(alignment.getUnitBySite(siteIndex[i]));
-                rateID = dpSiteModel.getRateID(alignment.getUnitBySite(siteIndex[i]));
-
-                if(clusterWeightsMap.containsKey(rateID)){
-                    //increment the weight of the pattern at site siteIndex[i] by 1
-                    clusterWeightsMap.get(rateID)[patternIndex]++;
-                    //add the site to the cluster
-                    clusterSitesMap.get(rateID).add(i);
-
-                }else{
-                    //Create a new pattern weights vector
-                    int[] patternWeights = new int[alignment.getPatternCount()];
-                    //Increment the weight of the pattern at site siteIndex[i]
-                    patternWeights[patternIndex]++;
-                    //Add the new pattern weight vector to the HashMap
-                    clusterWeightsMap.put(rateID,patternWeights);
-
-                    //Add the new substModel to the array list
-                    double rateVal = dpSiteModel.getRateValue(alignment.getUnitBySite(siteIndex[i]));
-                    double alphaVal = dpSiteModel.getAlphaValue(alignment.getUnitBySite(siteIndex[i]));
-                    double invPrVal = dpSiteModel.getInvPrValue(alignment.getUnitBySite(siteIndex[i]));
-                    double siteModelChoiceVal = dpSiteModel.getModelChoiceValue(alignment.getUnitBySite(siteIndex[i]));
-                    rates.add(rateVal);
-                    alpha.add(alphaVal);
-                    invPr.add(invPrVal);
-                    siteModelChoice.add(siteModelChoiceVal);
-                    rateIDs.add(rateID);
-
-
-                    //Create a new array list to store sites
-                    ArrayList<Integer> clusterSites = new ArrayList<Integer>();
-                    //Add site index to the corresponding list
-                    clusterSites.add(i);
-                    //Put the list in the HashMap
-                    clusterSitesMap.put(rateID,clusterSites);
-                }
-
+                int rateID = dpSiteModel.getRateID(alignment.getUnitBySite(siteIndex[i]));
+                int group = grouping.add(rateID, i);
+                //increment the weight of the pattern at site siteIndex[i] by 1
+                grouping.addPatternWeight(group, alignment.getPatternIndex(siteIndex[i]), 1);
             }
 
-            int rateCount = rates.size();
-            int site;
+            int rateCount = grouping.getGroupCount();
 
             for(int i = 0; i < rateCount;i++){
 
+                //The rate, alpha, invPr and site model choice of the group are those of its first site
+                int firstUnit = alignment.getUnitBySite(siteIndex[grouping.getFirstPosition(i)]);
                 m_siteModel.m_pSubstModel.setValue(substModel, m_siteModel);
-                ((QuietGammaSiteBMA)m_siteModel).setMuValueQuietly(rates.get(i));
-                ((QuietGammaSiteBMA)m_siteModel).setShapeValueQuietly(alpha.get(i));
-                ((QuietGammaSiteBMA)m_siteModel).setInvPrValueQuietly(invPr.get(i));
-                ((QuietGammaSiteBMA)m_siteModel).setModelChoiceQuietly(siteModelChoice.get(i));
+                ((QuietGammaSiteBMA)m_siteModel).setMuValueQuietly(dpSiteModel.getRateValue(firstUnit));
+                ((QuietGammaSiteBMA)m_siteModel).setShapeValueQuietly(dpSiteModel.getAlphaValue(firstUnit));
+                ((QuietGammaSiteBMA)m_siteModel).setInvPrValueQuietly(dpSiteModel.getInvPrValue(firstUnit));
+                ((QuietGammaSiteBMA)m_siteModel).setModelChoiceQuietly(dpSiteModel.getModelChoiceValue(firstUnit));
                 ((QuietGammaSiteBMA)m_siteModel).setRatesKnown(false);
 
-                /*System.out.println("rate: "+rates.get(i));
-                System.out.println("alpha: "+alpha.get(i));
-                System.out.println("invPr: "+invPr.get(i));
-                System.out.println("siteModel: "+siteModelChoice.get(i));*/
-
-                //rateID = rates.get(i).getIDNumber();
-                setPatternWeights(clusterWeightsMap.get(rateIDs.get(i)));
+                setPatternWeights(grouping.getPatternWeights(i));
                 calculateLogP();
 
-                //ArrayList<Integer> arrayIndex = clusterSitesMap.get(rateID);
-                ArrayList<Integer> arrayIndex = clusterSitesMap.get(rateIDs.get(i));
-                for(Integer index:arrayIndex){
-                    site = siteIndex[index];
-                    logPs[index] = m_fPatternLogLikelihoods[m_data.get().getPatternIndex(site)] ;
-                }
+                setGroupLogLikelihoods(alignment, grouping, i, siteIndex, logPs);
             }
 
         }catch(Exception e){
@@ -327,78 +225,136 @@ public class ExtendedSepTempWVTreeLikelihood extends SepTempWVTreeLikelihood{
 
         double[] logPs = new double[siteIndex.length];
 
+        //Group the sites by the ID numbers of their substModels
+        ClusterGrouping grouping = resetClusterGrouping(siteIndex.length);
+        for(int i = 0; i < siteIndex.length;i++){
+            SwitchingNtdBMA ntdBMA = ((SwitchingNtdBMA)dpNtdRateSepSiteModel.getModel(alignment.getUnitBySite(siteIndex[i])));
+            int group = grouping.add(ntdBMA.getIDNumber(), i);
+            //increment the weight of the pattern at site siteIndex[i] by 1
+            grouping.addPatternWeight(group, alignment.getPatternIndex(siteIndex[i]), 1);
+        }
 
+        int substModelCount = grouping.getGroupCount();
 
-            //Stores a list of subst models
-            ArrayList<SwitchingNtdBMA> ntdBMAMap = new ArrayList<SwitchingNtdBMA>();
-            //Stores the ID number of the substModel and pattern weights
-            HashMap<Integer,int[]> clusterWeightsMap = new HashMap<Integer,int[]>();
-            //Stores the ID number of the substModel and the sites with that model
-            HashMap<Integer, ArrayList<Integer>> clusterSitesMap = new HashMap<Integer, ArrayList<Integer>>();
+        for(int i = 0; i < substModelCount;i++){
 
-            int patternIndex;
-            int modelID;
+            //The substModel of the group is that of its first site
+            int firstSite = siteIndex[grouping.getFirstPosition(i)];
+            setClusterModel(dpNtdRateSepSiteModel.getModel(alignment.getUnitBySite(firstSite)));
+            ((QuietGammaSiteBMA)m_siteModel).setMuValueQuietly(rate);
+            ((QuietGammaSiteBMA)m_siteModel).setShapeValueQuietly(alpha);
+            ((QuietGammaSiteBMA)m_siteModel).setInvPrValueQuietly(invPr);
+            ((QuietGammaSiteBMA)m_siteModel).setModelChoiceQuietly(siteModelChoice);
+            ((QuietGammaSiteBMA)m_siteModel).setRatesKnown(false);
 
-            for(int i = 0; i < siteIndex.length;i++){
+            setPatternWeights(grouping.getPatternWeights(i));
+            calculateLogP();
 
-                patternIndex = alignment.getPatternIndex(siteIndex[i]);
-                //System.out.println((SwitchingNtdBMA)dpNtdRateSepSiteModel.getModel(siteIndex[i]));
-                SwitchingNtdBMA ntdBMA = ((SwitchingNtdBMA)dpNtdRateSepSiteModel.getModel(alignment.getUnitBySite(siteIndex[i])));
-                modelID = ntdBMA.getIDNumber();
-
-                if(clusterWeightsMap.containsKey(modelID)){
-                    //increment the weight of the pattern at site siteIndex[i] by 1
-                    clusterWeightsMap.get(modelID)[patternIndex]++;
-                    //add the site to the cluster
-                    clusterSitesMap.get(modelID).add(i);
-
-                }else{
-                    //Create a new pattern weights vector
-                    int[] patternWeights = new int[alignment.getPatternCount()];
-                    //Increment the weight of the pattern at site siteIndex[i]
-                    patternWeights[patternIndex]++;
-                    //Add the new pattern weight vector to the HashMap
-                    clusterWeightsMap.put(modelID,patternWeights);
-
-                    //Add the new substModel to the array list
-                    ntdBMAMap.add(ntdBMA);
-
-                    //Create a new array list to store sites
-                    ArrayList<Integer> clusterSites = new ArrayList<Integer>();
-                    //Add site index to the corresponding list
-                    clusterSites.add(i);
-                    //Put the list in the HashMap
-                    clusterSitesMap.put(modelID,clusterSites);
-                }
+            setGroupLogLikelihoods(alignment, grouping, i, siteIndex, logPs);
+        }
 
-            }
 
-            int substModelCount = ntdBMAMap.size();
-            int site;
+        return logPs;
 
-            for(int i = 0; i < substModelCount;i++){
+    }
 
-                m_siteModel.m_pSubstModel.setValue(ntdBMAMap.get(i), m_siteModel);
-                //((DummySiteModel)m_siteModel).getRateParameter().setValueQuietly(0,rateParameter.getValue());
-                ((QuietGammaSiteBMA)m_siteModel).setMuValueQuietly(rate);
-                ((QuietGammaSiteBMA)m_siteModel).setShapeValueQuietly(alpha);
-                ((QuietGammaSiteBMA)m_siteModel).setInvPrValueQuietly(invPr);
-                ((QuietGammaSiteBMA)m_siteModel).setModelChoiceQuietly(siteModelChoice);
-                ((QuietGammaSiteBMA)m_siteModel).setRatesKnown(false);
+    /*
+     * Calculates the log-likelihoods of a unit under the candidate values from "from" up to but excluding "to",
+     * which are written to logPs from the offset onwards.
+     * The unit is in a single ntdBMA cluster, so the model and the pattern weights are set once for all the candidates,
+     * after which each candidate still takes one traversal of the tree, as its site model changes every matrix.
+     */
+    public void calculateLogPs(
+            RealParameter[] alpha,
+            RealParameter[] invPr,
+            RealParameter[] rate,
+            RealParameter[] siteModelChoice,
+            int from,
+            int to,
+            int unit,
+            double[] logPs,
+            int offset) throws Exception{
 
-                modelID = ntdBMAMap.get(i).getIDNumber();
-                setPatternWeights(clusterWeightsMap.get(modelID));
-                calculateLogP();
+        GeneralUnitAlignment alignment = (GeneralUnitAlignment)m_data.get();
+        setClusterModel(dpNtdRateSepSiteModel.getModel(unit));
+        setUnitPatternWeights(alignment, unit);
+
+        //Only the site model changes between the candidates.
+        for(int candidate = from; candidate < to; candidate++){
+            ((QuietGammaSiteBMA)m_siteModel).setMuValueQuietly(rate[candidate].getValue());
+            ((QuietGammaSiteBMA)m_siteModel).setShapeValueQuietly(alpha[candidate].getValue());
+            ((QuietGammaSiteBMA)m_siteModel).setInvPrValueQuietly(invPr[candidate].getValue());
+            ((QuietGammaSiteBMA)m_siteModel).setModelChoiceQuietly(siteModelChoice[candidate].getValue());
+            ((QuietGammaSiteBMA)m_siteModel).setRatesKnown(false);
+            calculateLogP();
+
+            logPs[offset + candidate - from] = sumUnitPatternLogLikelihoods(alignment, unit);
+        }
 
-                ArrayList<Integer> arrayIndex = clusterSitesMap.get(modelID);
-                for(Integer index:arrayIndex){
-                    site = siteIndex[index];
-                    logPs[index] = m_fPatternLogLikelihoods[m_data.get().getPatternIndex(site)] ;
-                }
-            }
+    }
 
+    /*
+     * Sets the pattern weights to those of a unit, in a buffer that is reused by every call.
+     */
+    protected void setUnitPatternWeights(GeneralUnitAlignment alignment, int unit){
+        if(unitPatternWeights == null){
+            unitPatternWeights = new int[alignment.getPatternCount()];
+        }else{
+            Arrays.fill(unitPatternWeights, 0);
+        }
+        int unitPatternCount = alignment.getPatternCountGivenUnit(unit);
+        for(int j = 0; j < unitPatternCount; j++){
+            unitPatternWeights[alignment.getPatternInUnit(unit, j)] = alignment.getPatternWeightInUnit(unit, j);
+        }
+        setPatternWeights(unitPatternWeights);
+    }
 
-        return logPs;
+    /*
+     * Sums the pattern log-likelihoods of the most recent calculation over the patterns of a unit.
+     */
+    protected double sumUnitPatternLogLikelihoods(GeneralUnitAlignment alignment, int unit){
+        double logP = 0.0;
+        int unitPatternCount = alignment.getPatternCountGivenUnit(unit);
+        for(int j = 0; j < unitPatternCount; j++){
+            logP += alignment.getPatternWeightInUnit(unit, j)*m_fPatternLogLikelihoods[alignment.getPatternInUnit(unit, j)];
+        }
+        return logP;
+    }
 
+    /*
+     * Sets the model of a cluster as the model of the site model, read through the transition matrix cache if there is one,
+     * which is thread safe, otherwise through the thread safe view if the copies of this likelihood may run at the same time.
+     */
+    protected void setClusterModel(SubstitutionModel clusterModel){
+        if(cachedModel != null){
+            cachedModel.setModel(clusterModel);
+            m_siteModel.m_pSubstModel.setValue(cachedModel, m_siteModel);
+        }else if(threadSafeModel != null){
+            //The model of the cluster may be evaluated by the copies of this likelihood at the same time.
+            threadSafeModel.setModel(clusterModel);
+            m_siteModel.m_pSubstModel.setValue(threadSafeModel, m_siteModel);
+        }else{
+            m_siteModel.m_pSubstModel.setValue(clusterModel, m_siteModel);
+        }
+    }
+
+    /*
+     * Returns the cluster grouping, emptied for the given number of sites or units.
+     */
+    protected ClusterGrouping resetClusterGrouping(int positionCount){
+        if(clusterGrouping == null){
+            clusterGrouping = new ClusterGrouping(m_data.get().getPatternCount());
+        }
+        clusterGrouping.clear(positionCount);
+        return clusterGrouping;
+    }
+
+    /*
+     * Copies the pattern log-likelihoods of the most recent calculation to the sites of a group.
+     */
+    private void setGroupLogLikelihoods(GeneralUnitAlignment alignment, ClusterGrouping grouping, int group, int[] siteIndex, double[] logPs){
+        for(int index = grouping.getFirstPosition(group); index != -1; index = grouping.getNextPosition(index)){
+            logPs[index] = m_fPatternLogLikelihoods[alignment.getPatternIndex(siteIndex[index])];
+        }
     }
 }
@@ -1,14 +1,37 @@
 package beast.evolution.likelihood;
 
+import beast.core.Input;
 import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.GeneralUnitAlignment;
 import beast.evolution.sitemodel.DummySiteModel;
 import beast.evolution.sitemodel.QuietGammaSiteBMA;
+import beast.evolution.substitutionmodel.EigenDecomposition;
+import beast.evolution.substitutionmodel.EigenDecompositionCache;
 import beast.evolution.substitutionmodel.SwitchingNtdBMA;
+import beast.evolution.substitutionmodel.ThreadSafeSubstitutionModel;
+
+import java.util.Arrays;
 
 /**
  * @author Chieh-Hsi Wu
  */
 public class ExtendedTempWVTreeLikelihood extends TempWVTreeLikelihood {
+    public Input<Integer> eigenDecompositionCacheSizeInput = new Input<Integer>(
+            "eigenDecompositionCacheSize",
+            "The maximum number of eigen decompositions of the substitution model kept for parameter values " +
+                    "evaluated again (default 0, i.e. the decomposition is recalculated on every call).",
+            0
+    );
+
+    protected EigenDecompositionCache eigenCache;
+    //The view of the model that calculates the transition probabilities from the cached decompositions.
+    protected ThreadSafeSubstitutionModel decompositionModel;
+    //The parameter values of the decomposition looked up, reused by every call.
+    protected double[] decompositionKey = new double[10];
+    //The pattern weights of a unit and the log-likelihoods returned by calculateLogPs, reused by every call.
+    protected int[] unitPatternWeights;
+    protected double[] candidateLogPs;
+
     public double[] calculateLogP (
             RealParameter modelParameters,
             RealParameter modelCode,
@@ -26,6 +49,66 @@ public class ExtendedTempWVTreeLikelihood extends TempWVTreeLikelihood {
         return siteLogP;
     }
 
+    /*
+     * Calculates the log-likelihoods of a unit under each of the candidate parameter values from firstCandidate onwards,
+     * with the pattern weights of the unit set once for all the candidates.
+     * Each candidate still takes one traversal of the tree, as it changes both the substitution and the site model.
+     * The array returned is reused by the next call.
+     */
+    public double[] calculateLogPs(
+            RealParameter[] modelParameters,
+            RealParameter[] modelCode,
+            RealParameter[] freqs,
+            RealParameter[] alpha,
+            RealParameter[] invPr,
+            RealParameter[] rate,
+            RealParameter[] siteModelIndicator,
+            int firstCandidate,
+            GeneralUnitAlignment alignment,
+            int unit) throws Exception{
+        setUnitPatternWeights(alignment, unit);
+
+        int candidateCount = modelParameters.length - firstCandidate;
+        if(candidateLogPs == null || candidateLogPs.length != candidateCount){
+            candidateLogPs = new double[candidateCount];
+        }
+        for(int k = 0; k < candidateCount; k++){
+            int candidate = firstCandidate + k;
+            calculateLogP(
+                    modelParameters[candidate],
+                    modelCode[candidate],
+                    freqs[candidate],
+                    alpha[candidate],
+                    invPr[candidate],
+                    rate[candidate],
+                    siteModelIndicator[candidate]);
+
+            double logP = 0.0;
+            int unitPatternCount = alignment.getPatternCountGivenUnit(unit);
+            for(int j = 0; j < unitPatternCount; j++){
+                logP += alignment.getPatternWeightInUnit(unit, j)*m_fPatternLogLikelihoods[alignment.getPatternInUnit(unit, j)];
+            }
+            candidateLogPs[k] = logP;
+        }
+        return candidateLogPs;
+    }
+
+    /*
+     * Sets the pattern weights to those of a unit, in a buffer that is reused by every call.
+     */
+    protected void setUnitPatternWeights(GeneralUnitAlignment alignment, int unit){
+        if(unitPatternWeights == null){
+            unitPatternWeights = new int[alignment.getPatternCount()];
+        }else{
+            Arrays.fill(unitPatternWeights, 0);
+        }
+        int unitPatternCount = alignment.getPatternCountGivenUnit(unit);
+        for(int j = 0; j < unitPatternCount; j++){
+            unitPatternWeights[alignment.getPatternInUnit(unit, j)] = alignment.getPatternWeightInUnit(unit, j);
+        }
+        setPatternWeights(unitPatternWeights);
+    }
+
     public double calculateLogP(
             RealParameter modelParameters,
             RealParameter modelCode,
@@ -47,19 +130,61 @@ public class ExtendedTempWVTreeLikelihood extends TempWVTreeLikelihood {
         (substModel.getFreqs()).setValueQuietly(1,freqs.getValue(1));
         (substModel.getFreqs()).setValueQuietly(2,freqs.getValue(2));
         (substModel.getFreqs()).setValueQuietly(3,freqs.getValue(3));
-        substModel.setUpdateMatrix(true);
+        if(eigenDecompositionCacheSizeInput.get() > 0){
+            setCachedDecomposition(substModel, modelParameters, modelCode, freqs);
+        }else{
+            substModel.setUpdateMatrix(true);
+        }
         //((QuietGammaSiteBMA)m_siteModel).getRateParameter().setValueQuietly(0,rate.getValue());
         ((QuietGammaSiteBMA)m_siteModel).setMuValueQuietly(rate.getValue());
         ((QuietGammaSiteBMA)m_siteModel).setShapeValueQuietly(alpha.getValue());
         ((QuietGammaSiteBMA)m_siteModel).setInvPrValueQuietly(invPr.getValue());
         ((QuietGammaSiteBMA)m_siteModel).setModelChoiceQuietly(siteModelIndicator.getValue());
         ((QuietGammaSiteBMA)m_siteModel).setRatesKnown(false);
-        return calculateLogP();
+        calculateLogP();
+        return logP;
 
 
 
     }
 
+    /*
+     * Gives the site model a view of the substitution model with the decomposition of its parameter values,
+     * which is taken from the cache, or calculated by the model and added to the cache if it is not there.
+     */
+    protected void setCachedDecomposition(
+            SwitchingNtdBMA substModel,
+            RealParameter modelParameters,
+            RealParameter modelCode,
+            RealParameter freqs){
+        if(eigenCache == null){
+            eigenCache = new EigenDecompositionCache(eigenDecompositionCacheSizeInput.get());
+            decompositionModel = new ThreadSafeSubstitutionModel();
+        }
+
+        decompositionKey[0] = modelCode.getValue();
+        for(int i = 0; i < 5; i++){
+            decompositionKey[i + 1] = modelParameters.getValue(i);
+        }
+        for(int i = 0; i < 4; i++){
+            decompositionKey[i + 6] = freqs.getValue(i);
+        }
+
+        EigenDecomposition decomposition = eigenCache.get(decompositionKey);
+        if(decomposition == null){
+            substModel.setUpdateMatrix(true);
+            decomposition = substModel.getEigenDecomposition(null);
+            eigenCache.put(decompositionKey, decomposition);
+        }
+        decompositionModel.setModel(substModel, decomposition);
+        m_siteModel.m_pSubstModel.setValue(decompositionModel, m_siteModel);
+    }
 
+    /*
+     * Returns the cache of eigen decompositions, which has the counts of hits and misses, or null if it is not used.
+     */
+    public EigenDecompositionCache getEigenDecompositionCache(){
+        return eigenCache;
+    }
 
 }
@@ -1,13 +1,17 @@
 package beast.evolution.likelihood;
 
 import beast.app.BeastMCMC;
+import beast.core.Input;
 import beast.core.MCMCNodeFactory;
 import beast.core.parameter.ChangeType;
 import beast.evolution.alignment.GeneralUnitAlignment;
 import beast.evolution.sitemodel.DPNtdRateSepSiteModel;
 import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.SubstitutionModel;
 import beast.evolution.substitutionmodel.SwitchingNtdBMA;
 
+import java.util.Arrays;
+
 /**
  * Created by IntelliJ IDEA.
  * User: cwu080
@@ -16,6 +20,36 @@ import beast.evolution.substitutionmodel.SwitchingNtdBMA;
  * To change this template use File | Settings | File Templates.
  */
 public class GeneralUnitDPSepTreeLikelihood extends DPSepTreeLikelihood {
+    public Input<Integer> treeLikelihoodPoolSizeInput = new Input<Integer>(
+            "treeLikelihoodPoolSize",
+            "The maximum number of likelihoods of removed ntdBMA/rate combinations that are kept for reuse by new combinations.",
+            0
+    );
+
+    public Input<Double> sparsePatternFractionInput = new Input<Double>(
+            "sparsePatternFraction",
+            "The likelihood of a ntdBMA/rate combination is calculated over its patterns with non-zero weights only, " +
+                    "if they are no more than this fraction of all the patterns (default 0, i.e. never).",
+            0.0
+    );
+
+    public Input<Integer> transitionMatrixCacheSizeInput = new Input<Integer>(
+            "transitionMatrixCacheSize",
+            "The maximum number of transition probability matrices shared by the likelihoods of the combinations. " +
+                    "The matrices of the ntdBMA clusters are also read through the cache by the temporary likelihoods " +
+                    "given this likelihood. " +
+                    "The default is 0, i.e. no cache.",
+            0
+    );
+
+    protected UnitClassLogLikelihoodMemo unitClassMemo;
+    protected NewWVTreeLikelihoodPool treeLikPool;
+    protected PatternWeightTransfer weightTransfer;
+    //The likelihoods of the ntdBMA/rate combinations in use.
+    protected TreeLikelihoodCombinationMap combinations;
+    //Divides the calculation of the cluster likelihoods among the threads when useThreads is true.
+    protected ClusterLikelihoodScheduler scheduler;
+    protected TransitionMatrixCache matrixCache;
 
     public void initAndValidate() throws Exception{
         useThreads = useThreadsInput.get() && (BeastMCMC.m_nThreads > 1);
@@ -30,24 +64,53 @@ public class GeneralUnitDPSepTreeLikelihood extends DPSepTreeLikelihood {
         int siteModelCount = dpSiteModel.getSiteModelCount();
 
         /*
-         * Set up a 3 dimensional array to store the weights of each ntdBMA/rate combination (dimensions: ntdBMA, rates, weights).
+         * Set up the weights of each ntdBMA/rate combination in use, found by binary search of its key
+         * (see TreeLikelihoodCombinationMap.getKey) among the sorted keys of the site models.
          */
-        int[][][]clusterWeights = new int[dpSiteModel.getSubstClusterLimit()][dpSiteModel.getRatesClusterLimit()][patternCount];
+        long[] combinationKeys = new long[siteModelCount];
+        for(int i = 0; i < siteModelCount; i++){
+            int ntdBMAId = ((SwitchingNtdBMA)dpSiteModel.getSiteModel(i).getSubstitutionModel()).getIDNumber();
+            int ratesId = dpSiteModel.getSiteModel(i).getRateParameter().getIDNumber();
+            combinationKeys[i] = TreeLikelihoodCombinationMap.getKey(ntdBMAId, ratesId);
+        }
+        long[] sortedKeys = combinationKeys.clone();
+        Arrays.sort(sortedKeys);
+        int[][] clusterWeights = new int[siteModelCount][patternCount];
         int[] clusterIds;
-        int siteCount = alignment.getSiteCount();
-        for(int i = 0; i < siteCount; i++){
-            clusterIds = dpSiteModel.getCurrClusters(((GeneralUnitAlignment)alignment).getUnitBySite(i));
-            clusterWeights[clusterIds[DPNtdRateSepSiteModel.NTDBMA]][clusterIds[DPNtdRateSepSiteModel.RATES]][alignment.getPatternIndex(i)]++;
+        GeneralUnitAlignment guAlignment = (GeneralUnitAlignment)alignment;
+        int unitCount = guAlignment.getUnitCount();
+        for(int i = 0; i < unitCount; i++){
+            clusterIds = dpSiteModel.getCurrClusters(i);
+            long key = TreeLikelihoodCombinationMap.getKey(clusterIds[DPNtdRateSepSiteModel.NTDBMA], clusterIds[DPNtdRateSepSiteModel.RATES]);
+            int[] weights = clusterWeights[Arrays.binarySearch(sortedKeys, key)];
+            int unitPatternCount = guAlignment.getPatternCountGivenUnit(i);
+            for(int j = 0; j < unitPatternCount; j++){
+                weights[guAlignment.getPatternInUnit(i, j)] += guAlignment.getPatternWeightInUnit(i, j);
+            }
+        }
+
+        treeLikPool = new NewWVTreeLikelihoodPool(
+                alignment,
+                m_tree.get(),
+                useAmbiguitiesInput.get(),
+                m_pBranchRateModel.get(),
+                treeLikelihoodPoolSizeInput.get(),
+                sparsePatternFractionInput.get());
+        if(transitionMatrixCacheSizeInput.get() > 0){
+            matrixCache = new TransitionMatrixCache(transitionMatrixCacheSizeInput.get());
+            treeLikPool.setTransitionMatrixCache(matrixCache);
         }
 
         /*
          *  Traverse through the list site models and create tree likelihoods.
-         *  The tree likelihoods are then added to a list and the matrix.
+         *  The tree likelihoods are then added to a list and the combination map.
          *  The order of likelihoods in the list corresponds to that of site models in the DPSiteModel list.
          */
-        //treeLiksMatrix = new WVTreeLikelihood[dpSiteModel.getSubstClusterLimit()][dpSiteModel.getRatesClusterLimit()];
-        treeLiksMatrix = new NewWVTreeLikelihood[dpSiteModel.getSubstClusterLimit()][dpSiteModel.getRatesClusterLimit()];
-        storedTreeLiksMatrix = new NewWVTreeLikelihood[dpSiteModel.getSubstClusterLimit()][dpSiteModel.getRatesClusterLimit()];
+        //The matrices of the super class are replaced by the combination map, which only holds the combinations in use.
+        //They are left empty, and the inherited methods that index them are overridden below.
+        treeLiksMatrix = new NewWVTreeLikelihood[0][];
+        storedTreeLiksMatrix = new NewWVTreeLikelihood[0][];
+        combinations = new TreeLikelihoodCombinationMap();
         for(int i = 0; i < siteModelCount;i++){
 
             //Get the ids and hence the positions of siteModel/treeLikelihoods in a list
@@ -57,22 +120,23 @@ public class GeneralUnitDPSepTreeLikelihood extends DPSepTreeLikelihood {
             //Create the tree likelihood
             //WVTreeLikelihood treeLik = new WVTreeLikelihood(clusterWeights[ntdBMAId][ratesId]);
 
-            NewWVTreeLikelihood treeLik = new NewWVTreeLikelihood(
-                    clusterWeights[ntdBMAId][ratesId],
-                    alignment,
-                    m_tree.get(),
-                    useAmbiguitiesInput.get(),
-                    dpSiteModel.getSiteModel(i),
-                    m_pBranchRateModel.get());
+            NewWVTreeLikelihood treeLik = treeLikPool.create(
+                    clusterWeights[Arrays.binarySearch(sortedKeys, combinationKeys[i])],
+                    dpSiteModel.getSiteModel(i));
 
-            //Add to list and matrix for the convenience of processesing
+            //Add to list and map for the convenience of processesing
             treeLiks.add(treeLik);
-            treeLiksMatrix[ntdBMAId][ratesId] = treeLik;
-            storedTreeLiksMatrix[ntdBMAId][ratesId] = treeLik;
+            combinations.put(ntdBMAId, ratesId, treeLik);
         }
         if(!(alignment instanceof GeneralUnitAlignment)){
             throw new RuntimeException("Must use GeneralUnitAlignment object.");
         }
+        combinations.store();
+        unitClassMemo = new UnitClassLogLikelihoodMemo(guAlignment.getUnitClassCount());
+        weightTransfer = new PatternWeightTransfer(patternCount);
+        if(useThreads){
+            scheduler = new ClusterLikelihoodScheduler(BeastMCMC.m_nThreads, patternCount, m_tree.get().getNodeCount());
+        }
     }
 
 
@@ -82,28 +146,20 @@ public class GeneralUnitDPSepTreeLikelihood extends DPSepTreeLikelihood {
         int[] prevCategoryIds = dpSiteModel.getPrevClusters(dirtyUnit);
 
         //Create a new tree likelihood (with zero weights) when there is a new site model.
-        if(treeLiksMatrix[currCategoryIds[DPNtdRateSepSiteModel.NTDBMA]][currCategoryIds[DPNtdRateSepSiteModel.RATES]] == null){
+        if(combinations.get(currCategoryIds[DPNtdRateSepSiteModel.NTDBMA], currCategoryIds[DPNtdRateSepSiteModel.RATES]) == null){
             addTreeLikelihood(currCategoryIds[DPNtdRateSepSiteModel.NTDBMA],currCategoryIds[DPNtdRateSepSiteModel.RATES]);
         }
 
         //Move weight
 
-        int[] dirtySites = ((GeneralUnitAlignment)alignment).getSitesByUnit(dirtyUnit);
-        for(int dirtySite:dirtySites){
-            moveWeight(
-                prevCategoryIds[DPNtdRateSepSiteModel.NTDBMA],
-                prevCategoryIds[DPNtdRateSepSiteModel.RATES],
-                currCategoryIds[DPNtdRateSepSiteModel.NTDBMA],
-                currCategoryIds[DPNtdRateSepSiteModel.RATES],
-                dirtySite,
-                1
-            );
-        }
+        moveUnitWeight(prevCategoryIds, currCategoryIds, dirtyUnit);
+        weightTransfer.apply();
 
         //Remove likelihoods that have zero weights
         if(dpSiteModel.getCombinationWeight(prevCategoryIds[DPNtdRateSepSiteModel.NTDBMA], prevCategoryIds[DPNtdRateSepSiteModel.RATES]) == 0){
-            treeLiks.remove(treeLiksMatrix[prevCategoryIds[DPNtdRateSepSiteModel.NTDBMA]][prevCategoryIds[DPNtdRateSepSiteModel.RATES]]);
-            treeLiksMatrix[prevCategoryIds[DPNtdRateSepSiteModel.NTDBMA]][prevCategoryIds[DPNtdRateSepSiteModel.RATES]] = null;
+            NewWVTreeLikelihood removedTreeLik = combinations.remove(prevCategoryIds[DPNtdRateSepSiteModel.NTDBMA], prevCategoryIds[DPNtdRateSepSiteModel.RATES]);
+            treeLiks.remove(removedTreeLik);
+            treeLikPool.release(removedTreeLik);
         }
     }
 
@@ -113,14 +169,17 @@ public class GeneralUnitDPSepTreeLikelihood extends DPSepTreeLikelihood {
         for(int dirtyUnit:dirtyUnits){
             update(dirtyUnit);
         }
+        //Apply the weights moved by all the dirty units at once.
+        weightTransfer.apply();
 
         for(int dirtyUnit:dirtyUnits){
             int[] prevClusterIds = dpSiteModel.getPrevClusters(dirtyUnit);
 
             //Remove likelihoods that have zero weights
             if(dpSiteModel.getCombinationWeight(prevClusterIds[DPNtdRateSepSiteModel.NTDBMA], prevClusterIds[DPNtdRateSepSiteModel.RATES]) == 0){
-                treeLiks.remove(treeLiksMatrix[prevClusterIds[DPNtdRateSepSiteModel.NTDBMA]][prevClusterIds[DPNtdRateSepSiteModel.RATES]]);
-                treeLiksMatrix[prevClusterIds[DPNtdRateSepSiteModel.NTDBMA]][prevClusterIds[DPNtdRateSepSiteModel.RATES]] = null;
+                NewWVTreeLikelihood removedTreeLik = combinations.remove(prevClusterIds[DPNtdRateSepSiteModel.NTDBMA], prevClusterIds[DPNtdRateSepSiteModel.RATES]);
+                treeLiks.remove(removedTreeLik);
+                treeLikPool.release(removedTreeLik);
             }
         }
     }
@@ -131,26 +190,38 @@ public class GeneralUnitDPSepTreeLikelihood extends DPSepTreeLikelihood {
         int[] prevCategoryIds = dpSiteModel.getPrevClusters(dirtyUnit);
 
         //Create a new tree likelihood (with zero weights) when there is a new site model.
-        if(treeLiksMatrix[currCategoryIds[DPNtdRateSepSiteModel.NTDBMA]][currCategoryIds[DPNtdRateSepSiteModel.RATES]] == null){
+        if(combinations.get(currCategoryIds[DPNtdRateSepSiteModel.NTDBMA], currCategoryIds[DPNtdRateSepSiteModel.RATES]) == null){
             addTreeLikelihood(currCategoryIds[DPNtdRateSepSiteModel.NTDBMA],currCategoryIds[DPNtdRateSepSiteModel.RATES]);
         }
 
 
-        //Get sites associated with the dirty unit
-        int[] dirtySites = ((GeneralUnitAlignment)alignment).getSitesByUnit(dirtyUnit);
-        for(int dirtySite:dirtySites){
-            //Move weight
-            moveWeight(
-                prevCategoryIds[DPNtdRateSepSiteModel.NTDBMA],
-                prevCategoryIds[DPNtdRateSepSiteModel.RATES],
-                currCategoryIds[DPNtdRateSepSiteModel.NTDBMA],
-                currCategoryIds[DPNtdRateSepSiteModel.RATES],
-                dirtySite,
-                1
-            );
-        }
+        //Move the weights of the patterns associated with the dirty unit
+        moveUnitWeight(prevCategoryIds, currCategoryIds, dirtyUnit);
+
+
+    }
 
+    /*
+     * Collects the move of the pattern weights of a unit from the previous ntdBMA/rate combination to the current one,
+     * which is applied to the tree likelihoods by weightTransfer.apply().
+     */
+    protected void moveUnitWeight(int[] prevCategoryIds, int[] currCategoryIds, int unitIndex){
+        NewWVTreeLikelihood prevTreeLik = combinations.get(prevCategoryIds[DPNtdRateSepSiteModel.NTDBMA], prevCategoryIds[DPNtdRateSepSiteModel.RATES]);
+        NewWVTreeLikelihood currTreeLik = combinations.get(currCategoryIds[DPNtdRateSepSiteModel.NTDBMA], currCategoryIds[DPNtdRateSepSiteModel.RATES]);
+        weightTransfer.moveUnit((GeneralUnitAlignment)alignment, unitIndex, prevTreeLik, currTreeLik);
+    }
 
+    /*
+     * Moves the weight of the pattern of a site from one ntdBMA/rate combination to another,
+     * in place of the super class method, which indexes the matrices replaced by the combination map.
+     */
+    public void moveWeight(int prevNtdBMAId, int prevRateId, int currNtdBMAId, int currRateId, int siteIndex, int weight){
+        if(prevNtdBMAId == currNtdBMAId && prevRateId == currRateId){
+            return;
+        }
+        int patternIndex = alignment.getPatternIndex(siteIndex);
+        combinations.get(prevNtdBMAId, prevRateId).removeWeight(patternIndex, weight);
+        combinations.get(currNtdBMAId, currRateId).addWeight(patternIndex, weight);
     }
 
     public void addTreeLikelihood(int substModelID, int rateID){
@@ -162,13 +233,7 @@ public class GeneralUnitDPSepTreeLikelihood extends DPSepTreeLikelihood {
 
         //WVTreeLikelihood treeLik = new WVTreeLikelihood(patternWeights);
         //NewWVTreeLikelihood treeLik = new NewWVTreeLikelihood(patternWeights);
-        NewWVTreeLikelihood treeLik = new NewWVTreeLikelihood(
-                    patternWeights,
-                    alignment,
-                    m_tree.get(),
-                    useAmbiguitiesInput.get(),
-                    siteModel,
-                    m_pBranchRateModel.get());
+        NewWVTreeLikelihood treeLik = treeLikPool.acquire(patternWeights, siteModel);
         try{
 
 
@@ -176,7 +241,7 @@ public class GeneralUnitDPSepTreeLikelihood extends DPSepTreeLikelihood {
             treeLik.calculateLogP();
             treeLik.store();
             treeLiks.add(treeLik);
-            treeLiksMatrix[substModelID][rateID] = treeLik;
+            combinations.put(substModelID, rateID, treeLik);
         }catch(Exception e){
             throw new RuntimeException(e);
         }
@@ -187,7 +252,7 @@ public class GeneralUnitDPSepTreeLikelihood extends DPSepTreeLikelihood {
     @Override
     protected boolean requiresRecalculation() {
 
-
+        unitClassMemo.clear();
 
         boolean recalculate = false;
         if(dpSiteModel.isDirtyCalculation()){
@@ -231,6 +296,17 @@ public class GeneralUnitDPSepTreeLikelihood extends DPSepTreeLikelihood {
 
             }
 
+            //Discard the cached matrices that are no longer valid.
+            //A change of the tree or the branch rates only changes the distances of the matrices looked up.
+            if(matrixCache != null){
+                //The decomposition of a ntdBMA cluster is discarded once, whatever the number of its rate clusters.
+                for(TreeLikelihood treeLik:treeLiks){
+                    SubstitutionModel substModel = treeLik.m_siteModel.m_pSubstModel.get();
+                    if(substModel.isDirtyCalculation()){
+                        matrixCache.invalidate(substModel);
+                    }
+                }
+            }
 
         }
 
@@ -250,40 +326,84 @@ public class GeneralUnitDPSepTreeLikelihood extends DPSepTreeLikelihood {
 
     public double getSiteLogLikelihood(int inputType, int clusterID, int unitIndex){
         //System.out.println(getClass()+": "+unitIndex);
-        GeneralUnitAlignment alignment = (GeneralUnitAlignment)this.alignment;
-
-        double logP = 0.0;
-        //System.out.println("pattern: "+alignment.getPatternIndex(siteIndex));
         int[] currClusters = dpSiteModel.getCurrClusters(unitIndex);
         //System.out.println("clusterID: "+clusterID+" "+prevClusters[DPNtdRateSepSiteModel.RATES]+" "+alignment.getPatternIndex(siteIndex));
         if(inputType == DPNtdRateSepSiteModel.NTDBMA){
-            if(treeLiksMatrix[clusterID][currClusters[DPNtdRateSepSiteModel.RATES]] != null){
+            return getUnitLogLikelihood(clusterID, currClusters[DPNtdRateSepSiteModel.RATES], unitIndex);
+        }else{
+            return getUnitLogLikelihood(currClusters[DPNtdRateSepSiteModel.NTDBMA], clusterID, unitIndex);
+        }
 
-                NewWVTreeLikelihood tmpTL = treeLiksMatrix[clusterID][currClusters[DPNtdRateSepSiteModel.RATES]];
-                int[] sites = alignment.getSitesByUnit(unitIndex);
-                for(int site:sites){
-                    //System.out.println("site: "+site+", "+alignment.getPatternIndex(site)+", "+tmpTL.getPatternLogLikelihood(alignment.getPatternIndex(site)));
-                    logP += tmpTL.getPatternLogLikelihood(alignment.getPatternIndex(site));
-                }
+    }
 
-                return logP;
+    /*
+     * Returns the log-likelihood of a unit given the ntdBMA and rate clusters, or NaN if there is no such combination.
+     * The log-likelihoods are remembered for each combination and class of units until the state changes.
+     */
+    protected double getUnitLogLikelihood(int ntdBMAId, int rateId, int unitIndex){
+        NewWVTreeLikelihood tmpTL = combinations.get(ntdBMAId, rateId);
+        if(tmpTL == null){
+            return Double.NaN;
+        }
 
-            }
-        }else{
+        GeneralUnitAlignment alignment = (GeneralUnitAlignment)this.alignment;
+        long combination = TreeLikelihoodCombinationMap.getKey(ntdBMAId, rateId);
+        int unitClass = alignment.getUnitClass(unitIndex);
+        if(unitClassMemo.contains(combination, unitClass)){
+            return unitClassMemo.get(combination, unitClass);
+        }
 
-            if(treeLiksMatrix[currClusters[DPNtdRateSepSiteModel.NTDBMA]][clusterID] != null){
-                //WVTreeLikelihood tmpTL = treeLiksMatrix[prevClusters[DPNtdRateSepSiteModel.NTDBMA]][clusterID];
-                //System.out.println("hi!!");
-                NewWVTreeLikelihood tmpTL = treeLiksMatrix[currClusters[DPNtdRateSepSiteModel.NTDBMA]][clusterID];
-                int[] sites = alignment.getSitesByUnit(unitIndex);
-                for(int site:sites){
-                    logP += tmpTL.getPatternLogLikelihood(alignment.getPatternIndex(site));
-                }
-                return logP;
-            }
+        double logP = 0.0;
+        int unitPatternCount = alignment.getPatternCountGivenUnit(unitIndex);
+        for(int i = 0; i < unitPatternCount; i++){
+            logP += alignment.getPatternWeightInUnit(unitIndex, i)*
+                    tmpTL.getPatternLogLikelihood(alignment.getPatternInUnit(unitIndex, i));
         }
+        unitClassMemo.put(combination, unitClass, logP);
+        return logP;
+    }
 
-        return Double.NaN;
+    /*
+     * Prints the likelihoods of the combinations in use, in place of the super class method,
+     * which prints the matrices replaced by the combination map.
+     */
+    public void printThings(){
+        for(TreeLikelihood treeLik: treeLiks){
+            System.out.println(treeLik.m_siteModel.getID()+": "+treeLik.getCurrentLogP());
+        }
+    }
 
+    public TransitionMatrixCache getTransitionMatrixCache(){
+        return matrixCache;
+    }
+
+    @Override
+    public double calculateLogP() throws Exception{
+        if(scheduler == null){
+            return super.calculateLogP();
+        }
+
+        logP = scheduler.calculateLogP(treeLiks);
+        return logP;
+    }
+
+    public void store(){
+        unitClassMemo.clear();
+        combinations.store();
+        if(matrixCache != null){
+            matrixCache.store();
+        }
+        treeLikPool.store();
+        super.store();
+    }
+
+    public void restore(){
+        unitClassMemo.clear();
+        combinations.restore();
+        if(matrixCache != null){
+            matrixCache.restore();
+        }
+        treeLikPool.restore();
+        super.restore();
     }
-}
+}
\ No newline at end of file
@@ -1,6 +1,7 @@
 package beast.evolution.likelihood;
 
 import beast.app.BeastMCMC;
+import beast.core.Input;
 import beast.core.MCMCNodeFactory;
 import beast.core.parameter.ChangeType;
 import beast.evolution.alignment.GeneralUnitAlignment;
@@ -8,11 +9,58 @@ import beast.evolution.sitemodel.DPSiteModel;
 import beast.evolution.sitemodel.SiteModel;
 import sun.java2d.loops.FillRect;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
 /**
  * @author Chieh-Hsi Wu
  */
 public class GeneralUnitDPTreeLikelihood extends DPTreeLikelihood {
-
+    public Input<Boolean> weightOnlyUpdateInput = new Input<Boolean>(
+            "weightOnlyUpdate",
+            "Whether the likelihood of the clusters are updated from the pattern log-likelihoods " +
+                    "without traversing the tree when only the cluster memberships of units change.",
+            false
+    );
+
+    public Input<Integer> weightOnlyResumIntervalInput = new Input<Integer>(
+            "weightOnlyResumInterval",
+            "The number of weight only updates after which the likelihoods of the clusters changed by them " +
+                    "are summed again from their pattern log-likelihoods, so that rounding errors do not build up (default 100).",
+            100
+    );
+
+    public Input<Integer> treeLikelihoodPoolSizeInput = new Input<Integer>(
+            "treeLikelihoodPoolSize",
+            "The maximum number of likelihoods of removed clusters that are kept for reuse by new clusters.",
+            0
+    );
+
+    public Input<Double> sparsePatternFractionInput = new Input<Double>(
+            "sparsePatternFraction",
+            "The likelihood of a cluster is calculated over its patterns with non-zero weights only, " +
+                    "if they are no more than this fraction of all the patterns (default 0, i.e. never).",
+            0.0
+    );
+
+    protected UnitLogLikelihoodTable unitLogPs;
+    protected NewWVTreeLikelihoodPool treeLikPool;
+    protected PatternWeightTransfer weightTransfer;
+    //Divides the calculation of the cluster likelihoods among the threads when useThreads is true.
+    protected ClusterLikelihoodScheduler scheduler;
+
+    //The log-likelihood of each cluster, which is kept up to date by the weight only updates.
+    protected ClusterLogLikelihoodSums clusterLogPs;
+    protected boolean weightOnlyUpdate;
+    /*
+     * The tree likelihoods whose weights have changed in weight only updates since their log-likelihoods
+     * were last calculated, which are recalculated before the next full calculation reads them.
+     */
+    protected Set<NewWVTreeLikelihood> staleTreeLiks =
+            Collections.newSetFromMap(new IdentityHashMap<NewWVTreeLikelihood, Boolean>());
+    protected Set<NewWVTreeLikelihood> storedStaleTreeLiks =
+            Collections.newSetFromMap(new IdentityHashMap<NewWVTreeLikelihood, Boolean>());
 
     public void initAndValidate() throws Exception{
         useThreads = useThreadsInput.get() && (BeastMCMC.m_nThreads > 1);
@@ -33,26 +81,37 @@ public class GeneralUnitDPTreeLikelihood extends DPTreeLikelihood {
 
         int siteModelCount = dpSiteModel.getSiteModelCount();
 
-        int siteCount = alignment.getSiteCount();
         GeneralUnitAlignment data = (GeneralUnitAlignment)alignment;
-        for(int i = 0; i < siteCount; i++){
-            clusterWeights[dpVal.getCurrCategory(data.getUnitBySite(i))][alignment.getPatternIndex(i)]++;
+        int unitCount = data.getUnitCount();
+        for(int i = 0; i < unitCount; i++){
+            int[] weights = clusterWeights[dpVal.getCurrCategory(i)];
+            int unitPatternCount = data.getPatternCountGivenUnit(i);
+            for(int j = 0; j < unitPatternCount; j++){
+                weights[data.getPatternInUnit(i, j)] += data.getPatternWeightInUnit(i, j);
+            }
         }
 
+        treeLikPool = new NewWVTreeLikelihoodPool(
+                alignment,
+                m_tree.get(),
+                useAmbiguitiesInput.get(),
+                m_pBranchRateModel.get(),
+                treeLikelihoodPoolSizeInput.get(),
+                sparsePatternFractionInput.get());
         for(int i = 0; i < siteModelCount;i++){
-            NewWVTreeLikelihood treeLik = new NewWVTreeLikelihood(
-                    clusterWeights[i],
-                    alignment,
-                    m_tree.get(),
-                    useAmbiguitiesInput.get(),
-                    dpSiteModel.getSiteModel(i),
-                    m_pBranchRateModel.get());
+            NewWVTreeLikelihood treeLik = treeLikPool.create(clusterWeights[i], dpSiteModel.getSiteModel(i));
             treeLiks.add(treeLik);
 
         }
         if(!(alignment instanceof GeneralUnitAlignment)){
             throw new RuntimeException("Must use GeneralUnitAlignment object.");
         }
+        unitLogPs = new UnitLogLikelihoodTable(data.getUnitClassCount());
+        clusterLogPs = new ClusterLogLikelihoodSums(weightOnlyResumIntervalInput.get());
+        weightTransfer = new PatternWeightTransfer(patternCount);
+        if(useThreads){
+            scheduler = new ClusterLikelihoodScheduler(BeastMCMC.m_nThreads, patternCount, m_tree.get().getNodeCount());
+        }
 
 
 
@@ -78,24 +137,22 @@ public class GeneralUnitDPTreeLikelihood extends DPTreeLikelihood {
 
 
         NewWVTreeLikelihood prevTreeLikelihood = treeLiks.get(prevCluster);
+        GeneralUnitAlignment guAlignment = (GeneralUnitAlignment)alignment;
         for(int i = 0; i < clusterUnits.length;i++){
-            //Get sites associated to each unit.
-            int[] sites = ((GeneralUnitAlignment)alignment).getSitesByUnit(clusterUnits[i]);
-            for(int j = 0; j < sites.length; j++){
-                int patternIndex = alignment.getPatternIndex(sites[j]);
-                patternWeights[patternIndex]++;
-                prevTreeLikelihood.removeWeight(patternIndex,1);
+            //Get patterns associated to each unit.
+            int unitPatternCount = guAlignment.getPatternCountGivenUnit(clusterUnits[i]);
+            for(int j = 0; j < unitPatternCount; j++){
+                int patternIndex = guAlignment.getPatternInUnit(clusterUnits[i], j);
+                int weight = guAlignment.getPatternWeightInUnit(clusterUnits[i], j);
+                patternWeights[patternIndex] += weight;
+                prevTreeLikelihood.removeWeight(patternIndex,weight);
 
             }
         }
 
-        NewWVTreeLikelihood treeLik = new NewWVTreeLikelihood(
-                patternWeights,
-                alignment,
-                m_tree.get(),
-                useAmbiguitiesInput.get(),
-                siteModel,
-                m_pBranchRateModel.get());
+        NewWVTreeLikelihood treeLik = treeLikPool.acquire(patternWeights, siteModel);
+        //The likelihood may have been used by another cluster.
+        unitLogPs.invalidate(treeLik);
         try{
 
             treeLik.calculateLogP();
@@ -111,7 +168,8 @@ public class GeneralUnitDPTreeLikelihood extends DPTreeLikelihood {
 
     public void mergeTreeLikelihoods(){
 
-        NewWVTreeLikelihood removedTreeLikelihood =  treeLiks.remove(dpSiteModel.getRemovedIndex());
+        int removedIndex = dpSiteModel.getRemovedIndex();
+        NewWVTreeLikelihood removedTreeLikelihood =  treeLiks.remove(removedIndex);
         NewWVTreeLikelihood mergedTreeLikelihood;
         if(changeType == ChangeType.MERGE || changeType == ChangeType.MERGE_AND_VALUE_CHANGE){
             mergedTreeLikelihood =  treeLiks.get(dpSiteModel.getDirtySiteModelIndex());
@@ -125,6 +183,7 @@ public class GeneralUnitDPTreeLikelihood extends DPTreeLikelihood {
         for(int i = 0;i < patternWeights.length;i++){
             mergedTreeLikelihood.addWeight(i,patternWeights[i]);
         }
+        treeLikPool.release(removedTreeLikelihood);
     }
 
     protected void updateWeights(){
@@ -132,55 +191,75 @@ public class GeneralUnitDPTreeLikelihood extends DPTreeLikelihood {
 
         if(changeType==ChangeType.POINTER_CHANGED){
 
-            int prevCluster = dpSiteModel.getPrevCluster(dirtyUnit);
-            int currCluster = dpSiteModel.getCurrCluster(dirtyUnit);
-            int[] sites = ((GeneralUnitAlignment)alignment).getSitesByUnit(dirtyUnit);
-            for(int i = 0; i < sites.length;i++){
-                treeLiks.get(prevCluster).removeWeight(alignment.getPatternIndex(sites[i]),1);
-                treeLiks.get(currCluster).addWeight(alignment.getPatternIndex(sites[i]),1);
-            }
+            moveUnitWeight(dpSiteModel.getPrevCluster(dirtyUnit), dpSiteModel.getCurrCluster(dirtyUnit), dirtyUnit);
 
         }else if(changeType == ChangeType.POINTERS_SWAPPED){
             int[] swappedUnits = dpSiteModel.getSwappedSites();
 
             for(int i = 0; i < swappedUnits.length; i++){
-                int [] dirtySites = ((GeneralUnitAlignment)alignment).getSitesByUnit(swappedUnits[i]);
-                int prevCluster = dpSiteModel.getPrevCluster(swappedUnits[i]);
-                int currCluster = dpSiteModel.getCurrCluster(swappedUnits[i]);
-
-                for(int j = 0; j < dirtySites.length; j++){
-                    treeLiks.get(prevCluster).removeWeight(alignment.getPatternIndex(dirtySites[j]),1);
-                    treeLiks.get(currCluster).addWeight(alignment.getPatternIndex(dirtySites[j]),1);
-                }
+                moveUnitWeight(
+                        dpSiteModel.getPrevCluster(swappedUnits[i]),
+                        dpSiteModel.getCurrCluster(swappedUnits[i]),
+                        swappedUnits[i]
+                );
             }
 
         }
+        weightTransfer.apply();
     }
 
     private void handlePointersChange(){
         int[] dirtyUnits = dpSiteModel.getLastDirtySites();
 
         for(int dirtyUnit: dirtyUnits){
-            int[] dirtySites = ((GeneralUnitAlignment)alignment).getSitesByUnit(dirtyUnit);
-            int prevCluster = dpVal.getPrevCategory(dirtyUnit);
-            int currCluster = dpVal.getCurrCategory(dirtyUnit);
-            for(int dirtySite: dirtySites){
-                treeLiks.get(prevCluster).removeWeight(alignment.getPatternIndex(dirtySite),1);
-                treeLiks.get(currCluster).addWeight(alignment.getPatternIndex(dirtySite),1);
-            }
+            moveUnitWeight(dpVal.getPrevCategory(dirtyUnit), dpVal.getCurrCategory(dirtyUnit), dirtyUnit);
         }
+        weightTransfer.apply();
+
 
+    }
+
+    /*
+     * Collects the move of the pattern weights of a unit from one cluster to another,
+     * which is applied to the tree likelihoods by weightTransfer.apply().
+     * In a weight only update, the cluster log-likelihoods are adjusted by the cached log-likelihoods of the moved patterns.
+     */
+    protected void moveUnitWeight(int prevCluster, int currCluster, int unitIndex){
+        NewWVTreeLikelihood prevTreeLik = treeLiks.get(prevCluster);
+        NewWVTreeLikelihood currTreeLik = treeLiks.get(currCluster);
+        GeneralUnitAlignment guAlignment = (GeneralUnitAlignment)alignment;
+        weightTransfer.moveUnit(guAlignment, unitIndex, prevTreeLik, currTreeLik);
+        if(weightOnlyUpdate){
+            staleTreeLiks.add(prevTreeLik);
+            staleTreeLiks.add(currTreeLik);
+            clusterLogPs.moveUnit(guAlignment, unitIndex, prevCluster, prevTreeLik, currCluster, currTreeLik);
+        }
+    }
 
+    /*
+     * Whether the change can be handled by moving weights between the existing clusters,
+     * with the pattern log-likelihoods of the clusters unchanged.
+     */
+    private boolean isWeightOnlyChange(){
+        return weightOnlyUpdateInput.get() &&
+                clusterLogPs.getClusterCount() == treeLiks.size() &&
+                (changeType == ChangeType.POINTER_CHANGED ||
+                        changeType == ChangeType.POINTERS_SWAPPED ||
+                        changeType == ChangeType.MULTIPLE_POINTERS_CHANGED) &&
+                !m_tree.get().somethingIsDirty() &&
+                !m_pBranchRateModel.get().isDirtyCalculation();
     }
 
 
 
     @Override
     protected boolean requiresRecalculation() {
+        weightOnlyUpdate = false;
         boolean recalculate = false;
         if(dpSiteModel.isDirtyCalculation()){
 
             changeType = dpSiteModel.getChangeType();
+            weightOnlyUpdate = isWeightOnlyChange();
             //System.out.println("treeLik requires recal!!"+changeType);
             if(changeType == ChangeType.ADDED){
                 //System.out.println("added!!");
@@ -237,26 +316,95 @@ public class GeneralUnitDPTreeLikelihood extends DPTreeLikelihood {
         }else if(m_pBranchRateModel.get().isDirtyCalculation()){
             recalculate = true;
         }
-        if(recalculate){
+        //The tree likelihoods only need to recalculate once their parameters or the tree change.
+        if(recalculate && !weightOnlyUpdate){
 
             for(NewWVTreeLikelihood treeLik:treeLiks){
 
                 MCMCNodeFactory.checkDirtiness(treeLik);
             }
+
+            //Discard the unit log-likelihoods of the clusters whose pattern log-likelihoods change.
+            if(changeType == ChangeType.ALL || m_tree.get().somethingIsDirty() || m_pBranchRateModel.get().isDirtyCalculation()){
+                unitLogPs.invalidateAll();
+            }else{
+                for(NewWVTreeLikelihood treeLik:treeLiks){
+                    if(treeLik.isDirtyCalculation()){
+                        unitLogPs.invalidate(treeLik);
+                    }
+                }
+            }
         }
 
         return recalculate;
     }
 
+    /*
+     * The log-likelihoods of the units are kept in a table for each cluster and class of units
+     * until the parameters of the cluster or the tree change, so the samplers that visit every unit
+     * against every cluster do not repeat the sums.
+     */
     public double getSiteLogLikelihood(int iCluster, int unitIndex){
 
         GeneralUnitAlignment alignment = (GeneralUnitAlignment)this.alignment;
-        int[] sites = alignment.getSitesByUnit(unitIndex);
+        int unitClass = alignment.getUnitClass(unitIndex);
+        NewWVTreeLikelihood treeLik = treeLiks.get(iCluster);
+        if(unitLogPs.contains(treeLik, unitClass)){
+            return unitLogPs.get(treeLik, unitClass);
+        }
+        int unitPatternCount = alignment.getPatternCountGivenUnit(unitIndex);
         double logP = 0.0;
-        for(int site:sites){
-            logP += treeLiks.get(iCluster).getPatternLogLikelihood(alignment.getPatternIndex(site));
+        for(int i = 0; i < unitPatternCount; i++){
+            logP += alignment.getPatternWeightInUnit(unitIndex, i)*
+                    treeLik.getPatternLogLikelihood(alignment.getPatternInUnit(unitIndex, i));
         }
+        unitLogPs.put(treeLik, unitClass, logP);
         return logP;
     }
 
-}
+    @Override
+    public double calculateLogP() throws Exception{
+        if(weightOnlyUpdate){
+            logP = clusterLogPs.getLogP(treeLiks);
+            return logP;
+        }
+
+        if(scheduler == null){
+            //The clean tree likelihoods are not recalculated by the full calculation,
+            //so the ones with weights changed by weight only updates are brought up to date here.
+            //The partials are unchanged, so this only integrates the partials at the root with the new weights.
+            for(NewWVTreeLikelihood treeLik: treeLiks){
+                if(staleTreeLiks.contains(treeLik) && !treeLik.isDirtyCalculation()){
+                    treeLik.calculateLogP();
+                }
+            }
+            super.calculateLogP();
+        }else{
+            //The scheduler calculates every cluster with its current weights.
+            logP = scheduler.calculateLogP(treeLiks);
+        }
+        staleTreeLiks.clear();
+        clusterLogPs.reset(treeLiks);
+        return logP;
+    }
+
+    public void store(){
+        unitLogPs.store();
+        clusterLogPs.store();
+        storedStaleTreeLiks.clear();
+        storedStaleTreeLiks.addAll(staleTreeLiks);
+        treeLikPool.store();
+        super.store();
+    }
+
+    public void restore(){
+        unitLogPs.restore();
+        clusterLogPs.restore();
+        Set<NewWVTreeLikelihood> tempStale = staleTreeLiks;
+        staleTreeLiks = storedStaleTreeLiks;
+        storedStaleTreeLiks = tempStale;
+        treeLikPool.restore();
+        super.restore();
+    }
+
+}
\ No newline at end of file
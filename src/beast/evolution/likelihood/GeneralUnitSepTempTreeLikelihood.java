@@ -20,6 +20,8 @@ public class GeneralUnitSepTempTreeLikelihood extends SepTempTreeLikelihood{
     );
 
     private ExtendedSepTempWVTreeLikelihood sepTempWVTreeLikelihood;
+    //The log-likelihoods returned by calculateLogPs, reused by every call.
+    private double[] candidateLogPs;
     public GeneralUnitSepTempTreeLikelihood(){
         siteModelInput.setRule(Input.Validate.OPTIONAL);
         treeInput.setRule(Input.Validate.OPTIONAL);
@@ -29,6 +31,14 @@ public class GeneralUnitSepTempTreeLikelihood extends SepTempTreeLikelihood{
         sepTempWVTreeLikelihood = sepTempWVTreeLikelihoodInput.get();
         alignment = dataInput.get();
     }
+    /*
+     * Whether calculateLogPs may run at the same time as that of other copies of this likelihood,
+     * which is set on the copies only (see TempLikelihoodContext).
+     */
+    public void setConcurrent(boolean concurrent){
+        sepTempWVTreeLikelihood.setConcurrent(concurrent);
+    }
+
     public double calculateLogP(int unitIndex){
         throw new RuntimeException("Method to do");
     }
@@ -83,6 +93,62 @@ public class GeneralUnitSepTempTreeLikelihood extends SepTempTreeLikelihood{
     }
 
 
+    /*
+     * Calculates the log-likelihoods of a unit under each of the candidate values from firstCandidate onwards,
+     * such as the auxiliary proposals of a Gibbs sampler, with the model and pattern weights of the unit set once.
+     * The array returned is reused by the next call.
+     */
+    public double[] calculateLogPs(
+            RealParameter[] alpha,
+            RealParameter[] invPr,
+            RealParameter[] rate,
+            RealParameter[] siteModelChoice,
+            int firstCandidate,
+            int unitIndex){
+
+        int candidateCount = alpha.length - firstCandidate;
+        if(candidateLogPs == null || candidateLogPs.length != candidateCount){
+            candidateLogPs = new double[candidateCount];
+        }
+        calculateLogPs(alpha, invPr, rate, siteModelChoice, firstCandidate, alpha.length, unitIndex, candidateLogPs, 0);
+        return candidateLogPs;
+
+    }
+
+    /*
+     * Calculates the log-likelihoods of a unit under the candidate values from "from" up to but excluding "to",
+     * which are written to logPs from the offset onwards.
+     */
+    public void calculateLogPs(
+            RealParameter[] alpha,
+            RealParameter[] invPr,
+            RealParameter[] rate,
+            RealParameter[] siteModelChoice,
+            int from,
+            int to,
+            int unitIndex,
+            double[] logPs,
+            int offset){
+
+        try{
+            sepTempWVTreeLikelihood.calculateLogPs(
+                    alpha,
+                    invPr,
+                    rate,
+                    siteModelChoice,
+                    from,
+                    to,
+                    unitIndex,
+                    logPs,
+                    offset);
+        }catch(Exception e){
+            throw new RuntimeException(e);
+
+        }
+
+    }
+
+
 
     public double calculateLogP(
             RealParameter modelParameters,
@@ -1,6 +1,5 @@
 package beast.evolution.likelihood;
 
-import beast.core.parameter.QuietRealParameter;
 import beast.core.parameter.RealParameter;
 import beast.evolution.alignment.Alignment;
 import beast.evolution.alignment.GeneralUnitAlignment;
@@ -10,9 +9,6 @@ import beast.evolution.sitemodel.DummySiteModel;
 import beast.evolution.sitemodel.QuietGammaSiteBMA;
 import beast.evolution.substitutionmodel.SwitchingNtdBMA;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-
 /**
  * Created by IntelliJ IDEA.
  * User: cwu080
@@ -22,6 +18,9 @@ import java.util.HashMap;
  */
 public class GeneralUnitSepTempWVTreeLikelihood extends ExtendedSepTempWVTreeLikelihood {
 
+    //Log-likelihoods of the unit classes under each cluster in the current call
+    protected UnitClassLogLikelihoodMemo unitClassMemo;
+
     public double[] calculateLogP(
             RealParameter modelParameters,
             RealParameter modelCode,
@@ -62,85 +61,32 @@ public class GeneralUnitSepTempWVTreeLikelihood extends ExtendedSepTempWVTreeLik
             RealParameter freqs,
             int[] units){
 
-        HashMap<Integer, Integer> unitOrderMap = new HashMap<Integer, Integer>();
-        for(int i = 0; i < units.length; i++){
-            unitOrderMap.put(units[i],i);
-        }
-
         GeneralUnitAlignment alignment = (GeneralUnitAlignment) m_data.get();
+        resetUnitClassMemo(alignment);
         double[] logPs = new double[units.length];
         setModelParameterVals(modelParameters,modelCode,freqs);
 
         try{
-            //Stores a list of rates
-            ArrayList<QuietRealParameter> rates = new ArrayList<QuietRealParameter>();
-            //Stores the ID number of the substModel and pattern weights
-            HashMap<Integer,int[]> clusterWeightsMap = new HashMap<Integer,int[]>();
-            //Stores the ID number of the substModel and the sites with that model
-            HashMap<Integer, ArrayList<Integer>> clusterSitesMap = new HashMap<Integer, ArrayList<Integer>>();
-
-            int patternIndex;
-            int rateID;
-
+            //Group the units by the ID numbers of their rates
+            ClusterGrouping grouping = resetClusterGrouping(units.length);
             for(int i = 0; i < units.length;i++){
-                int[] sites = alignment.getSitesByUnit(units[i]);
-
-
-
-                QuietRealParameter rate = dpNtdRateSepSiteModel.getRate(units[i]);
-                rateID = rate.getIDNumber();
-
-
-                for(int site:sites){
-
-
-                    patternIndex = alignment.getPatternIndex(site);
-
-                    if(clusterWeightsMap.containsKey(rateID)){
-                        //increment the weight of the pattern at site siteIndex[i] by 1
-                        clusterWeightsMap.get(rateID)[patternIndex]++;
-                        //add the site index to the cluster
-                        clusterSitesMap.get(rateID).add(site);
-
-                    }else{
-                        //Create a new pattern weights vector
-                        int[] patternWeights = new int[alignment.getPatternCount()];
-                        //Increment the weight of the pattern at site siteIndex[i]
-                        patternWeights[patternIndex]++;
-                        //Add the new pattern weight vector to the HashMap
-                        clusterWeightsMap.put(rateID,patternWeights);
-
-                        //Add the new substModel to the array list
-                        rates.add(rate);
-
-                        //Create a new array list to store sites
-                        ArrayList<Integer> clusterSites = new ArrayList<Integer>();
-                        //Add site index to the corresponding list
-                        clusterSites.add(site);
-                        //Put the list in the HashMap
-                        clusterSitesMap.put(rateID,clusterSites);
-                    }
-                }
-
+                int group = grouping.add(dpNtdRateSepSiteModel.getRate(units[i]).getIDNumber(), i);
+                //Add the pattern weights of unit i to the cluster
+                addUnitPatternWeights(alignment, units[i], grouping, group);
             }
 
-            int rateCount = rates.size();
-            int unit;
+            int rateCount = grouping.getGroupCount();
 
             for(int i = 0; i < rateCount;i++){
 
+                //The rate of the group is that of its first unit
+                int firstUnit = units[grouping.getFirstPosition(i)];
                 m_siteModel.m_pSubstModel.setValue(substModel, m_siteModel);
-                ((DummySiteModel)m_siteModel).getRateParameter().setValueQuietly(0,rates.get(i).getValue());
-                rateID = rates.get(i).getIDNumber();
-                setPatternWeights(clusterWeightsMap.get(rateID));
+                ((DummySiteModel)m_siteModel).getRateParameter().setValueQuietly(0,dpNtdRateSepSiteModel.getRate(firstUnit).getValue());
+                setPatternWeights(grouping.getPatternWeights(i));
                 calculateLogP();
 
-                //Get all the site indices in this rate category
-                ArrayList<Integer> sites = clusterSitesMap.get(rateID);
-                for(Integer site:sites){
-                    unit = alignment.getUnitBySite(site);
-                    logPs[unitOrderMap.get(unit)] += m_fPatternLogLikelihoods[m_data.get().getPatternIndex(site)] ;
-                }
+                addGroupLogLikelihoods(alignment, grouping, i, units, logPs);
             }
 
         }catch(Exception e){
@@ -159,116 +105,39 @@ public class GeneralUnitSepTempWVTreeLikelihood extends ExtendedSepTempWVTreeLik
 
 
 
-        HashMap<Integer, Integer> unitOrderMap = new HashMap<Integer, Integer>();
-        for(int i = 0; i < units.length; i++){
-            //System.out.println("unit: "+units[i]);
-            unitOrderMap.put(units[i],i);
-        }
-
         GeneralUnitAlignment alignment = (GeneralUnitAlignment) m_data.get();
+        resetUnitClassMemo(alignment);
         double[] logPs = new double[units.length];
         setModelParameterVals(modelParameters,modelCode,freqs);
 
         try{
-            //Stores a list of rates
-            ArrayList<Double> rates = new ArrayList<Double>();
-            ArrayList<Double> alpha = new ArrayList<Double>();
-            ArrayList<Double> invPr = new ArrayList<Double>();
-            ArrayList<Double> siteModelChoice = new ArrayList<Double>();
-            ArrayList<Integer> rateIDs = new ArrayList<Integer>();
-
             DPNtdBMAGIBMASepSiteModel dpSiteModel = (DPNtdBMAGIBMASepSiteModel) dpNtdRateSepSiteModel;
 
-
-            //Stores the ID number of the substModel and pattern weights
-            HashMap<Integer,int[]> clusterWeightsMap = new HashMap<Integer,int[]>();
-            //Stores the ID number of the substModel and the sites with that model
-            HashMap<Integer, ArrayList<Integer>> clusterSitesMap = new HashMap<Integer, ArrayList<Integer>>();
-
-            int patternIndex;
-            int rateID;
-
+            //Group the units by the ID numbers of their rates
+            ClusterGrouping grouping = resetClusterGrouping(units.length);
             for(int i = 0; i < units.length;i++){
-                //System.out.println("flag1, unit: "+units[i]);
-                int[] sites = alignment.getSitesByUnit(units[i]);
-
-
-
-                //QuietRealParameter rate = dpNtdRateSepSiteModel.getRate(units[i]);
-                double rateVal = dpSiteModel.getRateValue(units[i]);
-                double alphaVal = dpSiteModel.getAlphaValue(units[i]);
-                double invPrVal = dpSiteModel.getInvPrValue(units[i]);
-                double siteModelChoiceVal = dpSiteModel.getModelChoiceValue(units[i]);
-                //rateID = rate.getIDNumber();
-                rateID = dpSiteModel.getRateID(units[i]);
-                //System.out.println("rate ID: "+rateID);
-
-                for(int site:sites){
-                    //System.out.println("flag1, site: "+site);
-
-
-                    patternIndex = alignment.getPatternIndex(site);
-
-                    if(clusterWeightsMap.containsKey(rateID)){
-                        //increment the weight of the pattern at site siteIndex[i] by 1
-                        clusterWeightsMap.get(rateID)[patternIndex]++;
-                        //add the site index to the cluster
-                        clusterSitesMap.get(rateID).add(site);
-
-                    }else{
-                        //Create a new pattern weights vector
-                        int[] patternWeights = new int[alignment.getPatternCount()];
-                        //Increment the weight of the pattern at site siteIndex[i]
-                        patternWeights[patternIndex]++;
-                        //Add the new pattern weight vector to the HashMap
-                        clusterWeightsMap.put(rateID,patternWeights);
-
-                        //Add the new substModel to the array list
-                        rates.add(rateVal);
-                        alpha.add(alphaVal);
-                        invPr.add(invPrVal);
-                        siteModelChoice.add(siteModelChoiceVal);
-                        rateIDs.add(rateID);
-
-                        //Create a new array list to store sites
-                        ArrayList<Integer> clusterSites = new ArrayList<Integer>();
-                        //Add site index to the corresponding list
-                        clusterSites.add(site);
-                        //Put the list in the HashMap
-                        clusterSitesMap.put(rateID,clusterSites);
-                    }
-                }
-
+                int group = grouping.add(dpSiteModel.getRateID(units[i]), i);
+                //Add the pattern weights of unit i to the cluster
+                addUnitPatternWeights(alignment, units[i], grouping, group);
             }
 
-            int rateCount = rates.size();
-            int unit;
+            int rateCount = grouping.getGroupCount();
 
             for(int i = 0; i < rateCount;i++){
 
+                //The rate, alpha, invPr and site model choice of the group are those of its first unit
+                int firstUnit = units[grouping.getFirstPosition(i)];
                 m_siteModel.m_pSubstModel.setValue(substModel, m_siteModel);
-                //((DummySiteModel)m_siteModel).getRateParameter().setValueQuietly(0,rates.get(i).getValue());
-                ((QuietGammaSiteBMA)m_siteModel).setMuValueQuietly(rates.get(i));
-                ((QuietGammaSiteBMA)m_siteModel).setShapeValueQuietly(alpha.get(i));
-                ((QuietGammaSiteBMA)m_siteModel).setInvPrValueQuietly(invPr.get(i));
-                ((QuietGammaSiteBMA)m_siteModel).setModelChoiceQuietly(siteModelChoice.get(i));
+                ((QuietGammaSiteBMA)m_siteModel).setMuValueQuietly(dpSiteModel.getRateValue(firstUnit));
+                ((QuietGammaSiteBMA)m_siteModel).setShapeValueQuietly(dpSiteModel.getAlphaValue(firstUnit));
+                ((QuietGammaSiteBMA)m_siteModel).setInvPrValueQuietly(dpSiteModel.getInvPrValue(firstUnit));
+                ((QuietGammaSiteBMA)m_siteModel).setModelChoiceQuietly(dpSiteModel.getModelChoiceValue(firstUnit));
                 ((QuietGammaSiteBMA)m_siteModel).setRatesKnown(false);
 
-
-
-
-                //rateID = rates.get(i).getIDNumber();
-                setPatternWeights(clusterWeightsMap.get(rateIDs.get(i)));
+                setPatternWeights(grouping.getPatternWeights(i));
                 calculateLogP();
 
-                //Get all the site indices in this rate category
-                ArrayList<Integer> sites = clusterSitesMap.get(rateIDs.get(i));
-                for(Integer site:sites){
-                    //System.out.println("site: "+site);
-                    unit = alignment.getUnitBySite(site);
-                    //System.out.println("unit: "+unit);
-                    logPs[unitOrderMap.get(unit)] += m_fPatternLogLikelihoods[m_data.get().getPatternIndex(site)] ;
-                }
+                addGroupLogLikelihoods(alignment, grouping, i, units, logPs);
             }
 
         }catch(Exception e){
@@ -302,83 +171,33 @@ public class GeneralUnitSepTempWVTreeLikelihood extends ExtendedSepTempWVTreeLik
             RealParameter rateParameter,
             int[] units) throws Exception{
 
-        HashMap<Integer, Integer> unitOrderMap = new HashMap<Integer,Integer>();
-        for(int i = 0;i < units.length;i++){
-            //System.out.println("units: "+units[i]);
-            unitOrderMap.put(units[i], i);
-        }
         GeneralUnitAlignment alignment = (GeneralUnitAlignment) m_data.get();
+        resetUnitClassMemo(alignment);
 
         double[] logPs = new double[units.length];
 
 
 
-        //Stores a list of subst models
-        ArrayList<SwitchingNtdBMA> ntdBMAMap = new ArrayList<SwitchingNtdBMA>();
-        //Stores the ID number of the substModel and pattern weights
-        HashMap<Integer,int[]> clusterWeightsMap = new HashMap<Integer,int[]>();
-        //Stores the ID number of the substModel and the sites with that model
-        HashMap<Integer, ArrayList<Integer>> clusterSitesMap = new HashMap<Integer, ArrayList<Integer>>();
-
-        int patternIndex;
-        int modelID;
-
+        //Group the units by the ID numbers of their substModels
+        ClusterGrouping grouping = resetClusterGrouping(units.length);
         for(int i = 0; i < units.length;i++){
-
-            //System.out.println((SwitchingNtdBMA)dpNtdRateSepSiteModel.getModel(siteIndex[i]));
             SwitchingNtdBMA ntdBMA = ((SwitchingNtdBMA)dpNtdRateSepSiteModel.getModel(units[i]));
-            modelID = ntdBMA.getIDNumber();
-            int[] sites = alignment.getSitesByUnit(units[i]);
-
-            for(int site:sites){
-
-                patternIndex = alignment.getPatternIndex(site);
-
-                if(clusterWeightsMap.containsKey(modelID)){
-                    //increment the weight of the pattern at jth site of unit[i] by 1
-                    clusterWeightsMap.get(modelID)[patternIndex]++;
-                    //add the site index in unit i to the cluster
-                    clusterSitesMap.get(modelID).add(site);
-
-                }else{
-                    //Create a new pattern weights vector
-                    int[] patternWeights = new int[alignment.getPatternCount()];
-                    //Increment the weight of the pattern at jth site of unit[i] by 1
-                    patternWeights[patternIndex]++;
-                    //Add the new pattern weight vector to the HashMap
-                    clusterWeightsMap.put(modelID,patternWeights);
-
-                    //Add the new substModel to the array list
-                    ntdBMAMap.add(ntdBMA);
-
-                    //Create a new array list to store sites
-                    ArrayList<Integer> clusterSites = new ArrayList<Integer>();
-                    //Add site index in unit i to the corresponding list
-                    clusterSites.add(site);
-                    //Put the list in the HashMap
-                    clusterSitesMap.put(modelID,clusterSites);
-                }
-            }
-
+            int group = grouping.add(ntdBMA.getIDNumber(), i);
+            //Add the pattern weights of unit i to the cluster
+            addUnitPatternWeights(alignment, units[i], grouping, group);
         }
 
-        int substModelCount = ntdBMAMap.size();
-        int unit;
+        int substModelCount = grouping.getGroupCount();
 
         for(int i = 0; i < substModelCount;i++){
 
-            m_siteModel.m_pSubstModel.setValue(ntdBMAMap.get(i), m_siteModel);
+            //The substModel of the group is that of its first unit
+            setClusterModel(dpNtdRateSepSiteModel.getModel(units[grouping.getFirstPosition(i)]));
             ((DummySiteModel)m_siteModel).getRateParameter().setValueQuietly(0,rateParameter.getValue());
-            modelID = ntdBMAMap.get(i).getIDNumber();
-            setPatternWeights(clusterWeightsMap.get(modelID));
+            setPatternWeights(grouping.getPatternWeights(i));
             calculateLogP();
 
-            ArrayList<Integer> sites = clusterSitesMap.get(modelID);
-            for(Integer site:sites){
-                unit = alignment.getUnitBySite(site);
-                //System.out.println("unit: "+unit);
-                logPs[unitOrderMap.get(unit)] += m_fPatternLogLikelihoods[m_data.get().getPatternIndex(site)] ;
-            }
+            addGroupLogLikelihoods(alignment, grouping, i, units, logPs);
         }
         //System.out.println(logP);
 
@@ -424,72 +243,28 @@ public class GeneralUnitSepTempWVTreeLikelihood extends ExtendedSepTempWVTreeLik
             double siteModelChoice,
             int[] units) throws Exception{
 
-        HashMap<Integer, Integer> unitOrderMap = new HashMap<Integer,Integer>();
-        for(int i = 0;i < units.length;i++){
-            //System.out.println("units: "+units[i]);
-            unitOrderMap.put(units[i], i);
-        }
         GeneralUnitAlignment alignment = (GeneralUnitAlignment) m_data.get();
+        resetUnitClassMemo(alignment);
 
         double[] logPs = new double[units.length];
 
 
 
-        //Stores a list of subst models
-        ArrayList<SwitchingNtdBMA> ntdBMAMap = new ArrayList<SwitchingNtdBMA>();
-        //Stores the ID number of the substModel and pattern weights
-        HashMap<Integer,int[]> clusterWeightsMap = new HashMap<Integer,int[]>();
-        //Stores the ID number of the substModel and the sites with that model
-        HashMap<Integer, ArrayList<Integer>> clusterSitesMap = new HashMap<Integer, ArrayList<Integer>>();
-
-        int patternIndex;
-        int modelID;
-
+        //Group the units by the ID numbers of their substModels
+        ClusterGrouping grouping = resetClusterGrouping(units.length);
         for(int i = 0; i < units.length;i++){
-
-            //System.out.println((SwitchingNtdBMA)dpNtdRateSepSiteModel.getModel(siteIndex[i]));
             SwitchingNtdBMA ntdBMA = ((SwitchingNtdBMA)dpNtdRateSepSiteModel.getModel(units[i]));
-            modelID = ntdBMA.getIDNumber();
-            int[] sites = alignment.getSitesByUnit(units[i]);
-
-            for(int site:sites){
-
-                patternIndex = alignment.getPatternIndex(site);
-
-                if(clusterWeightsMap.containsKey(modelID)){
-                    //increment the weight of the pattern at jth site of unit[i] by 1
-                    clusterWeightsMap.get(modelID)[patternIndex]++;
-                    //add the site index in unit i to the cluster
-                    clusterSitesMap.get(modelID).add(site);
-
-                }else{
-                    //Create a new pattern weights vector
-                    int[] patternWeights = new int[alignment.getPatternCount()];
-                    //Increment the weight of the pattern at jth site of unit[i] by 1
-                    patternWeights[patternIndex]++;
-                    //Add the new pattern weight vector to the HashMap
-                    clusterWeightsMap.put(modelID,patternWeights);
-
-                    //Add the new substModel to the array list
-                    ntdBMAMap.add(ntdBMA);
-
-                    //Create a new array list to store sites
-                    ArrayList<Integer> clusterSites = new ArrayList<Integer>();
-                    //Add site index in unit i to the corresponding list
-                    clusterSites.add(site);
-                    //Put the list in the HashMap
-                    clusterSitesMap.put(modelID,clusterSites);
-                }
-            }
-
+            int group = grouping.add(ntdBMA.getIDNumber(), i);
+            //Add the pattern weights of unit i to the cluster
+            addUnitPatternWeights(alignment, units[i], grouping, group);
         }
 
-        int substModelCount = ntdBMAMap.size();
-        int unit;
+        int substModelCount = grouping.getGroupCount();
 
         for(int i = 0; i < substModelCount;i++){
 
-            m_siteModel.m_pSubstModel.setValue(ntdBMAMap.get(i), m_siteModel);
+            //The substModel of the group is that of its first unit
+            setClusterModel(dpNtdRateSepSiteModel.getModel(units[grouping.getFirstPosition(i)]));
             //((DummySiteModel)m_siteModel).getRateParameter().setValueQuietly(0,rateParameter.getValue());
             ((QuietGammaSiteBMA)m_siteModel).setMuValueQuietly(rate);
             ((QuietGammaSiteBMA)m_siteModel).setShapeValueQuietly(alpha);
@@ -497,16 +272,10 @@ public class GeneralUnitSepTempWVTreeLikelihood extends ExtendedSepTempWVTreeLik
             ((QuietGammaSiteBMA)m_siteModel).setModelChoiceQuietly(siteModelChoice);
             ((QuietGammaSiteBMA)m_siteModel).setRatesKnown(false);
 
-            modelID = ntdBMAMap.get(i).getIDNumber();
-            setPatternWeights(clusterWeightsMap.get(modelID));
+            setPatternWeights(grouping.getPatternWeights(i));
             calculateLogP();
 
-            ArrayList<Integer> sites = clusterSitesMap.get(modelID);
-            for(Integer site:sites){
-                unit = alignment.getUnitBySite(site);
-                //System.out.println("unit: "+unit);
-                logPs[unitOrderMap.get(unit)] += m_fPatternLogLikelihoods[m_data.get().getPatternIndex(site)] ;
-            }
+            addGroupLogLikelihoods(alignment, grouping, i, units, logPs);
         }
         //System.out.println(logP);
 
@@ -515,5 +284,53 @@ public class GeneralUnitSepTempWVTreeLikelihood extends ExtendedSepTempWVTreeLik
 
     }
 
+    /*
+     * Adds the pattern weights of a unit to the pattern weights of a group.
+     */
+    protected void addUnitPatternWeights(GeneralUnitAlignment alignment, int unit, ClusterGrouping grouping, int group){
+        int unitPatternCount = alignment.getPatternCountGivenUnit(unit);
+        for(int j = 0; j < unitPatternCount; j++){
+            grouping.addPatternWeight(group, alignment.getPatternInUnit(unit, j), alignment.getPatternWeightInUnit(unit, j));
+        }
+    }
+
+    /*
+     * Adds the log-likelihoods of the most recent calculation to the units of a group.
+     */
+    private void addGroupLogLikelihoods(GeneralUnitAlignment alignment, ClusterGrouping grouping, int group, int[] units, double[] logPs){
+        for(int unitOrder = grouping.getFirstPosition(group); unitOrder != -1; unitOrder = grouping.getNextPosition(unitOrder)){
+            logPs[unitOrder] += getUnitLogLikelihood(alignment, units[unitOrder], group);
+        }
+    }
+
+    /*
+     * Discards the unit class log-likelihoods of the previous call.
+     */
+    protected void resetUnitClassMemo(GeneralUnitAlignment alignment){
+        if(unitClassMemo == null){
+            unitClassMemo = new UnitClassLogLikelihoodMemo(alignment.getUnitClassCount());
+        }
+        unitClassMemo.clear();
+    }
+
+    /*
+     * Sums the pattern log-likelihoods of the most recent calculation over the patterns of a unit.
+     * The sum is computed once for each class of units under a given cluster.
+     */
+    protected double getUnitLogLikelihood(GeneralUnitAlignment alignment, int unit, int cluster){
+        int unitClass = alignment.getUnitClass(unit);
+        if(unitClassMemo.contains(cluster, unitClass)){
+            return unitClassMemo.get(cluster, unitClass);
+        }
+
+        double logP = 0.0;
+        int unitPatternCount = alignment.getPatternCountGivenUnit(unit);
+        for(int j = 0; j < unitPatternCount; j++){
+            logP += alignment.getPatternWeightInUnit(unit, j)*m_fPatternLogLikelihoods[alignment.getPatternInUnit(unit, j)];
+        }
+        unitClassMemo.put(cluster, unitClass, logP);
+        return logP;
+    }
+
 
 }
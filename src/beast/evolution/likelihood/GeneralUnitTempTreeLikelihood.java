@@ -166,6 +166,43 @@ public class GeneralUnitTempTreeLikelihood extends  TempTreeLikelihood{
         }
     }
 
+    /*
+     * Calculates the log-likelihoods of a unit under each of the candidate parameter values from firstCandidate onwards,
+     * such as the auxiliary proposals of a Gibbs sampler, with the pattern weights of the unit set up once.
+     * The array returned is reused by the next call.
+     */
+    public double[] calculateLogPs(
+            RealParameter[] modelParameters,
+            RealParameter[] modelCode,
+            RealParameter[] freqs,
+            RealParameter[] alpha,
+            RealParameter[] invPr,
+            RealParameter[] rate,
+            RealParameter[] siteModelIndicator,
+            int firstCandidate,
+            int unitIndex){
+        try{
+
+            return ((ExtendedTempWVTreeLikelihood)tempWVTreeLikelihood).calculateLogPs(
+                    modelParameters,
+                    modelCode,
+                    freqs,
+                    alpha,
+                    invPr,
+                    rate,
+                    siteModelIndicator,
+                    firstCandidate,
+                    (GeneralUnitAlignment)alignment,
+                    unitIndex);
+
+        }catch(Exception e){
+            throw new RuntimeException(e);
+
+        }
+    }
+
+
+
 
 
 }
@@ -13,6 +13,7 @@ import beast.evolution.substitutionmodel.SwitchingNtdBMA;
  * To change this template use File | Settings | File Templates.
  */
 public class GeneralUnitTempWVTreeLikelihood extends ExtendedTempWVTreeLikelihood {
+    protected UnitClassLogLikelihoodMemo unitClassMemo;
 
     public void initAndValidate() throws Exception{
 
@@ -34,11 +35,9 @@ public class GeneralUnitTempWVTreeLikelihood extends ExtendedTempWVTreeLikelihoo
 
         double[] siteLogP = new double[units.length];
         calculateLogP(modelParameters,modelCode,freqs,rate);
+        resetUnitClassMemo(alignment);
         for(int i = 0; i < units.length; i++){
-            int[] sites = alignment.getSitesByUnit(units[i]);
-            for(int site:sites){
-                siteLogP[i] += m_fPatternLogLikelihoods[m_data.get().getPatternIndex(site)];
-            }
+            siteLogP[i] += getUnitLogLikelihood(alignment, units[i]);
         }
         return siteLogP;
     }
@@ -56,13 +55,11 @@ public class GeneralUnitTempWVTreeLikelihood extends ExtendedTempWVTreeLikelihoo
 
             calculateLogP(modelParameters,modelCode,freqs,rate);
             int k = 0;
+            resetUnitClassMemo(alignment);
             for(int i = 0; i < units.length;i++){
                 if(units[i] != exceptUnit){
                     //System.out.println(sites[i] +" "+exceptSite);
-                    int[] sites = alignment.getSitesByUnit(units[i]);
-                    for(int site:sites){
-                        siteLogP[k] += m_fPatternLogLikelihoods[m_data.get().getPatternIndex(site)];
-                    }
+                    siteLogP[k] += getUnitLogLikelihood(alignment, units[i]);
                     k++;
                 }
 
@@ -80,10 +77,11 @@ public class GeneralUnitTempWVTreeLikelihood extends ExtendedTempWVTreeLikelihoo
         int[] tempWeights = new int[m_data.get().getPatternCount()];
         int patIndex;
 
+        GeneralUnitAlignment alignment = (GeneralUnitAlignment)data;
         for(int i = 0; i < units.length; i++){
-            int[] sites = ((GeneralUnitAlignment)data).getSitesByUnit(units[i]);
-            for(int j = 0; j < sites.length; j++){
-                patIndex = m_data.get().getPatternIndex(sites[j]);
+            int unitPatternCount = alignment.getPatternCountGivenUnit(units[i]);
+            for(int j = 0; j < unitPatternCount; j++){
+                patIndex = alignment.getPatternInUnit(units[i], j);
                 tempWeights[patIndex] = 1;
             }
         }
@@ -106,12 +104,10 @@ public class GeneralUnitTempWVTreeLikelihood extends ExtendedTempWVTreeLikelihoo
 
             calculateLogP(modelParameters,modelCode,freqs);
             int k = 0;
+            resetUnitClassMemo(alignment);
             for(int i = 0; i < units.length;i++){
                 if(units[i] != exceptUnit){
-                    int[] sites = alignment.getSitesByUnit(units[i]);
-                    for(int site:sites){
-                        siteLogP[k] += m_fPatternLogLikelihoods[m_data.get().getPatternIndex(site)];
-                    }
+                    siteLogP[k] += getUnitLogLikelihood(alignment, units[i]);
                     k++;
                 }
             }
@@ -134,11 +130,9 @@ public class GeneralUnitTempWVTreeLikelihood extends ExtendedTempWVTreeLikelihoo
         try{
             ((DummySiteModel)m_siteModel).getRateParameter().setValueQuietly(0,rateParameter.getValue());
             calculateLogP();
+            resetUnitClassMemo(alignment);
             for(int i = 0; i < units.length;i++){
-                int[] sites = alignment.getSitesByUnit(units[i]);
-                for(int site:sites){
-                    siteLogP[k] += m_fPatternLogLikelihoods[m_data.get().getPatternIndex(site)];
-                }
+                siteLogP[k] += getUnitLogLikelihood(alignment, units[i]);
                 k++;
                 //System.out.println(siteLogP[i]);
             }
@@ -159,12 +153,10 @@ public class GeneralUnitTempWVTreeLikelihood extends ExtendedTempWVTreeLikelihoo
             ((DummySiteModel)m_siteModel).getRateParameter().setValueQuietly(0,rateParameter.getValue());
             calculateLogP();
             int k = 0;
+            resetUnitClassMemo(alignment);
             for(int i = 0; i < units.length;i++){
                 if(units[i] != exceptUnit){
-                    int[] sites = alignment.getSitesByUnit(units[i]);
-                    for(int site:sites){
-                        siteLogP[k] += m_fPatternLogLikelihoods[m_data.get().getPatternIndex(site)];
-                    }
+                    siteLogP[k] += getUnitLogLikelihood(alignment, units[i]);
                     k++;
                 }
             }
@@ -198,11 +190,9 @@ public class GeneralUnitTempWVTreeLikelihood extends ExtendedTempWVTreeLikelihoo
                 rate,
                 siteModelChoice
         );
+        resetUnitClassMemo(alignment);
         for(int i = 0; i < units.length; i++){
-            int[] sites = alignment.getSitesByUnit(units[i]);
-            for(int site:sites){
-                siteLogP[i] += m_fPatternLogLikelihoods[m_data.get().getPatternIndex(site)];
-            }
+            siteLogP[i] += getUnitLogLikelihood(alignment, units[i]);
         }
         return siteLogP;
     }
@@ -232,13 +222,11 @@ public class GeneralUnitTempWVTreeLikelihood extends ExtendedTempWVTreeLikelihoo
             );
 
             int k = 0;
+            resetUnitClassMemo(alignment);
             for(int i = 0; i < units.length;i++){
                 if(units[i] != exceptUnit){
                     //System.out.println(sites[i] +" "+exceptSite);
-                    int[] sites = alignment.getSitesByUnit(units[i]);
-                    for(int site:sites){
-                        siteLogP[k] += m_fPatternLogLikelihoods[m_data.get().getPatternIndex(site)];
-                    }
+                    siteLogP[k] += getUnitLogLikelihood(alignment, units[i]);
                     k++;
                 }
 
@@ -252,9 +240,32 @@ public class GeneralUnitTempWVTreeLikelihood extends ExtendedTempWVTreeLikelihoo
         return siteLogP;
     }
 
+    protected void resetUnitClassMemo(GeneralUnitAlignment alignment){
+        if(unitClassMemo == null){
+            unitClassMemo = new UnitClassLogLikelihoodMemo(alignment.getUnitClassCount());
+        }
+        unitClassMemo.clear();
+    }
 
+    /*
+     * Sums the pattern log-likelihoods of the most recent calculation over the patterns of a unit.
+     * The sum is computed once for each class of units.
+     */
+    protected double getUnitLogLikelihood(GeneralUnitAlignment alignment, int unit){
+        int unitClass = alignment.getUnitClass(unit);
+        if(unitClassMemo.contains(0, unitClass)){
+            return unitClassMemo.get(0, unitClass);
+        }
 
-
+        double logP = 0.0;
+        int unitPatternCount = alignment.getPatternCountGivenUnit(unit);
+        for(int j = 0; j < unitPatternCount; j++){
+            logP += alignment.getPatternWeightInUnit(unit, j)*
+                    m_fPatternLogLikelihoods[alignment.getPatternInUnit(unit, j)];
+        }
+        unitClassMemo.put(0, unitClass, logP);
+        return logP;
+    }
 
 
 }
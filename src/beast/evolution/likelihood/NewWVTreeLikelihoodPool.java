@@ -0,0 +1,178 @@
+package beast.evolution.likelihood;
+
+import beast.evolution.alignment.Alignment;
+import beast.evolution.branchratemodel.BranchRateModel;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.SubstitutionModel;
+import beast.evolution.tree.Tree;
+
+import java.util.ArrayList;
+
+/**
+ * Keeps the cluster likelihoods released by the DP tree likelihoods, so that a likelihood required by a new cluster
+ * reuses the partials and matrices of a released one instead of allocating new ones.
+ * A released likelihood may still be brought back by a restore, so it only becomes available once the state
+ * is stored again, and a likelihood acquired in a rejected proposal is returned to the pool on restore.
+ *
+ * @author Chieh-Hsi Wu
+ */
+public class NewWVTreeLikelihoodPool {
+    private Alignment alignment;
+    private Tree tree;
+    private boolean useAmbiguities;
+    private BranchRateModel.Base branchRateModel;
+    private int maxSize;
+    private double sparsePatternFraction;
+    private TransitionMatrixCache matrixCache;
+
+    private ArrayList<NewWVTreeLikelihood> available = new ArrayList<NewWVTreeLikelihood>();
+    private ArrayList<NewWVTreeLikelihood> released = new ArrayList<NewWVTreeLikelihood>();
+    private ArrayList<NewWVTreeLikelihood> acquired = new ArrayList<NewWVTreeLikelihood>();
+
+    public NewWVTreeLikelihoodPool(
+            Alignment alignment,
+            Tree tree,
+            boolean useAmbiguities,
+            BranchRateModel.Base branchRateModel,
+            int maxSize,
+            double sparsePatternFraction){
+        this.alignment = alignment;
+        this.tree = tree;
+        this.useAmbiguities = useAmbiguities;
+        this.branchRateModel = branchRateModel;
+        this.maxSize = maxSize;
+        this.sparsePatternFraction = sparsePatternFraction;
+    }
+
+    /*
+     * Returns a likelihood with the given pattern weights and site model,
+     * which is a released likelihood if there is one, otherwise a new one.
+     */
+    public NewWVTreeLikelihood acquire(int[] patternWeights, SiteModel siteModel){
+        NewWVTreeLikelihood treeLik;
+        if(available.size() > 0){
+            treeLik = available.remove(available.size() - 1);
+            try{
+                reset(treeLik, patternWeights, siteModel);
+            }catch(Exception e){
+                throw new RuntimeException(e);
+            }
+        }else{
+            treeLik = create(patternWeights, siteModel);
+        }
+
+        if(maxSize > 0){
+            acquired.add(treeLik);
+        }
+        return treeLik;
+    }
+
+    /*
+     * Creates a new likelihood, which evaluates only the patterns with non-zero weights
+     * when they are no more than the sparse pattern fraction of all the patterns.
+     */
+    public NewWVTreeLikelihood create(int[] patternWeights, SiteModel siteModel){
+        NewWVTreeLikelihood treeLik;
+        if(sparsePatternFraction > 0.0){
+            treeLik = new SparseWVTreeLikelihood(
+                    patternWeights,
+                    alignment,
+                    tree,
+                    useAmbiguities,
+                    siteModel,
+                    branchRateModel,
+                    sparsePatternFraction);
+        }else{
+            treeLik = new NewWVTreeLikelihood(
+                    patternWeights,
+                    alignment,
+                    tree,
+                    useAmbiguities,
+                    siteModel,
+                    branchRateModel);
+        }
+        setSubstitutionModel(treeLik, siteModel);
+        return treeLik;
+    }
+
+    /*
+     * Sets the cache of transition probability matrices shared by the likelihoods created from now on,
+     * which read the matrices of their substitution models through the cache (see CachedSubstitutionModel).
+     */
+    public void setTransitionMatrixCache(TransitionMatrixCache matrixCache){
+        this.matrixCache = matrixCache;
+    }
+
+    /*
+     * Hands a likelihood that is no longer used by any cluster back to the pool.
+     */
+    public void release(NewWVTreeLikelihood treeLik){
+        if(maxSize > 0 && treeLik != null){
+            released.add(treeLik);
+        }
+    }
+
+    /*
+     * The current state is kept, so the likelihoods released since the last store can be reused.
+     */
+    public void store(){
+        for(NewWVTreeLikelihood treeLik: released){
+            if(available.size() < maxSize){
+                available.add(treeLik);
+            }
+        }
+        released.clear();
+        acquired.clear();
+    }
+
+    /*
+     * The released likelihoods are used again by the restored clusters,
+     * and the ones acquired since the last store are no longer used.
+     */
+    public void restore(){
+        released.clear();
+        for(NewWVTreeLikelihood treeLik: acquired){
+            if(available.size() < maxSize){
+                available.add(treeLik);
+            }
+        }
+        acquired.clear();
+    }
+
+    /*
+     * Sets the weights and the site model of a released likelihood and marks the whole tree for recalculation,
+     * keeping the likelihood core and its buffers.
+     */
+    private void reset(NewWVTreeLikelihood treeLik, int[] patternWeights, SiteModel siteModel) throws Exception{
+        int[] weights = treeLik.getPatternWeights();
+        for(int i = 0; i < patternWeights.length; i++){
+            int delta = patternWeights[i] - weights[i];
+            if(delta > 0){
+                treeLik.addWeight(i, delta);
+            }else if(delta < 0){
+                treeLik.removeWeight(i, -delta);
+            }
+        }
+
+        treeLik.m_pSiteModel.setValue(siteModel, treeLik);
+        treeLik.m_siteModel = siteModel;
+        siteModel.setDataType(alignment.getDataType());
+        setSubstitutionModel(treeLik, siteModel);
+        treeLik.m_nHasDirt = Tree.IS_FILTHY;
+    }
+
+    /*
+     * Sets the substitution model used by a likelihood to calculate its transition probabilities,
+     * which is the model of the site model, or a view of it through the cache if there is one.
+     */
+    private void setSubstitutionModel(NewWVTreeLikelihood treeLik, SiteModel siteModel){
+        SubstitutionModel substModel = siteModel.m_pSubstModel.get();
+        if(matrixCache == null){
+            treeLik.m_substitutionModel = substModel;
+        }else if(treeLik.m_substitutionModel instanceof CachedSubstitutionModel){
+            ((CachedSubstitutionModel)treeLik.m_substitutionModel).setModel(substModel);
+        }else{
+            treeLik.m_substitutionModel = new CachedSubstitutionModel(substModel, matrixCache);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package beast.evolution.likelihood;
+
+import beast.evolution.alignment.GeneralUnitAlignment;
+
+/**
+ * Collects the pattern weights moved between cluster likelihoods by one or more units,
+ * so that each likelihood receives a single addWeight or removeWeight call per pattern
+ * with the net change in weight, instead of one call per site or unit.
+ * The collected changes are applied to the likelihoods by apply().
+ *
+ * @author Chieh-Hsi Wu
+ */
+public class PatternWeightTransfer {
+    private int patternCount;
+
+    //The likelihoods with collected weight changes.
+    private NewWVTreeLikelihood[] treeLiks;
+    //The net change in the weight of each pattern of each likelihood.
+    private int[][] deltas;
+    //The patterns with collected changes for each likelihood.
+    private int[][] touchedPatterns;
+    private boolean[][] touched;
+    private int[] touchedCounts;
+    private int treeLikCount;
+
+    public PatternWeightTransfer(int patternCount){
+        this.patternCount = patternCount;
+        treeLiks = new NewWVTreeLikelihood[2];
+        deltas = new int[2][];
+        touchedPatterns = new int[2][];
+        touched = new boolean[2][];
+        touchedCounts = new int[2];
+    }
+
+    /*
+     * Collects the move of the pattern weights of a unit from one likelihood to another.
+     */
+    public void moveUnit(GeneralUnitAlignment alignment, int unitIndex, NewWVTreeLikelihood from, NewWVTreeLikelihood to){
+        if(from == to){
+            return;
+        }
+
+        int fromIndex = getIndex(from);
+        int toIndex = getIndex(to);
+        int unitPatternCount = alignment.getPatternCountGivenUnit(unitIndex);
+        for(int i = 0; i < unitPatternCount; i++){
+            int patternIndex = alignment.getPatternInUnit(unitIndex, i);
+            int weight = alignment.getPatternWeightInUnit(unitIndex, i);
+            addDelta(fromIndex, patternIndex, -weight);
+            addDelta(toIndex, patternIndex, weight);
+        }
+    }
+
+    /*
+     * Applies the net weight changes to the likelihoods and clears the collected changes.
+     */
+    public void apply(){
+        for(int i = 0; i < treeLikCount; i++){
+            int[] delta = deltas[i];
+            int[] patterns = touchedPatterns[i];
+            for(int j = 0; j < touchedCounts[i]; j++){
+                int patternIndex = patterns[j];
+                if(delta[patternIndex] > 0){
+                    treeLiks[i].addWeight(patternIndex, delta[patternIndex]);
+                }else if(delta[patternIndex] < 0){
+                    treeLiks[i].removeWeight(patternIndex, -delta[patternIndex]);
+                }
+                delta[patternIndex] = 0;
+                touched[i][patternIndex] = false;
+            }
+            touchedCounts[i] = 0;
+            treeLiks[i] = null;
+        }
+        treeLikCount = 0;
+    }
+
+    private int getIndex(NewWVTreeLikelihood treeLik){
+        //Only a few likelihoods are involved in a move, so a linear search is sufficient.
+        for(int i = 0; i < treeLikCount; i++){
+            if(treeLiks[i] == treeLik){
+                return i;
+            }
+        }
+
+        if(treeLikCount == treeLiks.length){
+            int newLength = 2*treeLiks.length;
+            NewWVTreeLikelihood[] newTreeLiks = new NewWVTreeLikelihood[newLength];
+            int[][] newDeltas = new int[newLength][];
+            int[][] newTouchedPatterns = new int[newLength][];
+            boolean[][] newTouched = new boolean[newLength][];
+            int[] newTouchedCounts = new int[newLength];
+            System.arraycopy(treeLiks, 0, newTreeLiks, 0, treeLikCount);
+            System.arraycopy(deltas, 0, newDeltas, 0, treeLikCount);
+            System.arraycopy(touchedPatterns, 0, newTouchedPatterns, 0, treeLikCount);
+            System.arraycopy(touched, 0, newTouched, 0, treeLikCount);
+            System.arraycopy(touchedCounts, 0, newTouchedCounts, 0, treeLikCount);
+            treeLiks = newTreeLiks;
+            deltas = newDeltas;
+            touchedPatterns = newTouchedPatterns;
+            touched = newTouched;
+            touchedCounts = newTouchedCounts;
+        }
+
+        //The arrays of the previous use are reused.
+        if(deltas[treeLikCount] == null){
+            deltas[treeLikCount] = new int[patternCount];
+            touchedPatterns[treeLikCount] = new int[patternCount];
+            touched[treeLikCount] = new boolean[patternCount];
+        }
+        treeLiks[treeLikCount] = treeLik;
+        return treeLikCount++;
+    }
+
+    private void addDelta(int index, int patternIndex, int weight){
+        if(!touched[index][patternIndex]){
+            touched[index][patternIndex] = true;
+            touchedPatterns[index][touchedCounts[index]++] = patternIndex;
+        }
+        deltas[index][patternIndex] += weight;
+    }
+
+
+}
@@ -0,0 +1,377 @@
+package beast.evolution.likelihood;
+
+import beast.evolution.alignment.Alignment;
+import beast.evolution.branchratemodel.BranchRateModel;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+
+/**
+ * A cluster likelihood that keeps a list of the patterns with non-zero weights, which is updated by addWeight and removeWeight.
+ * While the proportion of such patterns is no more than maxActiveFraction, the likelihood is calculated by pruning
+ * over those patterns only, instead of all the patterns in the alignment, and the scheduler may divide them among
+ * the threads (see ClusterLikelihoodScheduler).
+ * As this pruning recalculates every active pattern from the leaves, it is only worth it for a genuinely sparse cluster.
+ * The log-likelihoods of the other patterns, which are needed to evaluate moving units into the cluster,
+ * are calculated when they are requested.
+ * Otherwise the likelihood is calculated by the full tree likelihood.
+ *
+ * @author Chieh-Hsi Wu
+ */
+public class SparseWVTreeLikelihood extends NewWVTreeLikelihood {
+    private double maxActiveFraction;
+
+    private int[] weights;
+    private int[] activePatterns;
+    //The position of each pattern in activePatterns, or -1 if its weight is zero.
+    private int[] activePositions;
+    private int activeCount;
+
+    //The patterns whose weights have changed since the last store, which are set back by restore.
+    private int[] changedPatterns;
+    private int changedCount;
+    private boolean[] patternChanged;
+
+    //Whether the most recent calculation was over the active patterns only.
+    private boolean sparse;
+    private boolean storedSparse;
+    //Whether the full tree likelihood has overwritten the pattern log-likelihoods since the last store.
+    private boolean fullSinceStore;
+
+    //The pattern log-likelihoods are valid if their stamps are equal to the current stamp.
+    //New stamps are taken from a counter that is never set back, so no stamp is issued twice.
+    private int[] patternStamps;
+    private int stamp = 1;
+    private int storedStamp = 1;
+    private int stampCounter = 1;
+    private int matrixStamp;
+
+    private int stateCount;
+    private int categoryCount;
+    private int[] leafTaxa;
+    private double[][] matrices;
+    private double[] matrix;
+    private double[] proportions;
+    private double[] frequencies;
+    private double[][] nodePartials;
+
+    public SparseWVTreeLikelihood(
+            int[] patternWeights,
+            Alignment alignment,
+            Tree tree,
+            boolean useAmbiguities,
+            SiteModel siteModel,
+            BranchRateModel.Base branchRateModel,
+            double maxActiveFraction){
+        super(patternWeights, alignment, tree, useAmbiguities, siteModel, branchRateModel);
+        this.maxActiveFraction = maxActiveFraction;
+
+        int patternCount = alignment.getPatternCount();
+        weights = new int[patternCount];
+        activePatterns = new int[patternCount];
+        activePositions = new int[patternCount];
+        patternStamps = new int[patternCount];
+        changedPatterns = new int[patternCount];
+        patternChanged = new boolean[patternCount];
+        for(int i = 0; i < patternCount; i++){
+            activePositions[i] = -1;
+            updateWeight(i, patternWeights[i]);
+        }
+
+        stateCount = alignment.getDataType().getStateCount();
+        int nodeCount = tree.getNodeCount();
+        leafTaxa = new int[nodeCount];
+        for(Node node: tree.getNodesAsArray()){
+            if(node.isLeaf()){
+                leafTaxa[node.getNr()] = alignment.getTaxonIndex(node.getID());
+            }
+        }
+        nodePartials = new double[nodeCount][];
+        matrices = new double[nodeCount][];
+        matrix = new double[stateCount*stateCount];
+    }
+
+    public void addWeight(int patIndex, int weight){
+        super.addWeight(patIndex, weight);
+        if(weights != null){
+            recordChange(patIndex);
+            updateWeight(patIndex, weights[patIndex] + weight);
+        }
+    }
+
+    public void removeWeight(int patIndex, int weight){
+        super.removeWeight(patIndex, weight);
+        if(weights != null){
+            recordChange(patIndex);
+            updateWeight(patIndex, weights[patIndex] - weight);
+        }
+    }
+
+    private void recordChange(int patIndex){
+        if(!patternChanged[patIndex]){
+            patternChanged[patIndex] = true;
+            changedPatterns[changedCount++] = patIndex;
+        }
+    }
+
+    /*
+     * Sets the weight of a pattern and adds the pattern to or removes it from the active patterns.
+     */
+    private void updateWeight(int patIndex, int weight){
+        weights[patIndex] = weight;
+        if(weight > 0 && activePositions[patIndex] == -1){
+            activePositions[patIndex] = activeCount;
+            activePatterns[activeCount++] = patIndex;
+        }else if(weight == 0 && activePositions[patIndex] != -1){
+            //Move the last active pattern into the position of the removed one.
+            int lastPattern = activePatterns[--activeCount];
+            activePatterns[activePositions[patIndex]] = lastPattern;
+            activePositions[lastPattern] = activePositions[patIndex];
+            activePositions[patIndex] = -1;
+        }
+    }
+
+    public int getActivePatternCount(){
+        return activeCount;
+    }
+
+    /*
+     * Whether the active patterns can be evaluated on their own.
+     * Ambiguous states and invariant sites are left to the full tree likelihood.
+     */
+    public boolean canEvaluatePatternRanges(){
+        return !useAmbiguitiesInput.get() && m_siteModel.getProportianInvariant() == 0.0;
+    }
+
+    private boolean useSparse(){
+        return activeCount <= maxActiveFraction*weights.length && canEvaluatePatternRanges();
+    }
+
+    @Override
+    public double calculateLogP() throws Exception{
+        if(!prepareSparseCalculation()){
+            return super.calculateLogP();
+        }
+
+        logP = calculateActivePatterns(0, activeCount, nodePartials);
+        return logP;
+    }
+
+    /*
+     * Starts a new calculation and returns whether it is over the active patterns only,
+     * which it is if they are few enough, provided that they can be evaluated on their own.
+     * The transition probability matrices are then calculated here, so that
+     * the active patterns can be evaluated by calculateActivePatterns, possibly in parallel.
+     */
+    public boolean prepareSparseCalculation(){
+        if(!useSparse()){
+            if(sparse){
+                //The partials of the full tree likelihood were not kept up to date.
+                m_nHasDirt = Tree.IS_FILTHY;
+                sparse = false;
+            }
+            fullSinceStore = true;
+            return false;
+        }
+
+        //The pattern log-likelihoods are only recalculated if the model, the tree or the branch rates have changed,
+        //since a change of weights alone does not change them.
+        if(!sparse || m_nHasDirt != Tree.IS_CLEAN || m_siteModel.isDirtyCalculation() ||
+                m_tree.get().somethingIsDirty() ||
+                (m_pBranchRateModel.get() != null && m_pBranchRateModel.get().isDirtyCalculation())){
+            stamp = ++stampCounter;
+            m_nHasDirt = Tree.IS_CLEAN;
+        }
+        sparse = true;
+        if(matrixStamp != stamp){
+            updateMatrices();
+        }
+        return true;
+    }
+
+    /*
+     * Returns the sum of the weighted log-likelihoods of the active patterns in the given range of positions.
+     * Calls over disjoint ranges with different buffers (see createPartialsBuffer) may run concurrently.
+     */
+    public double calculateActivePatterns(int from, int to, double[][] buffer){
+        double sum = 0.0;
+        for(int i = from; i < to; i++){
+            int patIndex = activePatterns[i];
+            if(patternStamps[patIndex] != stamp){
+                m_fPatternLogLikelihoods[patIndex] = calculatePatternLogLikelihood(patIndex, buffer);
+                patternStamps[patIndex] = stamp;
+            }
+            sum += weights[patIndex]*m_fPatternLogLikelihoods[patIndex];
+        }
+        return sum;
+    }
+
+    /*
+     * Sets the log-likelihood from the sums returned by calculateActivePatterns over all the active patterns.
+     */
+    public void setSparseLogP(double logP){
+        this.logP = logP;
+    }
+
+    public double[][] createPartialsBuffer(){
+        return new double[nodePartials.length][];
+    }
+
+    @Override
+    public double getPatternLogLikelihood(int patIndex){
+        if(!sparse){
+            return super.getPatternLogLikelihood(patIndex);
+        }
+
+        if(patternStamps[patIndex] != stamp){
+            if(matrixStamp != stamp){
+                updateMatrices();
+            }
+            m_fPatternLogLikelihoods[patIndex] = calculatePatternLogLikelihood(patIndex, nodePartials);
+            patternStamps[patIndex] = stamp;
+        }
+        return m_fPatternLogLikelihoods[patIndex];
+    }
+
+    @Override
+    public void store(){
+        for(int i = 0; i < changedCount; i++){
+            patternChanged[changedPatterns[i]] = false;
+        }
+        changedCount = 0;
+        storedSparse = sparse;
+        storedStamp = stamp;
+        fullSinceStore = false;
+        super.store();
+    }
+
+    @Override
+    public void restore(){
+        super.restore();
+
+        //The active patterns are set back to the pattern weights restored by the superclass.
+        int[] restoredWeights = getPatternWeights();
+        for(int i = 0; i < changedCount; i++){
+            int patIndex = changedPatterns[i];
+            patternChanged[patIndex] = false;
+            updateWeight(patIndex, restoredWeights[patIndex]);
+        }
+        changedCount = 0;
+
+        //The pattern log-likelihoods calculated in the rejected state have newer stamps and are discarded,
+        //unless the full tree likelihood has overwritten the ones of the stored state as well.
+        sparse = storedSparse;
+        stamp = fullSinceStore ? ++stampCounter : storedStamp;
+        fullSinceStore = false;
+    }
+
+    /*
+     * Calculates the transition probability matrices of all the branches for every rate category.
+     */
+    private void updateMatrices(){
+        Tree tree = m_tree.get();
+        categoryCount = m_siteModel.getCategoryCount();
+        for(Node node: tree.getNodesAsArray()){
+            if(node.isRoot()){
+                continue;
+            }
+
+            int nodeNr = node.getNr();
+            if(matrices[nodeNr] == null || matrices[nodeNr].length != categoryCount*stateCount*stateCount){
+                matrices[nodeNr] = new double[categoryCount*stateCount*stateCount];
+            }
+
+            double branchRate = m_pBranchRateModel.get() == null ? 1.0 : m_pBranchRateModel.get().getRateForBranch(node);
+            for(int i = 0; i < categoryCount; i++){
+                double jointBranchRate = m_siteModel.getRateForCategory(i, node)*branchRate;
+                m_substitutionModel.getTransitionProbabilities(node, node.getParent().getHeight(), node.getHeight(), jointBranchRate, matrix);
+                System.arraycopy(matrix, 0, matrices[nodeNr], i*matrix.length, matrix.length);
+            }
+        }
+
+        //Copied so that the patterns can be evaluated without calling the models.
+        proportions = m_siteModel.getCategoryProportions(tree.getRoot()).clone();
+        frequencies = m_substitutionModel.getFrequencies().clone();
+        matrixStamp = stamp;
+    }
+
+    /*
+     * Calculates the log-likelihood of a single pattern by pruning.
+     */
+    private double calculatePatternLogLikelihood(int patIndex, double[][] buffer){
+        Node root = m_tree.get().getRoot();
+        double logScale = traverse(root, patIndex, buffer);
+
+        double[] partials = buffer[root.getNr()];
+        double sum = 0.0;
+        for(int i = 0; i < categoryCount; i++){
+            for(int j = 0; j < stateCount; j++){
+                sum += proportions[i]*frequencies[j]*partials[i*stateCount + j];
+            }
+        }
+        return Math.log(sum) + logScale;
+    }
+
+    /*
+     * Fills the partials of the node for the given pattern, scaled so that the largest is one,
+     * and returns the sum of the log scale factors of the subtree below the node.
+     */
+    private double traverse(Node node, int patIndex, double[][] buffer){
+        int nodeNr = node.getNr();
+        double[] partials = buffer[nodeNr];
+        if(partials == null || partials.length != categoryCount*stateCount){
+            partials = new double[categoryCount*stateCount];
+            buffer[nodeNr] = partials;
+        }
+
+        if(node.isLeaf()){
+            int state = m_data.get().getPattern(leafTaxa[nodeNr], patIndex);
+            for(int i = 0; i < categoryCount; i++){
+                for(int j = 0; j < stateCount; j++){
+                    //Unknown and gap states are treated as missing data.
+                    partials[i*stateCount + j] = (state < 0 || state >= stateCount || state == j) ? 1.0 : 0.0;
+                }
+            }
+            return 0.0;
+        }
+
+        for(int i = 0; i < partials.length; i++){
+            partials[i] = 1.0;
+        }
+        double logScale = traverse(node.getLeft(), patIndex, buffer) + traverse(node.getRight(), patIndex, buffer);
+        multiplyChildPartials(partials, node.getLeft(), buffer);
+        multiplyChildPartials(partials, node.getRight(), buffer);
+
+        double max = 0.0;
+        for(int i = 0; i < partials.length; i++){
+            max = Math.max(max, partials[i]);
+        }
+        if(max > 0.0){
+            for(int i = 0; i < partials.length; i++){
+                partials[i] /= max;
+            }
+            logScale += Math.log(max);
+        }
+        return logScale;
+    }
+
+    /*
+     * Multiplies the partials of a node by the probabilities of the states at the top of the branch to a child.
+     */
+    private void multiplyChildPartials(double[] partials, Node child, double[][] buffer){
+        double[] childPartials = buffer[child.getNr()];
+        double[] childMatrix = matrices[child.getNr()];
+        for(int i = 0; i < categoryCount; i++){
+            int matrixOffset = i*stateCount*stateCount;
+            int partialsOffset = i*stateCount;
+            for(int j = 0; j < stateCount; j++){
+                double sum = 0.0;
+                for(int k = 0; k < stateCount; k++){
+                    sum += childMatrix[matrixOffset + j*stateCount + k]*childPartials[partialsOffset + k];
+                }
+                partials[partialsOffset + j] *= sum;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+package beast.evolution.likelihood;
+
+import beast.core.Input;
+import beast.core.Plugin;
+import beast.core.StateNode;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Gives each thread that evaluates units at the same time its own copy of a temporary likelihood,
+ * since a temporary likelihood keeps the state of a call (the site model values, pattern weights and partials) in its fields.
+ * The copies are all built by the constructor, which is called by the operator at initAndValidate on the main thread,
+ * so the plugins shared with the copies are never changed by the threads that use them.
+ * A copy is built through the inputs of the temporary likelihood, as if it was read from the same XML,
+ * except that it has its own weight variable likelihood with its own site model, whose parameters are copied,
+ * since the site model values are set on them by every call.
+ * All the other plugins, such as the alignment, the tree and the DP site model, are shared with the original,
+ * since the temporary likelihoods only read them.
+ * The copies read the models of the clusters through views of their own (see setConcurrent),
+ * while the original temporary likelihood is left as it is for the operator.
+ * The weight variable likelihood copied is an ExtendedSepTempWVTreeLikelihood or GeneralUnitSepTempWVTreeLikelihood,
+ * which is copied with its own class.
+ * An ExtendedTempWVTreeLikelihood is not covered, since every call also writes the parameters
+ * of its own substitution model, which would need to be copied as well.
+ *
+ * @author Chieh-Hsi Wu
+ */
+public class TempLikelihoodContext {
+    private GeneralUnitSepTempTreeLikelihood[] copies;
+
+    public TempLikelihoodContext(GeneralUnitSepTempTreeLikelihood tempLik, int copyCount){
+        copies = new GeneralUnitSepTempTreeLikelihood[copyCount];
+        try{
+            for(int i = 0; i < copyCount; i++){
+                copies[i] = createCopy(tempLik);
+                copies[i].setConcurrent(true);
+            }
+        }catch(Exception e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+     * Returns the copy used by the given thread, where 0 <= thread < the number of copies.
+     */
+    public GeneralUnitSepTempTreeLikelihood get(int thread){
+        return copies[thread];
+    }
+
+    public int getCopyCount(){
+        return copies.length;
+    }
+
+    private GeneralUnitSepTempTreeLikelihood createCopy(GeneralUnitSepTempTreeLikelihood tempLik) throws Exception{
+        ExtendedSepTempWVTreeLikelihood sepTempLik = tempLik.sepTempWVTreeLikelihoodInput.get();
+        Plugin siteModel = sepTempLik.m_pSiteModel.get();
+
+        //The site model gets copies of its parameters.
+        IdentityHashMap<Object, Object> replacements = new IdentityHashMap<Object, Object>();
+        for(Input<?> input: siteModel.listInputs()){
+            if(input.get() instanceof StateNode){
+                replacements.put(input.get(), ((StateNode)input.get()).copy());
+            }
+        }
+        Plugin siteModelCopy = initFrom(siteModel.getClass().newInstance(), siteModel, replacements);
+
+        replacements.clear();
+        replacements.put(siteModel, siteModelCopy);
+        ExtendedSepTempWVTreeLikelihood sepTempLikCopy = initFrom(sepTempLik.getClass().newInstance(), sepTempLik, replacements);
+
+        replacements.clear();
+        replacements.put(sepTempLik, sepTempLikCopy);
+        return initFrom(new GeneralUnitSepTempTreeLikelihood(), tempLik, replacements);
+    }
+
+    /*
+     * Sets the inputs of a new plugin to the values of the inputs of another,
+     * except for the values that have replacements, and initialises it.
+     */
+    private <P extends Plugin> P initFrom(P copy, Plugin plugin, IdentityHashMap<Object, Object> replacements) throws Exception{
+        copy.setID(plugin.getID());
+        for(Input<?> input: plugin.listInputs()){
+            Object value = input.get();
+            if(value == null){
+                continue;
+            }
+            if(value instanceof List){
+                for(Object item: (List<?>)value){
+                    copy.setInputValue(input.getName(), replace(item, replacements));
+                }
+            }else{
+                copy.setInputValue(input.getName(), replace(value, replacements));
+            }
+        }
+        copy.initAndValidate();
+        return copy;
+    }
+
+    private Object replace(Object value, IdentityHashMap<Object, Object> replacements){
+        Object replacement = replacements.get(value);
+        return replacement == null ? value : replacement;
+    }
+
+}
@@ -0,0 +1,192 @@
+package beast.evolution.likelihood;
+
+import beast.evolution.substitutionmodel.EigenDecomposition;
+import beast.evolution.substitutionmodel.SubstitutionModel;
+import beast.evolution.substitutionmodel.ThreadSafeSubstitutionModel;
+import beast.evolution.tree.Node;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded least recently used cache of transition probability matrices shared by the cluster likelihoods,
+ * keyed by the substitution model and the expected number of substitutions, i.e. the branch length
+ * times the branch rate times the rate of the category, on which the matrix of a time homogeneous model only depends.
+ * The matrices of a model are discarded by invalidate when its parameters change.
+ * A change of the tree or the branch rates needs no action, as it only changes the distances looked up.
+ * The matrices calculated in a rejected proposal have versions that are not used again,
+ * and restore sets the models back to their versions and decompositions at the last store, so that they are used again
+ * without another decomposition of the model.
+ * The matrices that are not in the cache are calculated from one eigen decomposition of each model,
+ * which is shared by all the likelihoods with the model whatever their rates,
+ * unless the model has a complex diagonalization.
+ * The cache is used by the likelihoods that the scheduler runs on several threads (see ClusterLikelihoodScheduler),
+ * so its methods are synchronized, and a model is only called while holding its lock, as in ThreadSafeSubstitutionModel.
+ *
+ * @author Chieh-Hsi Wu
+ */
+public class TransitionMatrixCache {
+    private LinkedHashMap<Key, double[]> matrices;
+    //The entries of a model are valid if they have the current version of the model.
+    private IdentityHashMap<SubstitutionModel, Integer> versions = new IdentityHashMap<SubstitutionModel, Integer>();
+
+    //The decomposition of each model for its current version.
+    private IdentityHashMap<SubstitutionModel, EigenDecomposition> decompositions = new IdentityHashMap<SubstitutionModel, EigenDecomposition>();
+    private double[] expEigenValues = new double[0];
+
+    //The versions and decompositions of the models invalidated since the last store, as they were at the store.
+    private IdentityHashMap<SubstitutionModel, Integer> storedVersions = new IdentityHashMap<SubstitutionModel, Integer>();
+    private IdentityHashMap<SubstitutionModel, EigenDecomposition> storedDecompositions = new IdentityHashMap<SubstitutionModel, EigenDecomposition>();
+    //New versions are taken from a counter that is never set back, so no version is issued twice.
+    private int versionCounter;
+
+    private long hitCount;
+    private long missCount;
+    private long decompositionCount;
+
+    public TransitionMatrixCache(final int maxSize){
+        if(maxSize < 1){
+            throw new RuntimeException("The transition matrix cache must hold at least one matrix: " + maxSize);
+        }
+        matrices = new LinkedHashMap<Key, double[]>(16, 0.75f, true){
+            protected boolean removeEldestEntry(Map.Entry<Key, double[]> eldest){
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /*
+     * Fills the matrix with the transition probabilities of the model along a branch,
+     * which are calculated by the model unless they are in the cache.
+     */
+    public synchronized void getTransitionProbabilities(
+            SubstitutionModel substModel,
+            Node node,
+            double startTime,
+            double endTime,
+            double rate,
+            double[] matrix){
+        Key key = new Key(substModel, getVersion(substModel), (startTime - endTime)*rate);
+        double[] cachedMatrix = matrices.get(key);
+        if(cachedMatrix != null && cachedMatrix.length == matrix.length){
+            hitCount++;
+            System.arraycopy(cachedMatrix, 0, matrix, 0, matrix.length);
+            return;
+        }
+
+        missCount++;
+        if(substModel.canReturnComplexDiagonalization()){
+            synchronized(substModel){
+                substModel.getTransitionProbabilities(node, startTime, endTime, rate, matrix);
+            }
+        }else{
+            EigenDecomposition decomposition = getDecomposition(substModel, node);
+            int stateCount = decomposition.getEigenValues().length;
+            if(expEigenValues.length != stateCount){
+                expEigenValues = new double[stateCount];
+            }
+            ThreadSafeSubstitutionModel.calculateTransitionProbabilities(decomposition, (startTime - endTime)*rate, expEigenValues, matrix);
+        }
+        matrices.put(key, matrix.clone());
+    }
+
+    /*
+     * Returns the decomposition of the model, which is taken from the model once for each version.
+     * A model creates a new decomposition when its parameters change rather than changing the one it returned,
+     * so the decomposition of a version can be kept for a restore.
+     */
+    private EigenDecomposition getDecomposition(SubstitutionModel substModel, Node node){
+        EigenDecomposition decomposition = decompositions.get(substModel);
+        if(decomposition == null){
+            synchronized(substModel){
+                decomposition = substModel.getEigenDecomposition(node);
+            }
+            decompositions.put(substModel, decomposition);
+            decompositionCount++;
+        }
+        return decomposition;
+    }
+
+    /*
+     * Discards the matrices of a model whose parameters have changed.
+     * The version of the model at the last store is kept, so that its matrices are used again if the change is rejected.
+     */
+    public synchronized void invalidate(SubstitutionModel substModel){
+        if(!storedVersions.containsKey(substModel)){
+            storedVersions.put(substModel, getVersion(substModel));
+            storedDecompositions.put(substModel, decompositions.get(substModel));
+        }
+        versions.put(substModel, ++versionCounter);
+        decompositions.remove(substModel);
+    }
+
+    public synchronized void store(){
+        storedVersions.clear();
+        storedDecompositions.clear();
+    }
+
+    /*
+     * Sets the invalidated models back to their versions and decompositions at the last store, which are valid again,
+     * while the matrices calculated since then keep versions that are never issued again.
+     */
+    public synchronized void restore(){
+        for(Map.Entry<SubstitutionModel, Integer> entry: storedVersions.entrySet()){
+            SubstitutionModel substModel = entry.getKey();
+            versions.put(substModel, entry.getValue());
+            EigenDecomposition decomposition = storedDecompositions.get(substModel);
+            if(decomposition == null){
+                decompositions.remove(substModel);
+            }else{
+                decompositions.put(substModel, decomposition);
+            }
+        }
+        storedVersions.clear();
+        storedDecompositions.clear();
+    }
+
+    public synchronized long getHitCount(){
+        return hitCount;
+    }
+
+    public synchronized long getMissCount(){
+        return missCount;
+    }
+
+    /*
+     * Returns the number of decompositions taken from the models.
+     */
+    public synchronized long getDecompositionCount(){
+        return decompositionCount;
+    }
+
+    private int getVersion(SubstitutionModel substModel){
+        Integer version = versions.get(substModel);
+        return version == null ? 0 : version;
+    }
+
+    private static class Key {
+        private SubstitutionModel substModel;
+        private int version;
+        private long distanceBits;
+
+        Key(SubstitutionModel substModel, int version, double distance){
+            this.substModel = substModel;
+            this.version = version;
+            distanceBits = Double.doubleToLongBits(distance);
+        }
+
+        public int hashCode(){
+            return 31*(31*System.identityHashCode(substModel) + version) + (int)(distanceBits^(distanceBits >>> 32));
+        }
+
+        public boolean equals(Object object){
+            if(!(object instanceof Key)){
+                return false;
+            }
+            Key key = (Key)object;
+            return substModel == key.substModel && version == key.version && distanceBits == key.distanceBits;
+        }
+    }
+
+}
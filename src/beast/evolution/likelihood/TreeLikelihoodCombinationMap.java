@@ -0,0 +1,174 @@
+package beast.evolution.likelihood;
+
+/**
+ * Holds the likelihoods of the ntdBMA/rate combinations that are in use, keyed by the ids of their substitution model
+ * and rate clusters, in place of a matrix over all the possible combinations.
+ * The key of a combination is a long made of the two ids, and the likelihoods are held in an open addressing table
+ * of primitive keys, so that a lookup does not create an object.
+ * The changes made since the last store are recorded, so that a restore undoes only those changes, in the reverse order.
+ *
+ * @author Chieh-Hsi Wu
+ */
+public class TreeLikelihoodCombinationMap {
+    private static final int MIN_CAPACITY = 16;
+
+    //A slot is empty if its likelihood is null.
+    private long[] keys = new long[MIN_CAPACITY];
+    private NewWVTreeLikelihood[] treeLiks = new NewWVTreeLikelihood[MIN_CAPACITY];
+    private int size;
+
+    //The changes since the last store, as the key and the likelihood it had before the change (null if there was none).
+    private long[] changedKeys = new long[MIN_CAPACITY];
+    private NewWVTreeLikelihood[] prevTreeLiks = new NewWVTreeLikelihood[MIN_CAPACITY];
+    private int changeCount;
+
+    /*
+     * Returns the likelihood of the combination, or null if the combination is not in use.
+     */
+    public NewWVTreeLikelihood get(int substModelID, int rateID){
+        return treeLiks[findSlot(getKey(substModelID, rateID))];
+    }
+
+    public void put(int substModelID, int rateID, NewWVTreeLikelihood treeLik){
+        if(treeLik == null){
+            throw new RuntimeException("The likelihood of a combination cannot be null.");
+        }
+        long key = getKey(substModelID, rateID);
+        recordChange(key, set(key, treeLik));
+    }
+
+    public NewWVTreeLikelihood remove(int substModelID, int rateID){
+        long key = getKey(substModelID, rateID);
+        NewWVTreeLikelihood prevTreeLik = set(key, null);
+        recordChange(key, prevTreeLik);
+        return prevTreeLik;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public void store(){
+        clearChanges();
+    }
+
+    public void restore(){
+        for(int i = changeCount - 1; i > -1; i--){
+            set(changedKeys[i], prevTreeLiks[i]);
+        }
+        clearChanges();
+    }
+
+    private void recordChange(long key, NewWVTreeLikelihood prevTreeLik){
+        if(changeCount == changedKeys.length){
+            long[] newChangedKeys = new long[2*changeCount];
+            NewWVTreeLikelihood[] newPrevTreeLiks = new NewWVTreeLikelihood[2*changeCount];
+            System.arraycopy(changedKeys, 0, newChangedKeys, 0, changeCount);
+            System.arraycopy(prevTreeLiks, 0, newPrevTreeLiks, 0, changeCount);
+            changedKeys = newChangedKeys;
+            prevTreeLiks = newPrevTreeLiks;
+        }
+        changedKeys[changeCount] = key;
+        prevTreeLiks[changeCount] = prevTreeLik;
+        changeCount++;
+    }
+
+    private void clearChanges(){
+        for(int i = 0; i < changeCount; i++){
+            prevTreeLiks[i] = null;
+        }
+        changeCount = 0;
+    }
+
+    /*
+     * Sets the likelihood of a key, or removes the key if the likelihood is null, and returns its previous likelihood.
+     */
+    private NewWVTreeLikelihood set(long key, NewWVTreeLikelihood treeLik){
+        int slot = findSlot(key);
+        NewWVTreeLikelihood prevTreeLik = treeLiks[slot];
+        if(treeLik == null){
+            if(prevTreeLik != null){
+                removeSlot(slot);
+            }
+            return prevTreeLik;
+        }
+
+        if(prevTreeLik == null){
+            //Keep the table at most three quarters full.
+            if(4*(size + 1) > 3*treeLiks.length){
+                resize(2*treeLiks.length);
+                slot = findSlot(key);
+            }
+            size++;
+        }
+        keys[slot] = key;
+        treeLiks[slot] = treeLik;
+        return prevTreeLik;
+    }
+
+    /*
+     * Returns the slot of the key, or the empty slot where it would be put if it is not in the table.
+     */
+    private int findSlot(long key){
+        int mask = treeLiks.length - 1;
+        int slot = hash(key) & mask;
+        while(treeLiks[slot] != null && keys[slot] != key){
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /*
+     * Empties a slot and moves the following keys of the same probe sequence back,
+     * so that every key can still be found from its home slot.
+     */
+    private void removeSlot(int slot){
+        int mask = treeLiks.length - 1;
+        treeLiks[slot] = null;
+        size--;
+
+        int next = slot;
+        while(true){
+            next = (next + 1) & mask;
+            if(treeLiks[next] == null){
+                return;
+            }
+            int home = hash(keys[next]) & mask;
+            //The key stays if its home slot is cyclically after the empty slot and not after its own slot.
+            boolean stays = slot <= next ? (slot < home && home <= next) : (slot < home || home <= next);
+            if(!stays){
+                keys[slot] = keys[next];
+                treeLiks[slot] = treeLiks[next];
+                treeLiks[next] = null;
+                slot = next;
+            }
+        }
+    }
+
+    private void resize(int capacity){
+        long[] oldKeys = keys;
+        NewWVTreeLikelihood[] oldTreeLiks = treeLiks;
+        keys = new long[capacity];
+        treeLiks = new NewWVTreeLikelihood[capacity];
+        for(int i = 0; i < oldTreeLiks.length; i++){
+            if(oldTreeLiks[i] != null){
+                int slot = findSlot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                treeLiks[slot] = oldTreeLiks[i];
+            }
+        }
+    }
+
+    /*
+     * Returns the key of a ntdBMA/rate combination, which is used wherever a combination is looked up.
+     */
+    public static long getKey(int substModelID, int rateID){
+        return ((long)substModelID << 32) | (rateID & 0xffffffffL);
+    }
+
+    static int hash(long key){
+        long h = key*0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+}
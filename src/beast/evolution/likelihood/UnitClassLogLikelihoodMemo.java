@@ -0,0 +1,123 @@
+package beast.evolution.likelihood;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the log-likelihoods of unit classes (see GeneralUnitAlignment.getUnitClass)
+ * computed under a number of clusters, so that units with identical patterns are only evaluated once.
+ * Rows are the clusters and are allocated when first used.
+ * A memo is used either with cluster indices or with the long keys of ntdBMA/rate combinations
+ * (see TreeLikelihoodCombinationMap.getKey), whose rows are given out in the order the keys are first put after a clear().
+ * All the entries are discarded in constant time by clear(), apart from the table of the keys in use.
+ *
+ * @author Chieh-Hsi Wu
+ */
+public class UnitClassLogLikelihoodMemo {
+    private int classCount;
+    private double[][] logPs;
+    private int[][] stamps;
+    private int stamp = 1;
+
+    //An open addressing table from the keys put since the last clear to their rows, where a row of -1 is an empty slot.
+    private long[] rowKeys = new long[16];
+    private int[] keyRows = new int[16];
+    private int keyedRowCount;
+
+    public UnitClassLogLikelihoodMemo(int classCount){
+        this.classCount = classCount;
+        logPs = new double[1][];
+        stamps = new int[1][];
+        Arrays.fill(keyRows, -1);
+    }
+
+    /*
+     * Discards all the stored log-likelihoods.
+     */
+    public void clear(){
+        stamp++;
+        if(keyedRowCount > 0){
+            Arrays.fill(keyRows, -1);
+            keyedRowCount = 0;
+        }
+    }
+
+    public boolean contains(long key, int unitClass){
+        int row = keyRows[findSlot(key)];
+        return row != -1 && contains(row, unitClass);
+    }
+
+    public double get(long key, int unitClass){
+        return get(keyRows[findSlot(key)], unitClass);
+    }
+
+    public void put(long key, int unitClass, double logP){
+        int slot = findSlot(key);
+        if(keyRows[slot] == -1){
+            //Keep the table at most half full.
+            if(2*(keyedRowCount + 1) > keyRows.length){
+                resize(2*keyRows.length);
+                slot = findSlot(key);
+            }
+            rowKeys[slot] = key;
+            keyRows[slot] = keyedRowCount++;
+        }
+        put(keyRows[slot], unitClass, logP);
+    }
+
+    public boolean contains(int cluster, int unitClass){
+        return cluster < stamps.length && stamps[cluster] != null && stamps[cluster][unitClass] == stamp;
+    }
+
+    public double get(int cluster, int unitClass){
+        return logPs[cluster][unitClass];
+    }
+
+    public void put(int cluster, int unitClass, double logP){
+        if(cluster >= stamps.length){
+            int newLength = Math.max(cluster + 1, 2*stamps.length);
+            double[][] newLogPs = new double[newLength][];
+            int[][] newStamps = new int[newLength][];
+            System.arraycopy(logPs, 0, newLogPs, 0, logPs.length);
+            System.arraycopy(stamps, 0, newStamps, 0, stamps.length);
+            logPs = newLogPs;
+            stamps = newStamps;
+        }
+
+        if(stamps[cluster] == null){
+            logPs[cluster] = new double[classCount];
+            stamps[cluster] = new int[classCount];
+        }
+
+        logPs[cluster][unitClass] = logP;
+        stamps[cluster][unitClass] = stamp;
+    }
+
+    /*
+     * Returns the slot of the key, or the empty slot where it would be put if it is not in the table.
+     */
+    private int findSlot(long key){
+        int mask = keyRows.length - 1;
+        int slot = TreeLikelihoodCombinationMap.hash(key) & mask;
+        while(keyRows[slot] != -1 && rowKeys[slot] != key){
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize(int capacity){
+        long[] oldRowKeys = rowKeys;
+        int[] oldKeyRows = keyRows;
+        rowKeys = new long[capacity];
+        keyRows = new int[capacity];
+        Arrays.fill(keyRows, -1);
+        for(int i = 0; i < oldKeyRows.length; i++){
+            if(oldKeyRows[i] != -1){
+                int slot = findSlot(oldRowKeys[i]);
+                rowKeys[slot] = oldRowKeys[i];
+                keyRows[slot] = oldKeyRows[i];
+            }
+        }
+    }
+
+
+}
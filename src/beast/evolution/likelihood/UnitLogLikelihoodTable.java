@@ -0,0 +1,96 @@
+package beast.evolution.likelihood;
+
+import java.util.WeakHashMap;
+
+/**
+ * A table of the log-likelihoods of the units (by unit class, see GeneralUnitAlignment.getUnitClass)
+ * under the clusters, with a column for the likelihood of each cluster.
+ * Moving units between clusters does not change the pattern log-likelihoods of a cluster,
+ * so a column is kept until it is invalidated, which is done when the parameters of its cluster or the tree change.
+ * The entries of a column at the last store are kept when the column is first invalidated after the store,
+ * and are brought back by restore.
+ * The columns are keyed by the likelihood objects rather than the cluster indices,
+ * since the indices of the clusters shift when clusters are added or removed.
+ *
+ * @author Chieh-Hsi Wu
+ */
+public class UnitLogLikelihoodTable {
+    private int classCount;
+    private WeakHashMap<NewWVTreeLikelihood, Column> columns = new WeakHashMap<NewWVTreeLikelihood, Column>();
+    //Every invalidation gets a new stamp, so the stored entries of a column are never mistaken for current ones.
+    private int nextStamp = 1;
+
+    public UnitLogLikelihoodTable(int classCount){
+        this.classCount = classCount;
+    }
+
+    public boolean contains(NewWVTreeLikelihood treeLik, int unitClass){
+        Column column = columns.get(treeLik);
+        return column != null && column.stamps[column.current][unitClass] == column.stamp[column.current];
+    }
+
+    public double get(NewWVTreeLikelihood treeLik, int unitClass){
+        Column column = columns.get(treeLik);
+        return column.logPs[column.current][unitClass];
+    }
+
+    public void put(NewWVTreeLikelihood treeLik, int unitClass, double logP){
+        Column column = columns.get(treeLik);
+        if(column == null){
+            column = new Column();
+            column.stamp[0] = nextStamp++;
+            column.stamp[1] = nextStamp++;
+            columns.put(treeLik, column);
+        }
+        column.logPs[column.current][unitClass] = logP;
+        column.stamps[column.current][unitClass] = column.stamp[column.current];
+    }
+
+    /*
+     * Discards the entries of the column of a likelihood whose pattern log-likelihoods have changed.
+     */
+    public void invalidate(NewWVTreeLikelihood treeLik){
+        Column column = columns.get(treeLik);
+        if(column == null){
+            return;
+        }
+
+        if(!column.invalidated){
+            //Keep the entries of the stored state.
+            column.current = 1 - column.current;
+            column.invalidated = true;
+        }
+        column.stamp[column.current] = nextStamp++;
+    }
+
+    public void invalidateAll(){
+        for(NewWVTreeLikelihood treeLik: columns.keySet()){
+            invalidate(treeLik);
+        }
+    }
+
+    public void store(){
+        for(Column column: columns.values()){
+            column.invalidated = false;
+        }
+    }
+
+    public void restore(){
+        for(Column column: columns.values()){
+            if(column.invalidated){
+                column.current = 1 - column.current;
+                column.invalidated = false;
+            }
+        }
+    }
+
+    private class Column {
+        double[][] logPs = new double[2][classCount];
+        int[][] stamps = new int[2][classCount];
+        int[] stamp = new int[2];
+        int current;
+        //Whether the column has been invalidated since the last store.
+        boolean invalidated;
+    }
+
+}
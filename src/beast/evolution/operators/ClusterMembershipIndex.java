@@ -0,0 +1,285 @@
+package beast.evolution.operators;
+
+import beast.core.CalculationNode;
+import beast.core.Input;
+import beast.core.parameter.ChangeType;
+import beast.core.parameter.DPPointer;
+import beast.core.parameter.ParameterList;
+
+/**
+ * Keeps the units of each cluster of a DP, indexed as in the parameter list, so that the operators can read
+ * the size of a cluster and pick its members without going through all the pointers.
+ * The members of a cluster are kept in an array together with the position of each unit in the array of its cluster,
+ * so that a unit is moved between clusters in constant time.
+ * A change of a single pointer or a swap of two pointers is applied incrementally and recorded,
+ * so that a restore undoes the recorded moves, while any other change of the cluster structure rebuilds the index,
+ * in which case the index at the last store is kept to be brought back by a restore.
+ * Since the pointers only report their last change, a change is only applied incrementally
+ * if the operator that made it has declared it to be a single change (see expectSingleChange),
+ * otherwise more than one pointer may have changed and the index is rebuilt.
+ *
+ * @author Chieh-Hsi Wu
+ */
+public class ClusterMembershipIndex extends CalculationNode {
+    public Input<DPPointer> pointersInput = new Input<DPPointer>(
+            "pointers",
+            "array which points a set of unique parameter values",
+            Input.Validate.REQUIRED
+    );
+
+    public Input<ParameterList> listInput = new Input<ParameterList>(
+            "list",
+            "the list of unique parameter values",
+            Input.Validate.REQUIRED
+    );
+
+    private DPPointer pointers;
+    private ParameterList list;
+
+    //Whether the operator has declared the current proposal to change a single pointer or swap a single pair.
+    private boolean singleChangeExpected;
+
+    private int clusterCount;
+    private int[] clusters;
+    private int[] positions;
+    private int[][] members;
+    private int[] sizes;
+
+    //The moves since the last store, as the unit and the cluster it has left.
+    private int[] movedUnits = new int[16];
+    private int[] movedFrom = new int[16];
+    private int moveCount;
+
+    //The index at the last store, kept if the index has been rebuilt since then.
+    private boolean rebuilt;
+    private int storedClusterCount;
+    private int[] storedClusters;
+    private int[] storedPositions;
+    private int[][] storedMembers;
+    private int[] storedSizes;
+    private int rebuildCount;
+
+    public void initAndValidate(){
+        pointers = pointersInput.get();
+        list = listInput.get();
+        int unitCount = pointers.getDimension();
+        clusters = new int[unitCount];
+        positions = new int[unitCount];
+        members = new int[0][];
+        sizes = new int[0];
+        storedClusters = new int[unitCount];
+        storedPositions = new int[unitCount];
+        storedMembers = new int[0][];
+        storedSizes = new int[0];
+        rebuild();
+    }
+
+    public int getClusterCount(){
+        return clusterCount;
+    }
+
+    public int getClusterSize(int cluster){
+        return sizes[cluster];
+    }
+
+    /*
+     * Returns the k-th member of a cluster, where k is less than the size of the cluster.
+     * The members of a cluster are in no particular order.
+     */
+    public int getMember(int cluster, int k){
+        return members[cluster][k];
+    }
+
+    public int getCluster(int unit){
+        return clusters[unit];
+    }
+
+    /*
+     * Returns the number of times that the index has been rebuilt rather than updated incrementally.
+     */
+    public int getRebuildCount(){
+        return rebuildCount;
+    }
+
+    /*
+     * Declares that the proposal being made changes a single pointer or swaps a single pair of pointers,
+     * so that the change can be applied incrementally. It needs to be called by the operator in its proposal,
+     * which is before the calculation nodes are stored, and holds until the next requiresRecalculation or restore.
+     */
+    public void expectSingleChange(){
+        singleChangeExpected = true;
+    }
+
+    public boolean requiresRecalculation(){
+        boolean singleChange = singleChangeExpected;
+        singleChangeExpected = false;
+
+        if(list.somethingIsDirty() && list.getChangeType() != ChangeType.VALUE_CHANGED){
+            //Clusters have been added or removed.
+            saveForRestore();
+            rebuild();
+            return true;
+        }
+
+        if(!pointers.somethingIsDirty()){
+            return false;
+        }
+
+        ChangeType changeType = pointers.getChangeType();
+        if(singleChange && changeType == ChangeType.POINTER_CHANGED){
+            int unit = pointers.getLastDirty();
+            move(unit, pointers.indexInList(unit, list));
+        }else if(singleChange && changeType == ChangeType.POINTERS_SWAPPED){
+            int[] swappedUnits = pointers.getSwappedSites();
+            int cluster = clusters[swappedUnits[0]];
+            move(swappedUnits[0], clusters[swappedUnits[1]]);
+            move(swappedUnits[1], cluster);
+        }else{
+            //More than one pointer may have changed.
+            saveForRestore();
+            rebuild();
+        }
+        return true;
+    }
+
+    public void store(){
+        //The declaration of the proposal made before the store is kept for requiresRecalculation.
+        moveCount = 0;
+        rebuilt = false;
+        super.store();
+    }
+
+    public void restore(){
+        if(rebuilt){
+            int[] tmp = clusters;
+            clusters = storedClusters;
+            storedClusters = tmp;
+
+            tmp = positions;
+            positions = storedPositions;
+            storedPositions = tmp;
+
+            tmp = sizes;
+            sizes = storedSizes;
+            storedSizes = tmp;
+
+            int[][] tmpMembers = members;
+            members = storedMembers;
+            storedMembers = tmpMembers;
+
+            clusterCount = storedClusterCount;
+        }else{
+            //Undo the moves in the reverse order.
+            for(int i = moveCount - 1; i > -1; i--){
+                setCluster(movedUnits[i], movedFrom[i]);
+            }
+        }
+        moveCount = 0;
+        rebuilt = false;
+        singleChangeExpected = false;
+        super.restore();
+    }
+
+    /*
+     * Moves a unit to a cluster and records the move.
+     */
+    private void move(int unit, int cluster){
+        if(clusters[unit] == cluster){
+            return;
+        }
+        if(moveCount == movedUnits.length){
+            int[] newMovedUnits = new int[2*moveCount];
+            int[] newMovedFrom = new int[2*moveCount];
+            System.arraycopy(movedUnits, 0, newMovedUnits, 0, moveCount);
+            System.arraycopy(movedFrom, 0, newMovedFrom, 0, moveCount);
+            movedUnits = newMovedUnits;
+            movedFrom = newMovedFrom;
+        }
+        movedUnits[moveCount] = unit;
+        movedFrom[moveCount] = clusters[unit];
+        moveCount++;
+        setCluster(unit, cluster);
+    }
+
+    private void setCluster(int unit, int cluster){
+        removeMember(unit);
+        addMember(unit, cluster);
+    }
+
+    private void addMember(int unit, int cluster){
+        if(sizes[cluster] == members[cluster].length){
+            int[] newMembers = new int[Math.max(4, 2*sizes[cluster])];
+            System.arraycopy(members[cluster], 0, newMembers, 0, sizes[cluster]);
+            members[cluster] = newMembers;
+        }
+        clusters[unit] = cluster;
+        positions[unit] = sizes[cluster];
+        members[cluster][sizes[cluster]++] = unit;
+    }
+
+    /*
+     * Removes a unit from its cluster by putting the last member of the cluster in its place.
+     */
+    private void removeMember(int unit){
+        int cluster = clusters[unit];
+        int lastUnit = members[cluster][--sizes[cluster]];
+        members[cluster][positions[unit]] = lastUnit;
+        positions[lastUnit] = positions[unit];
+    }
+
+    /*
+     * Keeps the index at the last store before it is rebuilt, unless it has been kept already.
+     */
+    private void saveForRestore(){
+        if(rebuilt){
+            return;
+        }
+        //Undo the moves since the last store first, so that the kept index is that of the stored state.
+        for(int i = moveCount - 1; i > -1; i--){
+            setCluster(movedUnits[i], movedFrom[i]);
+        }
+        moveCount = 0;
+
+        int[] tmp = storedClusters;
+        storedClusters = clusters;
+        clusters = tmp;
+
+        tmp = storedPositions;
+        storedPositions = positions;
+        positions = tmp;
+
+        tmp = storedSizes;
+        storedSizes = sizes;
+        sizes = tmp;
+
+        int[][] tmpMembers = storedMembers;
+        storedMembers = members;
+        members = tmpMembers;
+
+        storedClusterCount = clusterCount;
+        rebuilt = true;
+    }
+
+    private void rebuild(){
+        rebuildCount++;
+        clusterCount = list.getDimension();
+        if(members.length < clusterCount){
+            int[][] newMembers = new int[2*clusterCount][];
+            System.arraycopy(members, 0, newMembers, 0, members.length);
+            for(int i = members.length; i < newMembers.length; i++){
+                newMembers[i] = new int[4];
+            }
+            members = newMembers;
+        }
+        if(sizes.length < members.length){
+            sizes = new int[members.length];
+        }
+        for(int i = 0; i < clusterCount; i++){
+            sizes[i] = 0;
+        }
+        for(int unit = 0; unit < clusters.length; unit++){
+            addMember(unit, pointers.indexInList(unit, list));
+        }
+    }
+
+}
@@ -10,6 +10,7 @@ import beast.math.distributions.ConditionalParametricDistribution;
 import beast.math.distributions.ParametricDistribution;
 import beast.util.Randomizer;
 
+import java.util.Arrays;
 import java.util.HashMap;
 
 /**
@@ -61,6 +62,11 @@ public class ComplexGammaBMASAMSPriorOperator extends Operator {
             Input.Validate.REQUIRED
     );
 
+    public Input<ClusterMembershipIndex> membershipIndexInput = new Input<ClusterMembershipIndex>(
+            "membershipIndex",
+            "The units of each cluster of the same DP as dpVal, read in place of dpVal if given."
+    );
+
     public Input<DPSepTreeLikelihood> dpTreeLikelihoodInput = new Input<DPSepTreeLikelihood>(
             "dpTreeLik",
             "Tree likelihood that handle DPP",
@@ -163,10 +169,8 @@ public class ComplexGammaBMASAMSPriorOperator extends Operator {
 
         //If the randomly draw sites are from the same cluster, perform a split-move.
         if(clusterIndex1 == clusterIndex2){
-
-            int[] clusterSites = dpValuableInput.get().getClusterSites(clusterIndex1);
             //System.out.println("split: ");
-            double temp = split(index1, index2,clusterIndex1,clusterSites);
+            double temp = split(index1, index2,clusterIndex1);
             //System.out.println("split: "+temp);
             logq += temp;
 
@@ -174,17 +178,12 @@ public class ComplexGammaBMASAMSPriorOperator extends Operator {
         }else{
             //If the the two randomly drawn sites are not from the same cluster, perform a merge-move.
 
-            int[] cluster1Sites = dpValuableInput.get().getClusterSites(clusterIndex1);
-            int[] cluster2Sites = dpValuableInput.get().getClusterSites(clusterIndex2);
-
             //logq = merge(index1, index2,clusterIndex1,clusterIndex2,cluster1Sites,cluster2Sites);
             double temp = merge(
                     index1,
                     index2,
                     clusterIndex1,
-                    clusterIndex2,
-                    cluster1Sites,
-                    cluster2Sites
+                    clusterIndex2
             );
 
             //System.out.println("merge: "+temp);
@@ -218,7 +217,44 @@ public class ComplexGammaBMASAMSPriorOperator extends Operator {
         return sampleParameter;
     }
 
-    public double split(int index1, int index2, int clusterIndex, int[] initClusterSites){
+    /*
+     * Returns the number of units in a cluster, from the membership index if there is one.
+     */
+    private int getClusterSize(int clusterIndex){
+        ClusterMembershipIndex membershipIndex = membershipIndexInput.get();
+        if(membershipIndex == null){
+            return dpValuableInput.get().getClusterCounts()[clusterIndex];
+        }
+        return membershipIndex.getClusterSize(clusterIndex);
+    }
+
+    /*
+     * Puts the units of a cluster other than index1 and index2 in sites from position k on,
+     * and returns the position after the last unit put.
+     * The units are read from the membership index if there is one, without copying the cluster first.
+     */
+    private int putClusterSites(int clusterIndex, int index1, int index2, int[] sites, int k){
+        ClusterMembershipIndex membershipIndex = membershipIndexInput.get();
+        if(membershipIndex == null){
+            int[] clusterSites = dpValuableInput.get().getClusterSites(clusterIndex);
+            for(int i = 0; i < clusterSites.length; i++){
+                if(clusterSites[i] != index1 && clusterSites[i] != index2){
+                    sites[k++] = clusterSites[i];
+                }
+            }
+            return k;
+        }
+        int clusterSize = membershipIndex.getClusterSize(clusterIndex);
+        for(int i = 0; i < clusterSize; i++){
+            int site = membershipIndex.getMember(clusterIndex, i);
+            if(site != index1 && site != index2){
+                sites[k++] = site;
+            }
+        }
+        return k;
+    }
+
+    public double split(int index1, int index2, int clusterIndex){
         try{
             double logqSplit = 0.0;
 
@@ -236,13 +272,8 @@ public class ComplexGammaBMASAMSPriorOperator extends Operator {
 
 
             //Remove the index 1 and index 2 from the cluster
-            int[] clusterSites = new int[initClusterSites.length -2];
-            int k = 0;
-            for(int i = 0 ; i < initClusterSites.length;i++){
-                if(initClusterSites[i] != index1 && initClusterSites[i] != index2){
-                    clusterSites[k++] = initClusterSites[i];
-                }
-            }
+            int[] clusterSites = new int[getClusterSize(clusterIndex) - 2];
+            int k = putClusterSites(clusterIndex, index1, index2, clusterSites, 0);
             //Form a new cluster with index 1
             ratesPointers.point(index1,newRates);
 
@@ -320,7 +351,7 @@ public class ComplexGammaBMASAMSPriorOperator extends Operator {
             int cluster1Count = 1;
             int cluster2Count = 1;
 
-            int[] sitesInCluster1 = new int[initClusterSites.length];
+            int[] sitesInCluster1 = new int[clusterSites.length + 2];
             sitesInCluster1[0] = index1;
 
             //Assign members of the existing cluster (except for indice 1 and 2) randomly
@@ -390,9 +421,7 @@ public class ComplexGammaBMASAMSPriorOperator extends Operator {
             int index1,
             int index2,
             int clusterIndex1,
-            int clusterIndex2,
-            int[] cluster1Sites,
-            int[] cluster2Sites){
+            int clusterIndex2){
 
 
 
@@ -401,41 +430,21 @@ public class ComplexGammaBMASAMSPriorOperator extends Operator {
         int cluster1ID = ratesList.getParameterIDNumber(clusterIndex1);
         int cluster2ID = ratesList.getParameterIDNumber(clusterIndex2);
 
-
-        HashMap<Integer,Integer> siteMap = new HashMap<Integer, Integer>();
-
         //The value of the merged cluster will have that of cluster 2 before the merge.
         QuietRealParameter mergedRates = ratesList.getParameter(clusterIndex2);
         QuietRealParameter mergedAlpha = alphaList.getParameter(clusterIndex2);
         QuietRealParameter mergedInvPr = invPrList.getParameter(clusterIndex2);
         QuietRealParameter mergedSiteModel = siteModelList.getParameter(clusterIndex2);
 
-        //Create a vector that combines the site indices of the two clusters
-        int[] mergedClusterSites = new int[cluster1Sites.length+cluster2Sites.length-2];
+        int cluster1Size = getClusterSize(clusterIndex1);
+        int cluster2Size = getClusterSize(clusterIndex2);
 
-        int k = 0;
-        for(int i = 0; i < cluster1Sites.length;i++){
-
-            if(cluster1Sites[i] != index1){
-                // For all members that are not index 1,
-                // record the cluster in which they have been before the merge,
-                // and assign them to the combined vector.
-                siteMap.put(cluster1Sites[i],clusterIndex1);
-                mergedClusterSites[k++] = cluster1Sites[i];
-            }
-        }
-
-
-        for(int i = 0; i < cluster2Sites.length;i++){
-            //All members in cluster 2 remains in cluster2 so no new pointer assignments
-            if(cluster2Sites[i] != index2){
-                // For all members that are not index 2,
-                // record the cluster in which they have been before the merge,
-                // and assign them to the combined vector.
-                siteMap.put(cluster2Sites[i],clusterIndex2);
-                mergedClusterSites[k++] = cluster2Sites[i];
-            }
-        }
+        //Create a vector that combines the site indices of the two clusters,
+        //with the members of cluster 1 other than index 1 before those of cluster 2 other than index 2,
+        //so that the cluster of a member before the merge is told by its position in the vector.
+        int[] mergedClusterSites = new int[cluster1Size+cluster2Size-2];
+        int k = putClusterSites(clusterIndex1, index1, -1, mergedClusterSites, 0);
+        putClusterSites(clusterIndex2, index2, -1, mergedClusterSites, k);
 
 
 
@@ -445,13 +454,7 @@ public class ComplexGammaBMASAMSPriorOperator extends Operator {
             // Create a weight vector of patterns to inform the temporary tree likelihood
             // which set of pattern likelihoods are to be computed.
 
-            k = 0;
-            int[] sCluster1Sites = new int[cluster1Sites.length - 1];
-            for(int i = 0; i < cluster1Sites.length; i++){
-                if(cluster1Sites[i] != index1){
-                    sCluster1Sites[k++] = cluster1Sites[i];
-                }
-            }
+            int[] sCluster1Sites = Arrays.copyOfRange(mergedClusterSites, 0, cluster1Size - 1);
             tempLikelihood.setupPatternWeightsFromSites(sCluster1Sites);
             double[] cluster1SitesCluster2ParamLogLik = tempLikelihood.calculateLogP(
                     mergedAlpha.getValue(),
@@ -462,13 +465,7 @@ public class ComplexGammaBMASAMSPriorOperator extends Operator {
             );
 
 
-            k = 0;
-            int[] sCluster2Sites = new int[cluster2Sites.length - 1];
-            for(int i = 0; i < cluster2Sites.length; i++){
-                if(cluster2Sites[i] != index2){
-                    sCluster2Sites[k++] = cluster2Sites[i];
-                }
-            }
+            int[] sCluster2Sites = Arrays.copyOfRange(mergedClusterSites, cluster1Size - 1, mergedClusterSites.length);
             tempLikelihood.setupPatternWeightsFromSites(sCluster2Sites);
             RealParameter removedRates = ratesList.getParameter(clusterIndex1);
             RealParameter removedAlpha = alphaList.getParameter(clusterIndex1);
@@ -485,7 +482,7 @@ public class ComplexGammaBMASAMSPriorOperator extends Operator {
 
             //System.out.println("populate logLik1:");
             double[] logLik1 = new double[mergedClusterSites.length];
-            for(int i = 0; i < (cluster1Sites.length-1); i++){
+            for(int i = 0; i < (cluster1Size-1); i++){
                 //System.out.println(clusterIndex1+" "+mergedClusterSites[i]);
 
                  logLik1[i] = dpTreeLikelihood.getSiteLogLikelihood(
@@ -494,7 +491,7 @@ public class ComplexGammaBMASAMSPriorOperator extends Operator {
                          mergedClusterSites[i]
                  );
             }
-            System.arraycopy(cluster2SitesCluster1ParamLogLik,0,logLik1,cluster1Sites.length-1,cluster2SitesCluster1ParamLogLik.length);
+            System.arraycopy(cluster2SitesCluster1ParamLogLik,0,logLik1,cluster1Size-1,cluster2SitesCluster1ParamLogLik.length);
 
             double[] logLik2 = new double[mergedClusterSites.length];
             System.arraycopy(cluster1SitesCluster2ParamLogLik,0,logLik2,0,cluster1SitesCluster2ParamLogLik.length);
@@ -559,7 +556,7 @@ public class ComplexGammaBMASAMSPriorOperator extends Operator {
             double psi1, psi2, cluster1Prob;
             for(int i = 0; i < mergedClusterSites.length;i++){
 
-                cluster = siteMap.get(mergedClusterSites[shuffle[i]]);
+                cluster = shuffle[i] < cluster1Size - 1 ? clusterIndex1 : clusterIndex2;
                 psi1 = cluster1Count*lik1[shuffle[i]];
                 psi2 = cluster2Count*lik2[shuffle[i]];
 
@@ -597,9 +594,10 @@ public class ComplexGammaBMASAMSPriorOperator extends Operator {
                 alphaList.mergeParameter(clusterIndex1,clusterIndex2);
                 invPrList.mergeParameter(clusterIndex1,clusterIndex2);
                 siteModelList.mergeParameter(clusterIndex1,clusterIndex2);
-                for(int i = 0; i < cluster1Sites.length;i++){
+                for(int i = 0; i < cluster1Size;i++){
                     //Point every member in cluster 1 to cluster 2
-                    ratesPointers.point(cluster1Sites[i],mergedRates);
+                    int site = i < cluster1Size - 1 ? mergedClusterSites[i] : index1;
+                    ratesPointers.point(site,mergedRates);
 
 
                 }
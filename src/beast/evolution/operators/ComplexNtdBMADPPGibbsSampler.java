@@ -66,6 +66,13 @@ public class ComplexNtdBMADPPGibbsSampler extends Operator implements Loggable {
             Input.Validate.REQUIRED
     );
 
+    public Input<Boolean> systematicScanInput = new Input<Boolean>(
+            "systematicScan",
+            "Whether the units are updated in turn, one unit per proposal, so that every unit is updated " +
+                    "once in each sweep of as many proposals as there are units (default false, i.e. a unit picked at random).",
+            false
+    );
+
 
     public Input<TempTreeLikelihood> tempLikelihoodInput = new Input<TempTreeLikelihood>(
             "tempLikelihood",
@@ -79,6 +86,11 @@ public class ComplexNtdBMADPPGibbsSampler extends Operator implements Loggable {
             Input.Validate.REQUIRED
     );
 
+    public Input<ClusterMembershipIndex> membershipIndexInput = new Input<ClusterMembershipIndex>(
+            "membershipIndex",
+            "The units of each cluster of the same DP as dpVal, from which the cluster counts are read if given."
+    );
+
     public Input<DPTreeLikelihood> dpTreeLikelihoodInput = new Input<DPTreeLikelihood>(
             "dpTreeLik",
             "Tree likelihood that handle DPP",
@@ -123,6 +135,18 @@ public class ComplexNtdBMADPPGibbsSampler extends Operator implements Loggable {
     private DPValuable dpVal;
     private DPTreeLikelihood dpTreeLikelihood;
     private int addClusterCount =0;
+    //The cluster counts read from the membership index, reused by every proposal.
+    private int[] clusterCountBuffer = new int[0];
+    //The values of the existing clusters, reused by every proposal.
+    private QuietRealParameter[] existingParamVals = new QuietRealParameter[0];
+    private QuietRealParameter[] existingModelVals = new QuietRealParameter[0];
+    private QuietRealParameter[] existingFreqsVals = new QuietRealParameter[0];
+    private int[] existingCluster = new int[0];
+    private boolean systematicScan;
+    //The unit updated by the next proposal if the units are updated in turn.
+    private int scanPosition = 0;
+    //Samples from the full conditional with buffers reused by every proposal.
+    private LogCategoricalSampler fullConditionalSampler = new LogCategoricalSampler();
     private boolean testCorrect;
     public void initAndValidate(){
         testCorrect = testCorrectInput.get();
@@ -133,6 +157,7 @@ public class ComplexNtdBMADPPGibbsSampler extends Operator implements Loggable {
         freqsBaseDistr = freqsBaseDistrInput.get();
 
         sampleSize = sampleSizeInput.get();
+        systematicScan = systematicScanInput.get();
         dpVal = dpValuableInput.get();
         dpTreeLikelihood = dpTreeLikelihoodInput.get();
 
@@ -154,9 +179,17 @@ public class ComplexNtdBMADPPGibbsSampler extends Operator implements Loggable {
         ParameterList modelList = modelListInput.get();
 
 
-        //Randomly pick an index to update, gets it's current value and its position in the parameter list
+        //Pick an index to update, in turn or at random, gets it's current value and its position in the parameter list
         int dimPointer = paramPointers.getDimension();
-        int index = Randomizer.nextInt(dimPointer);
+        int index;
+        if(systematicScan){
+            if(scanPosition >= dimPointer){
+                scanPosition = 0;
+            }
+            index = scanPosition++;
+        }else{
+            index = Randomizer.nextInt(dimPointer);
+        }
 
 
 
@@ -178,18 +211,21 @@ public class ComplexNtdBMADPPGibbsSampler extends Operator implements Loggable {
         RealParameter curr = freqPointers.getParameter(index);
 
         //Count the number of items in each cluster but excluding the one about to be updated
-        int[] clusterCounts = dpVal.getClusterCounts();
+        int clusterCount = paramList.getDimension();
+        int[] clusterCounts = getClusterCounts(clusterCount);
         clusterCounts[listIndex] =  clusterCounts[listIndex]-1;
 
-        QuietRealParameter[] existingParamVals = new QuietRealParameter[clusterCounts.length];
-        QuietRealParameter[] existingModelVals = new QuietRealParameter[clusterCounts.length];
-        QuietRealParameter[] existingFreqsVals = new QuietRealParameter[clusterCounts.length];
-        int[] existingCluster = new int[clusterCounts.length];
+        if(existingCluster.length < clusterCount){
+            existingParamVals = new QuietRealParameter[2*clusterCount];
+            existingModelVals = new QuietRealParameter[2*clusterCount];
+            existingFreqsVals = new QuietRealParameter[2*clusterCount];
+            existingCluster = new int[2*clusterCount];
+        }
 
         int counter = 0;
         int zeroCount = -1;
 
-        for(int i = 0; i < clusterCounts.length;i++){
+        for(int i = 0; i < clusterCount;i++){
             if(clusterCounts[i]>0){
                 clusterCounts[counter] = clusterCounts[i];
                 existingParamVals[counter] = paramList.getParameter(i);
@@ -222,7 +258,8 @@ public class ComplexNtdBMADPPGibbsSampler extends Operator implements Loggable {
             int i;
             double concVal =dp.getConcParameter();
 
-            double[] logFullCond = new double[counter+sampleSize];
+            int candidateCount = counter+sampleSize;
+            double[] logFullCond = fullConditionalSampler.getLogWeights(candidateCount);
 
             for(i = 0; i < counter; i++){
 
@@ -299,7 +336,7 @@ public class ComplexNtdBMADPPGibbsSampler extends Operator implements Loggable {
                 //logFullCond[i] = logFullCond[i]+ dpTreeLikelihood.getSiteLogLikelihood(zeroCount,index);
                 i++;
             }
-            for(; i < logFullCond.length; i++){
+            for(; i < candidateCount; i++){
 
                 logFullCond[i] = Math.log(concVal/sampleSize/(dimPointer - 1 + concVal));
 
@@ -330,57 +367,10 @@ public class ComplexNtdBMADPPGibbsSampler extends Operator implements Loggable {
             }*/
 
 
-            double[] fullConditional = new double[logFullCond.length];
-            //double sum = 0.0;
-            for(i = 0; i < fullConditional.length;i++){
-                fullConditional[i] = Math.exp(logFullCond[i]);
-                //-smallestVal);
-                //System.err.println("fullConditional[i]: "+fullConditional[i]);
-                if(Double.isNaN(fullConditional[i])||fullConditional[i]==Double.POSITIVE_INFINITY){
-                    //System.err.println(smallestVal);
-                    for(int j = 0;j <logFullCond.length;j++){
-                        System.err.println("logFullCond[i]: "+logFullCond[j]);
-
-                    }
-                    for(int j = 0; j < existingParamVals.length;j++){
-                        System.err.println(existingParamVals[j]+" "+existingModelVals[j]+" "+existingFreqsVals[j]);
-
-                    }
-                    for(int j = 0; j < paramPreProposals.length;j++){
-                        System.err.println(paramPreProposals[j]+" "+modelPreProposals[j]+" "+freqsPreProposals[j]);
-
-                    }
-                    //return Double.NEGATIVE_INFINITY;
-                }
-
-                //sum+=fullConditional[i];
+            int proposedIndex = fullConditionalSampler.sample(candidateCount);
+            if(proposedIndex < 0){
+                return Double.NEGATIVE_INFINITY;
             }
-
-
-            double total = Randomizer.getTotal(fullConditional);
-            if(total < 1e-100){
-                /*System.out.println("flag1");
-                for(int j = 0; j < fullConditional.length; j++){
-                    //fullConditional[j] = Math.exp(logFullCond[j] - smallestVal);
-                    System.out.println(fullConditional[j]+" "+logFullCond[j]);
-                }*/
-                double maxVal = logFullCond[0];
-                for(int j = 1; j < logFullCond.length;j++){
-                    if(maxVal < logFullCond[j]) {
-                        maxVal = logFullCond[j];
-                    }
-                }
-                for(int j = 0; j < fullConditional.length; j++){
-                    fullConditional[j] = Math.exp(logFullCond[j] - maxVal);
-                    //System.out.println(logFullCond[j] - smallestVal);
-                }
-
-            }
-
-
-
-
-            int proposedIndex = Randomizer.randomChoicePDF(fullConditional);
             //System.err.println("proposedIndex: "+proposedIndex);
             QuietRealParameter paramProposal;
             QuietRealParameter modelProposal;
@@ -426,6 +416,10 @@ public class ComplexNtdBMADPPGibbsSampler extends Operator implements Loggable {
                     paramPointers = parameterPointersInput.get(this);
                     freqPointers = freqsPointersInput.get(this);
                     modelPointers = modelPointersInput.get(this);
+                    //A single pointer of each list changes, so the membership index can move the unit incrementally.
+                    if(membershipIndexInput.get() != null){
+                        membershipIndexInput.get().expectSingleChange();
+                    }
                     paramPointers.point(index, paramProposal);
                     modelPointers.point(index, modelProposal);
                     freqPointers.point(index, freqsProposal);
@@ -479,6 +473,24 @@ public class ComplexNtdBMADPPGibbsSampler extends Operator implements Loggable {
     }
 
 
+    /*
+     * Returns the number of units in each cluster, read from the membership index if there is one
+     * into a buffer that is kept by the sampler and overwritten by the next proposal.
+     */
+    private int[] getClusterCounts(int clusterCount){
+        ClusterMembershipIndex membershipIndex = membershipIndexInput.get();
+        if(membershipIndex == null){
+            return dpVal.getClusterCounts();
+        }
+        if(clusterCountBuffer.length < clusterCount){
+            clusterCountBuffer = new int[2*clusterCount];
+        }
+        for(int i = 0; i < clusterCount; i++){
+            clusterCountBuffer[i] = membershipIndex.getClusterSize(i);
+        }
+        return clusterCountBuffer;
+    }
+
     public QuietRealParameter[] getSamples(ParametricDistribution distr, RealParameter example) throws Exception{
         QuietRealParameter[] samples = new QuietRealParameter[sampleSize];
         Double[][] sampleVals = distr.sample(sampleSize);
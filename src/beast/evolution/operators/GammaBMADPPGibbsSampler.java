@@ -1,5 +1,6 @@
 package beast.evolution.operators;
 
+import beast.app.BeastMCMC;
 import beast.core.Input;
 import beast.core.Loggable;
 import beast.core.Operator;
@@ -93,6 +94,13 @@ public class GammaBMADPPGibbsSampler extends Operator implements Loggable {
             Input.Validate.REQUIRED
     );
 
+    public Input<Boolean> systematicScanInput = new Input<Boolean>(
+            "systematicScan",
+            "Whether the units are updated in turn, one unit per proposal, so that every unit is updated " +
+                    "once in each sweep of as many proposals as there are units (default false, i.e. a unit picked at random).",
+            false
+    );
+
 
     public Input<GeneralUnitSepTempTreeLikelihood> tempLikelihoodInput = new Input<GeneralUnitSepTempTreeLikelihood>(
             "tempLikelihood",
@@ -106,6 +114,11 @@ public class GammaBMADPPGibbsSampler extends Operator implements Loggable {
             Input.Validate.REQUIRED
     );
 
+    public Input<ClusterMembershipIndex> membershipIndexInput = new Input<ClusterMembershipIndex>(
+            "membershipIndex",
+            "The units of each cluster of the same DP as dpVal, from which the cluster counts are read if given."
+    );
+
     public Input<DPSepTreeLikelihood> dpTreeLikelihoodInput = new Input<DPSepTreeLikelihood>(
             "dpTreeLik",
             "Tree likelihood that handle DPP",
@@ -118,6 +131,13 @@ public class GammaBMADPPGibbsSampler extends Operator implements Loggable {
             false
     );
 
+    public Input<Boolean> parallelScoringInput = new Input<Boolean>(
+            "parallelScoring",
+            "Whether the auxiliary proposals are evaluated on several threads, " +
+                    "each with its own copy of the temporary likelihood (default false).",
+            false
+    );
+
     int tempCount = 1;
     private CompoundDirichletProcess dp;
     private int sampleSize;
@@ -128,7 +148,22 @@ public class GammaBMADPPGibbsSampler extends Operator implements Loggable {
     private DPValuable dpVal;
     private DPSepTreeLikelihood dpTreeLikelihood;
     private int addClusterCount =0;
+    //Samples from the full conditional with buffers reused by every proposal.
+    private LogCategoricalSampler fullConditionalSampler = new LogCategoricalSampler();
+    //The cluster counts read from the membership index, reused by every proposal.
+    private int[] clusterCountBuffer = new int[0];
+    //The values of the existing clusters, reused by every proposal.
+    private QuietRealParameter[] existingRatesVals = new QuietRealParameter[0];
+    private QuietRealParameter[] existingAlphaVals = new QuietRealParameter[0];
+    private QuietRealParameter[] existingInvPrVals = new QuietRealParameter[0];
+    private QuietRealParameter[] existingSiteModel = new QuietRealParameter[0];
+    private int[] existingCluster = new int[0];
+    private boolean systematicScan;
+    //The unit updated by the next proposal if the units are updated in turn.
+    private int scanPosition = 0;
     private boolean testCorrect;
+    //Evaluates the auxiliary proposals on several threads if parallelScoring is true.
+    private ParallelCandidateScorer candidateScorer;
     public void initAndValidate(){
         testCorrect = testCorrectInput.get();
         dp = dpInput.get();
@@ -139,8 +174,12 @@ public class GammaBMADPPGibbsSampler extends Operator implements Loggable {
 
 
         sampleSize = sampleSizeInput.get();
+        systematicScan = systematicScanInput.get();
         dpVal = dpValuableInput.get();
         dpTreeLikelihood = dpTreeLikelihoodInput.get();
+        if(parallelScoringInput.get() && BeastMCMC.m_nThreads > 1){
+            candidateScorer = new ParallelCandidateScorer(tempLikelihoodInput.get());
+        }
 
     }
 
@@ -160,9 +199,17 @@ public class GammaBMADPPGibbsSampler extends Operator implements Loggable {
         ParameterList siteModelList = siteModelListInput.get();
 
 
-        //Randomly pick an index to update, gets it's current value and its position in the parameter list
+        //Pick an index to update, in turn or at random, gets it's current value and its position in the parameter list
         int dimPointer = ratesPointers.getDimension();
-        int index = Randomizer.nextInt(dimPointer);
+        int index;
+        if(systematicScan){
+            if(scanPosition >= dimPointer){
+                scanPosition = 0;
+            }
+            index = scanPosition++;
+        }else{
+            index = Randomizer.nextInt(dimPointer);
+        }
 
 
 
@@ -185,20 +232,23 @@ public class GammaBMADPPGibbsSampler extends Operator implements Loggable {
         RealParameter curr = ratesPointers.getParameter(index);
 
         //Count the number of items in each cluster but excluding the one about to be updated
-        int[] clusterCounts = dpVal.getClusterCounts();
+        int clusterCount = ratesList.getDimension();
+        int[] clusterCounts = getClusterCounts(clusterCount);
         clusterCounts[listIndex] =  clusterCounts[listIndex]-1;
 
-        QuietRealParameter[] existingRatesVals = new QuietRealParameter[clusterCounts.length];
-        QuietRealParameter[] existingAlphaVals = new QuietRealParameter[clusterCounts.length];
-        QuietRealParameter[] existingInvPrVals = new QuietRealParameter[clusterCounts.length];
-        QuietRealParameter[] existingSiteModel = new QuietRealParameter[clusterCounts.length];
 
-        int[] existingCluster = new int[clusterCounts.length];
+        if(existingCluster.length < clusterCount){
+            existingRatesVals = new QuietRealParameter[2*clusterCount];
+            existingAlphaVals = new QuietRealParameter[2*clusterCount];
+            existingInvPrVals = new QuietRealParameter[2*clusterCount];
+            existingSiteModel = new QuietRealParameter[2*clusterCount];
+            existingCluster = new int[2*clusterCount];
+        }
 
         int counter = 0;
         int zeroCount = -1;
         //System.out.println("clusterCounts.length: "+dpVal.getDimension());
-        for(int i = 0; i < clusterCounts.length;i++){
+        for(int i = 0; i < clusterCount;i++){
             if(clusterCounts[i]>0){
                 clusterCounts[counter] = clusterCounts[i];
                 existingRatesVals[counter] = ratesList.getParameter(i);
@@ -235,7 +285,8 @@ public class GammaBMADPPGibbsSampler extends Operator implements Loggable {
             int i;
             double concVal =dp.getConcParameter();
 
-            double[] logFullCond = new double[counter+sampleSize];
+            int candidateCount = counter+sampleSize;
+            double[] logFullCond = fullConditionalSampler.getLogWeights(candidateCount);
 
             for(i = 0; i < counter; i++){
 
@@ -317,7 +368,29 @@ public class GammaBMADPPGibbsSampler extends Operator implements Loggable {
                 );
                 i++;
             }
-            for(; i < logFullCond.length; i++){
+            //The remaining auxiliary proposals are for the same unit, so they are evaluated in one batch.
+            int firstCandidate = i - counter;
+            double[] preProposalLogPs;
+            if(candidateScorer == null){
+                preProposalLogPs = tempLik.calculateLogPs(
+                        alphaPreProposals,
+                        invPrPreProposals,
+                        ratesPreProposals,
+                        siteModelPreProposals,
+                        firstCandidate,
+                        index
+                );
+            }else{
+                preProposalLogPs = candidateScorer.calculateLogPs(
+                        alphaPreProposals,
+                        invPrPreProposals,
+                        ratesPreProposals,
+                        siteModelPreProposals,
+                        firstCandidate,
+                        index
+                );
+            }
+            for(; i < candidateCount; i++){
 
                 logFullCond[i] = Math.log(concVal/sampleSize/(dimPointer - 1 + concVal));
                 /*double temp1 = tempLik.calculateLogP(
@@ -327,13 +400,7 @@ public class GammaBMADPPGibbsSampler extends Operator implements Loggable {
                                 index
                         );*/
 
-                logFullCond[i] = logFullCond[i]+tempLik.calculateLogP(
-                        alphaPreProposals[i-counter].getValue(),
-                        invPrPreProposals[i-counter].getValue(),
-                        ratesPreProposals[i-counter].getValue(),
-                        siteModelPreProposals[i-counter].getValue(),
-                        index
-                );
+                logFullCond[i] = logFullCond[i]+preProposalLogPs[i-counter-firstCandidate];
 
                 if(Double.isNaN(logFullCond[i])){
 
@@ -350,54 +417,10 @@ public class GammaBMADPPGibbsSampler extends Operator implements Loggable {
 
             //System.err.println("smallestVal2: "+smallestVal);
 
-            double[] fullConditional = new double[logFullCond.length];
-
-            for(i = 0; i < fullConditional.length;i++){
-                fullConditional[i] = Math.exp(logFullCond[i]);
-
-                //System.out.println("fullConditional[i]: "+fullConditional[i]+" logFullCond[i]: "+logFullCond[i]);
-                if(Double.isNaN(fullConditional[i])){
-                    return Double.NEGATIVE_INFINITY;
-                }else if(fullConditional[i] == Double.NEGATIVE_INFINITY){
-
-                    fullConditional[i] = 0.0;
-
-                    //return Double.NEGATIVE_INFINITY;
-                    //throw new RuntimeException("Huh?");
-                    //System.out.println("reject directly, existing parameter vals: "+existingParamVals.length);
-                }else if(fullConditional[i] == Double.POSITIVE_INFINITY){
-                    //System.out.println("accept directly, existing parameter vals: "+existingParamVals.length);
-                    fullConditional[i] = 1.0;
-
-                }
-            }
-
-            double total = Randomizer.getTotal(fullConditional);
-            if(total < 1e-100){
-                /*System.out.println("flag1");
-                for(int j = 0; j < fullConditional.length; j++){
-                    //fullConditional[j] = Math.exp(logFullCond[j] - smallestVal);
-                    System.out.println(fullConditional[j]+" "+logFullCond[j]);
-                }*/
-                double maxVal = logFullCond[0];
-                for(int j = 1; j < logFullCond.length;j++){
-                    if(maxVal < logFullCond[j]) {
-                        maxVal = logFullCond[j];
-                    }
-                }
-                for(int j = 0; j < fullConditional.length; j++){
-                    fullConditional[j] = Math.exp(logFullCond[j] - maxVal);
-                    //System.out.println(logFullCond[j] - smallestVal);
-                }
-
+            int proposedIndex = fullConditionalSampler.sample(candidateCount);
+            if(proposedIndex < 0){
+                return Double.NEGATIVE_INFINITY;
             }
-
-            /*for(int j = 0; j < fullConditional.length;j++){
-                System.out.println(j+" "+fullConditional[j]);
-            }*/
-
-
-            int proposedIndex = Randomizer.randomChoicePDF(fullConditional);
             //System.out.println("proposedIndex: "+proposedIndex);
             QuietRealParameter ratesProposal;
             QuietRealParameter alphaProposal;
@@ -437,6 +460,10 @@ public class GammaBMADPPGibbsSampler extends Operator implements Loggable {
                     //Singleton takes existing value or
                     //non-singleton takes new or existing value
                     ratesPointers = ratesPointersInput.get(this);
+                    //A single pointer changes, so the membership index can move the unit incrementally.
+                    if(membershipIndexInput.get() != null){
+                        membershipIndexInput.get().expectSingleChange();
+                    }
                     ratesPointers.point(index, ratesProposal);
 
                     //Non singleton takes new value
@@ -519,6 +546,24 @@ public class GammaBMADPPGibbsSampler extends Operator implements Loggable {
         return siteLogLik;
     }
 
+    /*
+     * Returns the number of units in each cluster, read from the membership index if there is one
+     * into a buffer that is kept by the sampler and overwritten by the next proposal.
+     */
+    private int[] getClusterCounts(int clusterCount){
+        ClusterMembershipIndex membershipIndex = membershipIndexInput.get();
+        if(membershipIndex == null){
+            return dpVal.getClusterCounts();
+        }
+        if(clusterCountBuffer.length < clusterCount){
+            clusterCountBuffer = new int[2*clusterCount];
+        }
+        for(int i = 0; i < clusterCount; i++){
+            clusterCountBuffer[i] = membershipIndex.getClusterSize(i);
+        }
+        return clusterCountBuffer;
+    }
+
     public QuietRealParameter[] getSamples(
             ParametricDistribution distr,
             double upper,
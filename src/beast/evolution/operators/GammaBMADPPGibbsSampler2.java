@@ -130,6 +130,8 @@ public class GammaBMADPPGibbsSampler2 extends Operator implements Loggable {
     private DPValuable dpVal;
     private DPSepTreeLikelihood dpTreeLikelihood;
     private int addClusterCount =0;
+    //Samples from the full conditional with buffers reused by every proposal.
+    private LogCategoricalSampler fullConditionalSampler = new LogCategoricalSampler();
     private boolean testCorrect;
     public void initAndValidate(){
         testCorrect = testCorrectInput.get();
@@ -222,7 +224,8 @@ public class GammaBMADPPGibbsSampler2 extends Operator implements Loggable {
             int i;
             double concVal =dp.getConcParameter();
 
-            double[] logFullCond = new double[counter+sampleSize];
+            int candidateCount = counter+sampleSize;
+            double[] logFullCond = fullConditionalSampler.getLogWeights(candidateCount);
 
             for(i = 0; i < counter; i++){
 
@@ -304,7 +307,17 @@ public class GammaBMADPPGibbsSampler2 extends Operator implements Loggable {
                 );
                 i++;
             }
-            for(; i < logFullCond.length; i++){
+            //The remaining auxiliary proposals are for the same unit, so they are evaluated in one batch.
+            int firstCandidate = i - counter;
+            double[] preProposalLogPs = tempLik.calculateLogPs(
+                    alphaPreProposals,
+                    invPrPreProposals,
+                    ratesPreProposals,
+                    siteModelPreProposals,
+                    firstCandidate,
+                    index
+            );
+            for(; i < candidateCount; i++){
 
                 logFullCond[i] = Math.log(concVal/sampleSize/(dimPointer - 1 + concVal));
                 /*double temp1 = tempLik.calculateLogP(
@@ -314,13 +327,7 @@ public class GammaBMADPPGibbsSampler2 extends Operator implements Loggable {
                                 index
                         );*/
 
-                logFullCond[i] = logFullCond[i]+tempLik.calculateLogP(
-                        alphaPreProposals[i-counter].getValue(),
-                        invPrPreProposals[i-counter].getValue(),
-                        ratesPreProposals[i-counter].getValue(),
-                        siteModelPreProposals[i-counter].getValue(),
-                        index
-                );
+                logFullCond[i] = logFullCond[i]+preProposalLogPs[i-counter-firstCandidate];
 
                 if(Double.isNaN(logFullCond[i])){
 
@@ -337,54 +344,10 @@ public class GammaBMADPPGibbsSampler2 extends Operator implements Loggable {
 
             //System.err.println("smallestVal2: "+smallestVal);
 
-            double[] fullConditional = new double[logFullCond.length];
-
-            for(i = 0; i < fullConditional.length;i++){
-                fullConditional[i] = Math.exp(logFullCond[i]);
-
-                //System.out.println("fullConditional[i]: "+fullConditional[i]+" logFullCond[i]: "+logFullCond[i]);
-                if(Double.isNaN(fullConditional[i])){
-                    return Double.NEGATIVE_INFINITY;
-                }else if(fullConditional[i] == Double.NEGATIVE_INFINITY){
-
-                    fullConditional[i] = 0.0;
-
-                    //return Double.NEGATIVE_INFINITY;
-                    //throw new RuntimeException("Huh?");
-                    //System.out.println("reject directly, existing parameter vals: "+existingParamVals.length);
-                }else if(fullConditional[i] == Double.POSITIVE_INFINITY){
-                    //System.out.println("accept directly, existing parameter vals: "+existingParamVals.length);
-                    fullConditional[i] = 1.0;
-
-                }
-            }
-
-            double total = Randomizer.getTotal(fullConditional);
-            if(total < 1e-100){
-                /*System.out.println("flag1");
-                for(int j = 0; j < fullConditional.length; j++){
-                    //fullConditional[j] = Math.exp(logFullCond[j] - smallestVal);
-                    System.out.println(fullConditional[j]+" "+logFullCond[j]);
-                }*/
-                double maxVal = logFullCond[0];
-                for(int j = 1; j < logFullCond.length;j++){
-                    if(maxVal < logFullCond[j]) {
-                        maxVal = logFullCond[j];
-                    }
-                }
-                for(int j = 0; j < fullConditional.length; j++){
-                    fullConditional[j] = Math.exp(logFullCond[j] - maxVal);
-                    //System.out.println(logFullCond[j] - smallestVal);
-                }
-
+            int proposedIndex = fullConditionalSampler.sample(candidateCount);
+            if(proposedIndex < 0){
+                return Double.NEGATIVE_INFINITY;
             }
-
-            /*for(int j = 0; j < fullConditional.length;j++){
-                System.out.println(j+" "+fullConditional[j]);
-            }*/
-
-
-            int proposedIndex = Randomizer.randomChoicePDF(fullConditional);
             //System.out.println("proposedIndex: "+proposedIndex);
             QuietRealParameter ratesProposal;
             QuietRealParameter alphaProposal;
@@ -8,6 +8,7 @@ import beast.evolution.sitemodel.DPNtdRateSepSiteModel;
 import beast.math.distributions.*;
 import beast.util.Randomizer;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
@@ -61,6 +62,11 @@ public class GammaBMASAMSOperator extends Operator {
             Input.Validate.REQUIRED
     );
 
+    public Input<ClusterMembershipIndex> membershipIndexInput = new Input<ClusterMembershipIndex>(
+            "membershipIndex",
+            "The units of each cluster of the same DP as dpVal, read in place of dpVal if given."
+    );
+
     public Input<DPTreeLikelihood> dpTreeLikelihoodInput = new Input<DPTreeLikelihood>(
             "dpTreeLik",
             "Tree likelihood that handle DPP",
@@ -165,9 +171,7 @@ public class GammaBMASAMSOperator extends Operator {
         //If the randomly draw sites are from the same cluster, perform a split-move.
         if(clusterIndex1 == clusterIndex2){
 
-            int[] clusterSites = dpValuableInput.get().getClusterSites(clusterIndex1);
-
-            double temp = split(index1, index2,clusterIndex1,clusterSites);
+            double temp = split(index1, index2,clusterIndex1);
             //System.out.println("split: "+temp);
             logq += temp;
 
@@ -175,17 +179,12 @@ public class GammaBMASAMSOperator extends Operator {
         }else{
             //If the the two randomly drawn sites are not from the same cluster, perform a merge-move.
 
-            int[] cluster1Sites = dpValuableInput.get().getClusterSites(clusterIndex1);
-            int[] cluster2Sites = dpValuableInput.get().getClusterSites(clusterIndex2);
-
             //logq = merge(index1, index2,clusterIndex1,clusterIndex2,cluster1Sites,cluster2Sites);
             double temp = merge(
                     index1,
                     index2,
                     clusterIndex1,
-                    clusterIndex2,
-                    cluster1Sites,
-                    cluster2Sites
+                    clusterIndex2
             );
 
             //System.out.println("merge: "+temp);
@@ -197,7 +196,44 @@ public class GammaBMASAMSOperator extends Operator {
 
 
 
-    public double split(int index1, int index2, int clusterIndex, int[] initClusterSites){
+    /*
+     * Returns the number of units in a cluster, from the membership index if there is one.
+     */
+    private int getClusterSize(int clusterIndex){
+        ClusterMembershipIndex membershipIndex = membershipIndexInput.get();
+        if(membershipIndex == null){
+            return dpValuableInput.get().getClusterCounts()[clusterIndex];
+        }
+        return membershipIndex.getClusterSize(clusterIndex);
+    }
+
+    /*
+     * Puts the units of a cluster other than index1 and index2 in sites from position k on,
+     * and returns the position after the last unit put.
+     * The units are read from the membership index if there is one, without copying the cluster first.
+     */
+    private int putClusterSites(int clusterIndex, int index1, int index2, int[] sites, int k){
+        ClusterMembershipIndex membershipIndex = membershipIndexInput.get();
+        if(membershipIndex == null){
+            int[] clusterSites = dpValuableInput.get().getClusterSites(clusterIndex);
+            for(int i = 0; i < clusterSites.length; i++){
+                if(clusterSites[i] != index1 && clusterSites[i] != index2){
+                    sites[k++] = clusterSites[i];
+                }
+            }
+            return k;
+        }
+        int clusterSize = membershipIndex.getClusterSize(clusterIndex);
+        for(int i = 0; i < clusterSize; i++){
+            int site = membershipIndex.getMember(clusterIndex, i);
+            if(site != index1 && site != index2){
+                sites[k++] = site;
+            }
+        }
+        return k;
+    }
+
+    public double split(int index1, int index2, int clusterIndex){
         try{
             double logqSplit = 0.0;
 
@@ -249,13 +285,8 @@ public class GammaBMASAMSOperator extends Operator {
             //freqsList.splitParameter(clusterIndex,newFreqs);
 
             //Remove the index 1 and index 2 from the cluster
-            int[] clusterSites = new int[initClusterSites.length -2];
-            int k = 0;
-            for(int i = 0 ; i < initClusterSites.length;i++){
-                if(initClusterSites[i] != index1 && initClusterSites[i] != index2){
-                    clusterSites[k++] = initClusterSites[i];
-                }
-            }
+            int[] clusterSites = new int[getClusterSize(clusterIndex) - 2];
+            int k = putClusterSites(clusterIndex, index1, index2, clusterSites, 0);
             //Form a new cluster with index 1
             //paramPointers.point(index1,newParam);
             //modelPointers.point(index1,newModel);
@@ -447,9 +478,7 @@ public class GammaBMASAMSOperator extends Operator {
             int index1,
             int index2,
             int clusterIndex1,
-            int clusterIndex2,
-            int[] cluster1Sites,
-            int[] cluster2Sites){
+            int clusterIndex2){
 
         /*if(Math.abs(modelList.getParameter(clusterIndex1).getValue() - modelList.getParameter(clusterIndex2).getValue()) > 1.0){
             return Double.NEGATIVE_INFINITY;
@@ -458,53 +487,21 @@ public class GammaBMASAMSOperator extends Operator {
 
         double logqMerge = 0.0;
 
-
-        HashMap<Integer,Integer> siteMap = new HashMap<Integer, Integer>();
-
         //The value of the merged cluster will have that of cluster 2 before the merge.
         QuietRealParameter mergedRates = ratesList.getParameter(clusterIndex2);
         QuietRealParameter mergedAlpha = alphaList.getParameter(clusterIndex2);
         QuietRealParameter mergedInvPr = invPrList.getParameter(clusterIndex2);
         QuietRealParameter mergedSiteModel = siteModelList.getParameter(clusterIndex2);
 
-        //Create a vector that combines the site indices of the two clusters
-        int[] mergedClusterSites = new int[cluster1Sites.length+cluster2Sites.length-2];
+        int cluster1Size = getClusterSize(clusterIndex1);
+        int cluster2Size = getClusterSize(clusterIndex2);
 
-        int k = 0;
-        for(int i = 0; i < cluster1Sites.length;i++){
-
-            if(cluster1Sites[i] != index1){
-                // For all members that are not index 1,
-                // record the cluster in which they have been before the merge,
-                // and assign them to the combined vector.
-                siteMap.put(cluster1Sites[i],clusterIndex1);
-                mergedClusterSites[k++] = cluster1Sites[i];
-            }
-        }
-
-
-        for(int i = 0; i < cluster2Sites.length;i++){
-            //All members in cluster 2 remains in cluster2 so no new pointer assignments
-            if(cluster2Sites[i] != index2){
-                // For all members that are not index 2,
-                // record the cluster in which they have been before the merge,
-                // and assign them to the combined vector.
-                siteMap.put(cluster2Sites[i],clusterIndex2);
-                try{
-                    mergedClusterSites[k++] = cluster2Sites[i];
-                }catch(Exception e){
-                    System.out.println("k: "+k);
-                    System.out.println("i: "+i);
-                    System.out.println("cluster2Sites.length: "+cluster2Sites.length);
-                    System.out.println("index2: "+index2);
-                    for(int index:cluster2Sites){
-                        System.out.print(index+" ");
-                    }
-                    System.out.println();
-                    throw new RuntimeException("");
-                }
-            }
-        }
+        //Create a vector that combines the site indices of the two clusters,
+        //with the members of cluster 1 other than index 1 before those of cluster 2 other than index 2,
+        //so that the cluster of a member before the merge is told by its position in the vector.
+        int[] mergedClusterSites = new int[cluster1Size+cluster2Size-2];
+        int k = putClusterSites(clusterIndex1, index1, -1, mergedClusterSites, 0);
+        putClusterSites(clusterIndex2, index2, -1, mergedClusterSites, k);
 
 
 
@@ -528,13 +525,7 @@ public class GammaBMASAMSOperator extends Operator {
                     index1
             );*/
 
-            k = 0;
-            int[] sCluster1Sites = new int[cluster1Sites.length - 1];
-            for(int i = 0 ; i < cluster1Sites.length; i++){
-                if(cluster1Sites[i] != index1){
-                    sCluster1Sites[k++] = cluster1Sites[i];
-                }
-            }
+            int[] sCluster1Sites = Arrays.copyOfRange(mergedClusterSites, 0, cluster1Size - 1);
 
             tempLikelihood.setupPatternWeightsFromSites(sCluster1Sites);
             double[] cluster1SitesCluster2ParamLogLik = tempLikelihood.calculateLogP(
@@ -563,13 +554,7 @@ public class GammaBMASAMSOperator extends Operator {
                     index2
             ); */
 
-            k = 0;
-            int[] sCluster2Sites = new int[cluster2Sites.length - 1];
-            for(int i = 0; i < cluster2Sites.length; i++){
-                if(cluster2Sites[i] != index2){
-                    sCluster2Sites[k++] = cluster2Sites[i];
-                }
-            }
+            int[] sCluster2Sites = Arrays.copyOfRange(mergedClusterSites, cluster1Size - 1, mergedClusterSites.length);
             tempLikelihood.setupPatternWeightsFromSites(sCluster2Sites);
             QuietRealParameter removedAlpha = alphaList.getParameter(clusterIndex1);
             QuietRealParameter removedInvPr = invPrList.getParameter(clusterIndex1);
@@ -585,7 +570,7 @@ public class GammaBMASAMSOperator extends Operator {
 
             //System.out.println("populate logLik1:");
             double[] logLik1 = new double[mergedClusterSites.length];
-            for(int i = 0; i < (cluster1Sites.length-1); i++){
+            for(int i = 0; i < (cluster1Size-1); i++){
                 //System.out.println(clusterIndex1+" "+mergedClusterSites[i]);
 
                  //logLik1[i] = dpTreeLikelihood.getSiteLogLikelihood(clusterIndex1,mergedClusterSites[i]);
@@ -593,9 +578,9 @@ public class GammaBMASAMSOperator extends Operator {
             }
             /*System.out.println(cluster2SitesCluster1ParamLogLik.length);
             System.out.println(logLik1.length);
-            System.out.println(cluster1Sites.length-1);
+            System.out.println(cluster1Size-1);
             System.out.println(cluster2SitesCluster1ParamLogLik.length);*/
-            System.arraycopy(cluster2SitesCluster1ParamLogLik,0,logLik1,cluster1Sites.length-1,cluster2SitesCluster1ParamLogLik.length);
+            System.arraycopy(cluster2SitesCluster1ParamLogLik,0,logLik1,cluster1Size-1,cluster2SitesCluster1ParamLogLik.length);
 
             double[] logLik2 = new double[mergedClusterSites.length];
             System.arraycopy(cluster1SitesCluster2ParamLogLik,0,logLik2,0,cluster1SitesCluster2ParamLogLik.length);
@@ -664,7 +649,7 @@ public class GammaBMASAMSOperator extends Operator {
             int cluster;
             double psi1, psi2, cluster1Prob;
             for(int i = 0; i < mergedClusterSites.length;i++){
-                cluster = siteMap.get(mergedClusterSites[shuffle[i]]);
+                cluster = shuffle[i] < cluster1Size - 1 ? clusterIndex1 : clusterIndex2;
                 psi1 = cluster1Count*lik1[shuffle[i]];
                 psi2 = cluster2Count*lik2[shuffle[i]];
                 //System.out.println(psi1+" "+psi2);
@@ -704,9 +689,10 @@ public class GammaBMASAMSOperator extends Operator {
                 alphaList.mergeParameter(clusterIndex1,clusterIndex2);
                 invPrList.mergeParameter(clusterIndex1,clusterIndex2);
                 siteModelList.mergeParameter(clusterIndex1,clusterIndex2);
-                for(int i = 0; i < cluster1Sites.length;i++){
+                for(int i = 0; i < cluster1Size;i++){
                     //Point every member in cluster 1 to cluster 2
-                    ratesPointers.point(cluster1Sites[i],mergedRates);
+                    int site = i < cluster1Size - 1 ? mergedClusterSites[i] : index1;
+                    ratesPointers.point(site,mergedRates);
 
                 }
             }
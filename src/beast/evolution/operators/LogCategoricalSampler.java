@@ -0,0 +1,74 @@
+package beast.evolution.operators;
+
+import beast.util.Randomizer;
+
+/**
+ * Samples an index from a categorical distribution given by unnormalised log-weights,
+ * such as the full conditional of a DPP Gibbs sampler.
+ * The weights are shifted by the largest log-weight before they are exponentiated, so that they cannot all underflow,
+ * and the buffers are kept between calls, so that sampling does not allocate once they have grown to the size required.
+ *
+ * @author Chieh-Hsi Wu
+ */
+public class LogCategoricalSampler {
+    private double[] logWeights = new double[0];
+    private double[] weights = new double[0];
+
+    /*
+     * Returns the buffer into which the caller writes the first size log-weights before calling sample.
+     */
+    public double[] getLogWeights(int size){
+        if(logWeights.length < size){
+            logWeights = new double[size];
+            weights = new double[size];
+        }
+        return logWeights;
+    }
+
+    /*
+     * Samples one of the first size categories with probabilities proportional to the exponentials of their log-weights,
+     * and returns -1 if any log-weight is NaN or all of them are negative infinity.
+     */
+    public int sample(int size){
+        double maxLogWeight = Double.NEGATIVE_INFINITY;
+        for(int i = 0; i < size; i++){
+            if(Double.isNaN(logWeights[i])){
+                return -1;
+            }
+            if(logWeights[i] > maxLogWeight){
+                maxLogWeight = logWeights[i];
+            }
+        }
+        if(maxLogWeight == Double.NEGATIVE_INFINITY){
+            return -1;
+        }
+
+        double total = 0.0;
+        for(int i = 0; i < size; i++){
+            if(maxLogWeight == Double.POSITIVE_INFINITY){
+                //Only the categories with infinite log-weights can be chosen.
+                weights[i] = logWeights[i] == Double.POSITIVE_INFINITY ? 1.0 : 0.0;
+            }else{
+                weights[i] = Math.exp(logWeights[i] - maxLogWeight);
+            }
+            total += weights[i];
+        }
+
+        double u = Randomizer.nextDouble()*total;
+        for(int i = 0; i < size; i++){
+            u -= weights[i];
+            if(u < 0.0){
+                return i;
+            }
+        }
+
+        //Rounding errors may leave u just above zero, in which case the last category with a positive weight is chosen.
+        for(int i = size - 1; i > 0; i--){
+            if(weights[i] > 0.0){
+                return i;
+            }
+        }
+        return 0;
+    }
+
+}
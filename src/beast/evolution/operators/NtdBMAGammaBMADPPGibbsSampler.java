@@ -139,6 +139,13 @@ public class NtdBMAGammaBMADPPGibbsSampler extends Operator implements Loggable
             Input.Validate.REQUIRED
     );
 
+    public Input<Boolean> systematicScanInput = new Input<Boolean>(
+            "systematicScan",
+            "Whether the units are updated in turn, one unit per proposal, so that every unit is updated " +
+                    "once in each sweep of as many proposals as there are units (default false, i.e. a unit picked at random).",
+            false
+    );
+
 
     public Input<GeneralUnitTempTreeLikelihood> tempLikelihoodInput = new Input<GeneralUnitTempTreeLikelihood>(
             "tempLikelihood",
@@ -152,6 +159,11 @@ public class NtdBMAGammaBMADPPGibbsSampler extends Operator implements Loggable
             Input.Validate.REQUIRED
     );
 
+    public Input<ClusterMembershipIndex> membershipIndexInput = new Input<ClusterMembershipIndex>(
+            "membershipIndex",
+            "The units of each cluster of the same DP as dpVal, from which the cluster counts are read if given."
+    );
+
     public Input<DPTreeLikelihood> dpTreeLikelihoodInput = new Input<DPTreeLikelihood>(
             "dpTreeLik",
             "Tree likelihood that handle DPP",
@@ -171,6 +183,20 @@ public class NtdBMAGammaBMADPPGibbsSampler extends Operator implements Loggable
     private DPValuable dpVal;
     private DPTreeLikelihood dpTreeLikelihood;
     private int addClusterCount =0;
+    //The cluster counts read from the membership index, reused by every proposal.
+    private int[] clusterCountBuffer = new int[0];
+    //The values of the existing clusters, reused by every proposal.
+    private QuietRealParameter[] existingParamVals = new QuietRealParameter[0];
+    private QuietRealParameter[] existingModelVals = new QuietRealParameter[0];
+    private QuietRealParameter[] existingFreqsVals = new QuietRealParameter[0];
+    private QuietRealParameter[] existingRatesVals = new QuietRealParameter[0];
+    private QuietRealParameter[] existingAlphaVals = new QuietRealParameter[0];
+    private QuietRealParameter[] existingInvPrVals = new QuietRealParameter[0];
+    private QuietRealParameter[] existingSiteModel = new QuietRealParameter[0];
+    private int[] existingCluster = new int[0];
+    private boolean systematicScan;
+    //The unit updated by the next proposal if the units are updated in turn.
+    private int scanPosition = 0;
     public void initAndValidate(){
         dp = dpInput.get();
         paramBaseDistr = paramBaseDistrInput.get();
@@ -184,6 +210,7 @@ public class NtdBMAGammaBMADPPGibbsSampler extends Operator implements Loggable
 
 
         sampleSize = sampleSizeInput.get();
+        systematicScan = systematicScanInput.get();
         dpVal = dpValuableInput.get();
         dpTreeLikelihood = dpTreeLikelihoodInput.get();
 
@@ -211,9 +238,17 @@ public class NtdBMAGammaBMADPPGibbsSampler extends Operator implements Loggable
         ParameterList siteModelList = siteModelListInput.get();
 
 
-        //Randomly pick an index to update, gets it's current value and its position in the parameter list
+        //Pick an index to update, in turn or at random, gets it's current value and its position in the parameter list
         int dimPointer = paramPointers.getDimension();
-        int index = Randomizer.nextInt(dimPointer);
+        int index;
+        if(systematicScan){
+            if(scanPosition >= dimPointer){
+                scanPosition = 0;
+            }
+            index = scanPosition++;
+        }else{
+            index = Randomizer.nextInt(dimPointer);
+        }
 
 
 
@@ -240,23 +275,26 @@ public class NtdBMAGammaBMADPPGibbsSampler extends Operator implements Loggable
         RealParameter curr = freqsPointers.getParameter(index);
 
         //Count the number of items in each cluster but excluding the one about to be updated
-        int[] clusterCounts = dpVal.getClusterCounts();
+        int clusterCount = paramList.getDimension();
+        int[] clusterCounts = getClusterCounts(clusterCount);
         clusterCounts[listIndex] =  clusterCounts[listIndex]-1;
 
-        QuietRealParameter[] existingParamVals = new QuietRealParameter[clusterCounts.length];
-        QuietRealParameter[] existingModelVals = new QuietRealParameter[clusterCounts.length];
-        QuietRealParameter[] existingFreqsVals = new QuietRealParameter[clusterCounts.length];
-        QuietRealParameter[] existingRatesVals = new QuietRealParameter[clusterCounts.length];
-        QuietRealParameter[] existingAlphaVals = new QuietRealParameter[clusterCounts.length];
-        QuietRealParameter[] existingInvPrVals = new QuietRealParameter[clusterCounts.length];
-        QuietRealParameter[] existingSiteModel = new QuietRealParameter[clusterCounts.length];
 
-        int[] existingCluster = new int[clusterCounts.length];
+        if(existingCluster.length < clusterCount){
+            existingParamVals = new QuietRealParameter[2*clusterCount];
+            existingModelVals = new QuietRealParameter[2*clusterCount];
+            existingFreqsVals = new QuietRealParameter[2*clusterCount];
+            existingRatesVals = new QuietRealParameter[2*clusterCount];
+            existingAlphaVals = new QuietRealParameter[2*clusterCount];
+            existingInvPrVals = new QuietRealParameter[2*clusterCount];
+            existingSiteModel = new QuietRealParameter[2*clusterCount];
+            existingCluster = new int[2*clusterCount];
+        }
 
         int counter = 0;
         int zeroCount = -1;
         //System.out.println("clusterCounts.length: "+dpVal.getDimension());
-        for(int i = 0; i < clusterCounts.length;i++){
+        for(int i = 0; i < clusterCount;i++){
             if(clusterCounts[i]>0){
                 clusterCounts[counter] = clusterCounts[i];
                 existingParamVals[counter] = paramList.getParameter(i);
@@ -302,7 +340,8 @@ public class NtdBMAGammaBMADPPGibbsSampler extends Operator implements Loggable
             int i;
             double concVal =dp.getConcParameter();
 
-            double[] logFullCond = new double[counter+sampleSize];
+            int candidateCount = counter+sampleSize;
+            double[] logFullCond = fullConditionalSampler.getLogWeights(candidateCount);
 
             for(i = 0; i < counter; i++){
 
@@ -374,7 +413,20 @@ public class NtdBMAGammaBMADPPGibbsSampler extends Operator implements Loggable
                 );
                 i++;
             }
-            for(; i < logFullCond.length; i++){
+            //The remaining auxiliary proposals are for the same unit, so they are evaluated in one batch.
+            int firstCandidate = i - counter;
+            double[] preProposalLogPs = tempLik.calculateLogPs(
+                    paramPreProposals,
+                    modelPreProposals,
+                    freqsPreProposals,
+                    alphaPreProposals,
+                    invPrPreProposals,
+                    ratesPreProposals,
+                    siteModelPreProposals,
+                    firstCandidate,
+                    index
+            );
+            for(; i < candidateCount; i++){
 
                 logFullCond[i] = Math.log(concVal/sampleSize/(dimPointer - 1 + concVal));
                 /*double temp1 = tempLik.calculateLogP(
@@ -384,16 +436,7 @@ public class NtdBMAGammaBMADPPGibbsSampler extends Operator implements Loggable
                                 index
                         );*/
 
-                logFullCond[i] = logFullCond[i]+tempLik.calculateLogP(
-                        paramPreProposals[i-counter],
-                        modelPreProposals[i-counter],
-                        freqsPreProposals[i-counter],
-                        alphaPreProposals[i-counter],
-                        invPrPreProposals[i-counter],
-                        ratesPreProposals[i-counter],
-                        siteModelPreProposals[i-counter],
-                        index
-                );
+                logFullCond[i] = logFullCond[i]+preProposalLogPs[i-counter-firstCandidate];
 
                 if(Double.isNaN(logFullCond[i])){
 
@@ -413,54 +456,10 @@ public class NtdBMAGammaBMADPPGibbsSampler extends Operator implements Loggable
 
             //System.err.println("smallestVal2: "+smallestVal);
 
-            double[] fullConditional = new double[logFullCond.length];
-
-            for(i = 0; i < fullConditional.length;i++){
-                fullConditional[i] = Math.exp(logFullCond[i]);
-
-                //System.out.println("fullConditional[i]: "+fullConditional[i]+" logFullCond[i]: "+logFullCond[i]);
-                if(Double.isNaN(fullConditional[i])){
-                    return Double.NEGATIVE_INFINITY;
-                }else if(fullConditional[i] == Double.NEGATIVE_INFINITY){
-
-                    fullConditional[i] = 0.0;
-
-                    //return Double.NEGATIVE_INFINITY;
-                    //throw new RuntimeException("Huh?");
-                    //System.out.println("reject directly, existing parameter vals: "+existingParamVals.length);
-                }else if(fullConditional[i] == Double.POSITIVE_INFINITY){
-                    //System.out.println("accept directly, existing parameter vals: "+existingParamVals.length);
-                    fullConditional[i] = 1.0;
-
-                }
+            int proposedIndex = fullConditionalSampler.sample(candidateCount);
+            if(proposedIndex < 0){
+                return Double.NEGATIVE_INFINITY;
             }
-
-            double total = Randomizer.getTotal(fullConditional);
-            if(total < 1e-100){
-                /*System.out.println("flag1");
-                for(int j = 0; j < fullConditional.length; j++){
-                    //fullConditional[j] = Math.exp(logFullCond[j] - smallestVal);
-                    System.out.println(fullConditional[j]+" "+logFullCond[j]);
-                }*/
-                double maxVal = logFullCond[0];
-                for(int j = 1; j < logFullCond.length;j++){
-                    if(maxVal < logFullCond[j]) {
-                        maxVal = logFullCond[j];
-                    }
-                }
-                for(int j = 0; j < fullConditional.length; j++){
-                    fullConditional[j] = Math.exp(logFullCond[j] - maxVal);
-                    //System.out.println(logFullCond[j] - smallestVal);
-                }
-
-            }
-
-            /*for(int j = 0; j < fullConditional.length;j++){
-                System.out.println(j+" "+fullConditional[j]);
-            }*/
-
-
-            int proposedIndex = Randomizer.randomChoicePDF(fullConditional);
             //System.out.println("proposedIndex: "+proposedIndex);
             QuietRealParameter paramProposal;
             QuietRealParameter modelProposal;
@@ -525,6 +524,10 @@ public class NtdBMAGammaBMADPPGibbsSampler extends Operator implements Loggable
                     freqsPointers = freqPointersInput.get(this);
                     modelPointers = modelPointersInput.get(this);
                     ratesPointers = ratesPointersInput.get(this);
+                    //A single pointer of each list changes, so the membership index can move the unit incrementally.
+                    if(membershipIndexInput.get() != null){
+                        membershipIndexInput.get().expectSingleChange();
+                    }
                     paramPointers.point(index, paramProposal);
                     modelPointers.point(index, modelProposal);
                     freqsPointers.point(index, freqsProposal);
@@ -623,6 +626,24 @@ public class NtdBMAGammaBMADPPGibbsSampler extends Operator implements Loggable
         return siteLogLik;
     }
 
+    /*
+     * Returns the number of units in each cluster, read from the membership index if there is one
+     * into a buffer that is kept by the sampler and overwritten by the next proposal.
+     */
+    private int[] getClusterCounts(int clusterCount){
+        ClusterMembershipIndex membershipIndex = membershipIndexInput.get();
+        if(membershipIndex == null){
+            return dpVal.getClusterCounts();
+        }
+        if(clusterCountBuffer.length < clusterCount){
+            clusterCountBuffer = new int[2*clusterCount];
+        }
+        for(int i = 0; i < clusterCount; i++){
+            clusterCountBuffer[i] = membershipIndex.getClusterSize(i);
+        }
+        return clusterCountBuffer;
+    }
+
     public QuietRealParameter[] getSamples(
             ParametricDistribution distr,
             double upper,
@@ -1,5 +1,6 @@
 package beast.evolution.operators;
 
+import beast.core.Input;
 import beast.core.parameter.DPPointer;
 import beast.evolution.alignment.GeneralUnitAlignment;
 import beast.util.Randomizer;
@@ -8,6 +9,11 @@ import beast.util.Randomizer;
  * @author Chieh-Hsi Wu
  */
 public class NtdBMAUnitPointersSwapOperator extends NtdBMAPointersSwapOperator{
+    public Input<ClusterMembershipIndex> membershipIndexInput = new Input<ClusterMembershipIndex>(
+            "membershipIndex",
+            "The units of each cluster of the same DP as dpVal, read in place of dpVal if given."
+    );
+
     public void initAndValidate(){
         super.initAndValidate();
         if(!(alignment instanceof GeneralUnitAlignment)){
@@ -15,7 +21,8 @@ public class NtdBMAUnitPointersSwapOperator extends NtdBMAPointersSwapOperator{
         }
     }
     public double proposal(){
-        int categoryCount = dpVal.getCategoryCount();
+        ClusterMembershipIndex membershipIndex = membershipIndexInput.get();
+        int categoryCount = membershipIndex == null ? dpVal.getCategoryCount() : membershipIndex.getClusterCount();
         if(categoryCount == 1){
             return Double.NEGATIVE_INFINITY;
         }
@@ -28,34 +35,32 @@ public class NtdBMAUnitPointersSwapOperator extends NtdBMAPointersSwapOperator{
             categoryIndex2 = something;
         }
 
-        int[] sitesInCategoryIndex1 = dpVal.getClusterSites(categoryIndex1);
-        int[] sitesInCategoryIndex2 = dpVal.getClusterSites(categoryIndex2);
-        int unit1 = sitesInCategoryIndex1[Randomizer.nextInt(sitesInCategoryIndex1.length)];
-        int unit2 = sitesInCategoryIndex2[Randomizer.nextInt(sitesInCategoryIndex2.length)];
-
-        int[] sitesInUnit1 = ((GeneralUnitAlignment)alignment).getSitesByUnit(unit1);
-        int[] sitesInUnit2 = ((GeneralUnitAlignment)alignment).getSitesByUnit(unit2);
-
-        boolean samePatterns = true;
-        if(sitesInUnit1.length == sitesInUnit2.length){
-            for(int i = 0; i < sitesInUnit1.length; i++){
-                if(sitesInUnit1[i] != sitesInUnit2[i]){
-                    samePatterns = false;
-                    break;
-                }
-
-            }
+        int unit1;
+        int unit2;
+        if(membershipIndex == null){
+            int[] sitesInCategoryIndex1 = dpVal.getClusterSites(categoryIndex1);
+            int[] sitesInCategoryIndex2 = dpVal.getClusterSites(categoryIndex2);
+            unit1 = sitesInCategoryIndex1[Randomizer.nextInt(sitesInCategoryIndex1.length)];
+            unit2 = sitesInCategoryIndex2[Randomizer.nextInt(sitesInCategoryIndex2.length)];
         }else{
-            samePatterns = false;
+            //The members are picked in place, without a copy of the units of each cluster.
+            unit1 = membershipIndex.getMember(categoryIndex1, Randomizer.nextInt(membershipIndex.getClusterSize(categoryIndex1)));
+            unit2 = membershipIndex.getMember(categoryIndex2, Randomizer.nextInt(membershipIndex.getClusterSize(categoryIndex2)));
         }
 
-        if(samePatterns){
+        //Swapping units with the same patterns does not change anything.
+        GeneralUnitAlignment guAlignment = (GeneralUnitAlignment)alignment;
+        if(guAlignment.getUnitClass(unit1) == guAlignment.getUnitClass(unit2)){
             return Double.NEGATIVE_INFINITY;
         }
 
         //System.out.println(categoryIndex1+" "+categoryIndex2);
 
 
+        //A single pair of units is swapped, so the membership index can swap them incrementally.
+        if(membershipIndex != null){
+            membershipIndex.expectSingleChange();
+        }
         DPPointer paramPointers = paramPointersInput.get(this);
         paramPointers.swapPointers(unit1, unit2);
         DPPointer modelPointers = modelPointersInput.get(this);
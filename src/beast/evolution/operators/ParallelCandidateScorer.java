@@ -0,0 +1,98 @@
+package beast.evolution.operators;
+
+import beast.app.BeastMCMC;
+import beast.core.parameter.RealParameter;
+import beast.evolution.likelihood.GeneralUnitSepTempTreeLikelihood;
+import beast.evolution.likelihood.TempLikelihoodContext;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Evaluates the auxiliary proposals of a DPP Gibbs sampler on several threads,
+ * each with its own copy of the temporary likelihood (see TempLikelihoodContext).
+ * The candidates are divided into contiguous ranges, one for each thread, and the range of the first thread
+ * is evaluated on the calling thread, while the others are run on the executor of BEAST,
+ * so the threads are reused across proposals.
+ * Each range is written by its copy straight into the log-likelihoods returned, so no arrays are copied.
+ * The copies read the substitution models of the clusters, which are not changed during a Gibbs proposal,
+ * through views of their own (see ThreadSafeSubstitutionModel), so that they do not share the buffers of the models.
+ *
+ * @author Chieh-Hsi Wu
+ */
+public class ParallelCandidateScorer {
+    private GeneralUnitSepTempTreeLikelihood tempLik;
+    private TempLikelihoodContext context;
+    private int threadCount;
+    //The log-likelihoods returned by calculateLogPs, reused by every call.
+    private double[] logPs = new double[0];
+    private volatile Exception exception;
+
+    /*
+     * Creates the copies of the temporary likelihood, so it is to be called at initAndValidate.
+     */
+    public ParallelCandidateScorer(GeneralUnitSepTempTreeLikelihood tempLik){
+        this.tempLik = tempLik;
+        threadCount = BeastMCMC.m_nThreads;
+        context = new TempLikelihoodContext(tempLik, threadCount);
+    }
+
+    /*
+     * Calculates the log-likelihoods of a unit under each of the candidate values from firstCandidate onwards,
+     * as GeneralUnitSepTempTreeLikelihood.calculateLogPs.
+     * The array returned is reused by the next call.
+     */
+    public double[] calculateLogPs(
+            final RealParameter[] alpha,
+            final RealParameter[] invPr,
+            final RealParameter[] rate,
+            final RealParameter[] siteModelChoice,
+            int firstCandidate,
+            final int unitIndex) throws Exception{
+
+        int candidateCount = alpha.length - firstCandidate;
+        int threadCount = Math.min(this.threadCount, candidateCount);
+        if(threadCount < 2){
+            return tempLik.calculateLogPs(alpha, invPr, rate, siteModelChoice, firstCandidate, unitIndex);
+        }
+        if(logPs.length != candidateCount){
+            logPs = new double[candidateCount];
+        }
+        final double[] logPs = this.logPs;
+
+        exception = null;
+        final CountDownLatch latch = new CountDownLatch(threadCount - 1);
+        int rangeStart = firstCandidate;
+        for(int thread = 0; thread < threadCount; thread++){
+            final GeneralUnitSepTempTreeLikelihood copy = context.get(thread);
+            final int from = rangeStart;
+            final int to = firstCandidate + (thread + 1)*candidateCount/threadCount;
+            final int offset = from - firstCandidate;
+            rangeStart = to;
+
+            if(thread == 0){
+                continue;
+            }
+            BeastMCMC.g_exec.execute(new Runnable(){
+                public void run(){
+                    try{
+                        copy.calculateLogPs(alpha, invPr, rate, siteModelChoice, from, to, unitIndex, logPs, offset);
+                    }catch(Exception e){
+                        exception = e;
+                    }finally{
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        //The first range is evaluated by the calling thread.
+        context.get(0).calculateLogPs(alpha, invPr, rate, siteModelChoice,
+                firstCandidate, firstCandidate + candidateCount/threadCount, unitIndex, logPs, 0);
+        latch.await();
+        if(exception != null){
+            throw exception;
+        }
+        return logPs;
+    }
+
+}
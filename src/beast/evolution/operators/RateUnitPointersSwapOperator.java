@@ -1,5 +1,6 @@
 package beast.evolution.operators;
 
+import beast.core.Input;
 import beast.core.parameter.DPPointer;
 import beast.evolution.alignment.GeneralUnitAlignment;
 import beast.util.Randomizer;
@@ -12,6 +13,11 @@ import beast.util.Randomizer;
  * To change this template use File | Settings | File Templates.
  */
 public class RateUnitPointersSwapOperator extends RatePointersSwapOperator{
+    public Input<ClusterMembershipIndex> membershipIndexInput = new Input<ClusterMembershipIndex>(
+            "membershipIndex",
+            "The units of each cluster of the same DP as dpVal, read in place of dpVal if given."
+    );
+
     public void initAndValidate(){
         super.initAndValidate();
         if(!(alignment instanceof GeneralUnitAlignment)){
@@ -20,7 +26,8 @@ public class RateUnitPointersSwapOperator extends RatePointersSwapOperator{
     }
 
     public double proposal(){
-        int categoryCount = dpVal.getCategoryCount();
+        ClusterMembershipIndex membershipIndex = membershipIndexInput.get();
+        int categoryCount = membershipIndex == null ? dpVal.getCategoryCount() : membershipIndex.getClusterCount();
         if(categoryCount == 1){
             return Double.NEGATIVE_INFINITY;
         }
@@ -33,34 +40,30 @@ public class RateUnitPointersSwapOperator extends RatePointersSwapOperator{
             categoryIndex2 = something;
         }
 
-        int[] sitesInCategoryIndex1 = dpVal.getClusterSites(categoryIndex1);
-        int[] sitesInCategoryIndex2 = dpVal.getClusterSites(categoryIndex2);
-        int unit1 = sitesInCategoryIndex1[(int)(sitesInCategoryIndex1.length*Randomizer.nextDouble())];
-        int unit2 = sitesInCategoryIndex2[(int)(sitesInCategoryIndex2.length*Randomizer.nextDouble())];
-
-        int[] sitesInUnit1 = ((GeneralUnitAlignment)alignment).getSitesByUnit(unit1);
-        int[] sitesInUnit2 = ((GeneralUnitAlignment)alignment).getSitesByUnit(unit2);
-
-        boolean samePatterns = true;
-        //System.out.println(sitesInUnit1.length +" "+ sitesInUnit2.length);
-        if(sitesInUnit1.length == sitesInUnit2.length){
-
-            for(int i = 0; i < sitesInUnit1.length; i++){
-                if(alignment.getPatternIndex(sitesInUnit1[i]) != alignment.getPatternIndex(sitesInUnit2[i])){
-                    samePatterns = false;
-                    break;
-                }
-
-            }
+        int unit1;
+        int unit2;
+        if(membershipIndex == null){
+            int[] sitesInCategoryIndex1 = dpVal.getClusterSites(categoryIndex1);
+            int[] sitesInCategoryIndex2 = dpVal.getClusterSites(categoryIndex2);
+            unit1 = sitesInCategoryIndex1[(int)(sitesInCategoryIndex1.length*Randomizer.nextDouble())];
+            unit2 = sitesInCategoryIndex2[(int)(sitesInCategoryIndex2.length*Randomizer.nextDouble())];
         }else{
-            samePatterns = false;
+            //The members are picked in place, without a copy of the units of each cluster.
+            unit1 = membershipIndex.getMember(categoryIndex1, (int)(membershipIndex.getClusterSize(categoryIndex1)*Randomizer.nextDouble()));
+            unit2 = membershipIndex.getMember(categoryIndex2, (int)(membershipIndex.getClusterSize(categoryIndex2)*Randomizer.nextDouble()));
         }
 
-        if(samePatterns){
+        //Swapping units with the same patterns does not change anything.
+        GeneralUnitAlignment guAlignment = (GeneralUnitAlignment)alignment;
+        if(guAlignment.getUnitClass(unit1) == guAlignment.getUnitClass(unit2)){
             return Double.NEGATIVE_INFINITY;
         }
         //System.out.println(samePatterns);
 
+        //A single pair of units is swapped, so the membership index can swap them incrementally.
+        if(membershipIndex != null){
+            membershipIndex.expectSingleChange();
+        }
         DPPointer ratePointers = ratePointerInput.get(this);
         ratePointers.swapPointers(unit1, unit2);
 
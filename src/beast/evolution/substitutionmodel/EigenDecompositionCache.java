@@ -0,0 +1,90 @@
+package beast.evolution.substitutionmodel;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded least recently used cache of the eigen decompositions of a NtdBMA model, keyed by its parameter values
+ * (model code, logKappa, logTN, logAC, logAT, logGC and frequencies), for the temporary likelihoods that evaluate
+ * the same parameter values of the existing clusters repeatedly.
+ * A lookup writes the parameter values into a key that is reused by every lookup, so a hit allocates nothing,
+ * and the decompositions are only read through the public methods of the models and views that use them.
+ * A cache belongs to one likelihood and is only used by the thread that runs that likelihood.
+ *
+ * @author Chieh-Hsi Wu
+ */
+public class EigenDecompositionCache {
+    private LinkedHashMap<Key, EigenDecomposition> decompositions;
+    private Key lookupKey = new Key(new double[0]);
+
+    private long hitCount;
+    private long missCount;
+
+    public EigenDecompositionCache(final int maxSize){
+        decompositions = new LinkedHashMap<Key, EigenDecomposition>(16, 0.75f, true){
+            protected boolean removeEldestEntry(Map.Entry<Key, EigenDecomposition> eldest){
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /*
+     * Returns the decomposition of the given parameter values, or null if it is not in the cache.
+     */
+    public EigenDecomposition get(double[] parameterValues){
+        lookupKey.setValues(parameterValues);
+        EigenDecomposition decomposition = decompositions.get(lookupKey);
+        if(decomposition != null){
+            hitCount++;
+        }else{
+            missCount++;
+        }
+        return decomposition;
+    }
+
+    /*
+     * Adds the decomposition calculated by the model for the given parameter values after a miss.
+     */
+    public void put(double[] parameterValues, EigenDecomposition decomposition){
+        decompositions.put(new Key(parameterValues), decomposition);
+    }
+
+    public long getHitCount(){
+        return hitCount;
+    }
+
+    public long getMissCount(){
+        return missCount;
+    }
+
+    private static class Key {
+        private double[] values;
+        private int hashCode;
+
+        Key(double[] values){
+            this.values = values.clone();
+            hashCode = Arrays.hashCode(this.values);
+        }
+
+        /*
+         * Sets the values of a key that is not in the map.
+         */
+        void setValues(double[] values){
+            if(this.values.length != values.length){
+                this.values = new double[values.length];
+            }
+            System.arraycopy(values, 0, this.values, 0, values.length);
+            hashCode = Arrays.hashCode(this.values);
+        }
+
+        public int hashCode(){
+            return hashCode;
+        }
+
+        public boolean equals(Object object){
+            return object instanceof Key && Arrays.equals(values, ((Key)object).values);
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+package beast.evolution.substitutionmodel;
+
+import beast.evolution.datatype.DataType;
+import beast.evolution.tree.Node;
+
+/**
+ * Gives a likelihood that runs at the same time as other likelihoods its own view of a substitution model
+ * that they share, such as the model of a cluster evaluated by the copies of a temporary likelihood.
+ * The decomposition of the model is taken while holding the lock of the model, and the transition probabilities
+ * are then calculated from it with the buffers of this view, so that the calculations of different views
+ * do not share any state except the decomposition, which is only read.
+ * A model with a complex diagonalization calculates its transition probabilities itself while its lock is held.
+ * The model must not be changed while its views are in use.
+ *
+ * @author Chieh-Hsi Wu
+ */
+public class ThreadSafeSubstitutionModel extends SubstitutionModel.Base {
+    private SubstitutionModel model;
+    private EigenDecomposition decomposition;
+    private double[] expEigenValues = new double[0];
+
+    public void initAndValidate(){
+    }
+
+    /*
+     * Sets the model viewed, whose decomposition is taken again by the next calculation.
+     */
+    public void setModel(SubstitutionModel model){
+        this.model = model;
+        decomposition = null;
+    }
+
+    /*
+     * Sets the model viewed with a decomposition of its current parameter values,
+     * such as one kept by an EigenDecompositionCache, which is used in place of that of the model.
+     */
+    public void setModel(SubstitutionModel model, EigenDecomposition decomposition){
+        this.model = model;
+        this.decomposition = decomposition;
+    }
+
+    public SubstitutionModel getModel(){
+        return model;
+    }
+
+    public void getTransitionProbabilities(Node node, double startTime, double endTime, double rate, double[] matrix){
+        if(model.canReturnComplexDiagonalization()){
+            synchronized(model){
+                model.getTransitionProbabilities(node, startTime, endTime, rate, matrix);
+            }
+            return;
+        }
+
+        if(decomposition == null){
+            decomposition = getEigenDecomposition(node);
+        }
+        int stateCount = decomposition.getEigenValues().length;
+        if(expEigenValues.length != stateCount){
+            expEigenValues = new double[stateCount];
+        }
+        calculateTransitionProbabilities(decomposition, (startTime - endTime)*rate, expEigenValues, matrix);
+    }
+
+    public EigenDecomposition getEigenDecomposition(Node node){
+        synchronized(model){
+            return model.getEigenDecomposition(node);
+        }
+    }
+
+    public double[] getFrequencies(){
+        synchronized(model){
+            return model.getFrequencies();
+        }
+    }
+
+    public boolean canReturnComplexDiagonalization(){
+        return model.canReturnComplexDiagonalization();
+    }
+
+    public boolean canHandleDataType(DataType dataType) throws Exception{
+        return model.canHandleDataType(dataType);
+    }
+
+    /*
+     * Calculates the transition probabilities over the given distance from the decomposition of a reversible rate matrix,
+     * as in GeneralSubstitutionModel, where expEigenValues is a buffer with one element for each state.
+     */
+    public static void calculateTransitionProbabilities(
+            EigenDecomposition decomposition,
+            double distance,
+            double[] expEigenValues,
+            double[] matrix){
+        double[] eigenVectors = decomposition.getEigenVectors();
+        double[] inverseEigenVectors = decomposition.getInverseEigenVectors();
+        double[] eigenValues = decomposition.getEigenValues();
+        int stateCount = eigenValues.length;
+        for(int i = 0; i < stateCount; i++){
+            expEigenValues[i] = Math.exp(distance*eigenValues[i]);
+        }
+
+        int u = 0;
+        for(int i = 0; i < stateCount; i++){
+            for(int j = 0; j < stateCount; j++){
+                double temp = 0.0;
+                for(int k = 0; k < stateCount; k++){
+                    temp += eigenVectors[i*stateCount + k]*expEigenValues[k]*inverseEigenVectors[k*stateCount + j];
+                }
+                matrix[u++] = Math.abs(temp);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,220 @@
+package test;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.GeneralUnitAlignment;
+import beast.evolution.alignment.Sequence;
+import beast.evolution.branchratemodel.StrictClockModel;
+import beast.evolution.likelihood.ClusterLogLikelihoodSums;
+import beast.evolution.likelihood.NewWVTreeLikelihood;
+import beast.evolution.likelihood.PatternWeightTransfer;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.Frequencies;
+import beast.evolution.substitutionmodel.HKY;
+import beast.util.TreeParser;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Chieh-Hsi Wu
+ */
+public class ClusterLogLikelihoodSumsTest extends TestCase {
+    private GeneralUnitAlignment data;
+    private TreeParser tree;
+    private SiteModel[] siteModels;
+    private StrictClockModel clockModel;
+
+    protected void setUp() throws Exception{
+        Sequence taxa1 = new Sequence("taxa1", "AGAAATATGTCTGATAAAGCGTTAG");
+        Sequence taxa2 = new Sequence("taxa2", "AGAAATATGTCTGACCAAGCGTTTG");
+        Sequence taxa3 = new Sequence("taxa3", "AGGAATATGTCTGATAAAGCATTAG");
+        Sequence taxa4 = new Sequence("taxa4", "ACAAATTTGTCCGATACAGCGTTAG");
+
+        data = new GeneralUnitAlignment();
+        data.initByName(
+                "sequence", taxa1,
+                "sequence", taxa2,
+                "sequence", taxa3,
+                "sequence", taxa4,
+                "dataType", "nucleotide",
+                "unitDefinition", "site"
+        );
+
+        tree = new TreeParser();
+        tree.initByName(
+                "taxa", data,
+                "newick", "((taxa1:0.1,taxa2:0.2):0.05,(taxa3:0.15,taxa4:0.3):0.1);",
+                "IsLabelledNewick", true
+        );
+
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("frequencies", new RealParameter(new Double[]{0.3, 0.2, 0.2, 0.3}));
+        HKY hky = new HKY();
+        hky.initByName(
+                "kappa", new RealParameter(new Double[]{3.0}),
+                "frequencies", freqs
+        );
+
+        //The clusters differ in their rates, so a unit has a different log-likelihood in each of them.
+        double[] rates = new double[]{0.5, 1.0, 2.0};
+        siteModels = new SiteModel[rates.length];
+        for(int i = 0; i < rates.length; i++){
+            siteModels[i] = new SiteModel();
+            siteModels[i].initByName(
+                    "mutationRate", new RealParameter(new Double[]{rates[i]}),
+                    "substModel", hky
+            );
+        }
+
+        clockModel = new StrictClockModel();
+        clockModel.initByName("clock.rate", new RealParameter(new Double[]{1.0}));
+    }
+
+    /*
+     * Creates a likelihood for each cluster, where unit i is in cluster assignment[i].
+     */
+    private List<NewWVTreeLikelihood> createLikelihoods(int[] assignment) throws Exception{
+        List<NewWVTreeLikelihood> treeLiks = new ArrayList<NewWVTreeLikelihood>();
+        for(int cluster = 0; cluster < siteModels.length; cluster++){
+            int[] weights = new int[data.getPatternCount()];
+            for(int unit = 0; unit < assignment.length; unit++){
+                if(assignment[unit] == cluster){
+                    for(int i = 0; i < data.getPatternCountGivenUnit(unit); i++){
+                        weights[data.getPatternInUnit(unit, i)] += data.getPatternWeightInUnit(unit, i);
+                    }
+                }
+            }
+            NewWVTreeLikelihood treeLik = new NewWVTreeLikelihood(weights, data, tree, false, siteModels[cluster], clockModel);
+            treeLik.calculateLogP();
+            treeLiks.add(treeLik);
+        }
+        return treeLiks;
+    }
+
+    private int[] createAssignment(){
+        int[] assignment = new int[data.getUnitCount()];
+        for(int unit = 0; unit < assignment.length; unit++){
+            assignment[unit] = unit%siteModels.length;
+        }
+        return assignment;
+    }
+
+    /*
+     * The log-likelihood of the assignment from likelihoods calculated by traversing the tree.
+     */
+    private double calculateFullLogP(int[] assignment) throws Exception{
+        double logP = 0.0;
+        for(NewWVTreeLikelihood treeLik: createLikelihoods(assignment)){
+            logP += treeLik.getCurrentLogP();
+        }
+        return logP;
+    }
+
+    /*
+     * Moves a unit to another cluster, as a weight only update of the DP tree likelihood does.
+     */
+    private void moveUnit(
+            int unit,
+            int currCluster,
+            int[] assignment,
+            List<NewWVTreeLikelihood> treeLiks,
+            ClusterLogLikelihoodSums sums,
+            PatternWeightTransfer transfer){
+        int prevCluster = assignment[unit];
+        transfer.moveUnit(data, unit, treeLiks.get(prevCluster), treeLiks.get(currCluster));
+        sums.moveUnit(data, unit, prevCluster, treeLiks.get(prevCluster), currCluster, treeLiks.get(currCluster));
+        transfer.apply();
+        assignment[unit] = currCluster;
+    }
+
+
+
+    public void test1() throws Exception{
+        int[] assignment = createAssignment();
+        List<NewWVTreeLikelihood> treeLiks = createLikelihoods(assignment);
+        PatternWeightTransfer transfer = new PatternWeightTransfer(data.getPatternCount());
+
+        //The sums are never recalculated from the patterns during the moves.
+        ClusterLogLikelihoodSums sums = new ClusterLogLikelihoodSums(Integer.MAX_VALUE);
+        sums.reset(treeLiks);
+        assertEquals(sums.getClusterCount(),siteModels.length);
+
+        //Units are moved into clusters where their patterns may have no weight, without recalculating the likelihoods.
+        double logP = 0.0;
+        for(int k = 0; k < 500; k++){
+            moveUnit((7*k)%assignment.length, (k + k/assignment.length)%siteModels.length, assignment, treeLiks, sums, transfer);
+            logP = sums.getLogP(treeLiks);
+        }
+        assertEquals(logP, calculateFullLogP(assignment), 1e-8);
+    }
+
+    public void test2() throws Exception{
+        int[] assignment = createAssignment();
+        List<NewWVTreeLikelihood> treeLiks = createLikelihoods(assignment);
+        PatternWeightTransfer transfer = new PatternWeightTransfer(data.getPatternCount());
+        ClusterLogLikelihoodSums sums = new ClusterLogLikelihoodSums(10);
+        sums.reset(treeLiks);
+
+        for(int k = 0; k < 100; k++){
+            moveUnit((3*k + 1)%assignment.length, (2*k)%siteModels.length, assignment, treeLiks, sums, transfer);
+            double logP = sums.getLogP(treeLiks);
+            assertEquals(logP, calculateFullLogP(assignment), 1e-8);
+
+            //Every tenth update sums the changed clusters from their patterns again.
+            if(k%10 == 9){
+                for(int cluster = 0; cluster < siteModels.length; cluster++){
+                    assertEquals(
+                            sums.getClusterLogP(cluster),
+                            ClusterLogLikelihoodSums.sumPatternLogLikelihoods(treeLiks.get(cluster)),
+                            0.0);
+                }
+            }
+        }
+    }
+
+    public void test3() throws Exception{
+        //The pattern log-likelihoods of a cluster include those of the patterns with zero weights,
+        //which the moves rely on when a unit joins a cluster.
+        int[] assignment = new int[data.getUnitCount()];
+        assignment[0] = 1;
+        List<NewWVTreeLikelihood> treeLiks = createLikelihoods(assignment);
+        int[] allWeights = new int[data.getPatternCount()];
+        for(int i = 0; i < allWeights.length; i++){
+            allWeights[i] = 1;
+        }
+        for(int cluster = 0; cluster < siteModels.length; cluster++){
+            NewWVTreeLikelihood fullTreeLik = new NewWVTreeLikelihood(allWeights, data, tree, false, siteModels[cluster], clockModel);
+            fullTreeLik.calculateLogP();
+            for(int i = 0; i < allWeights.length; i++){
+                assertEquals(treeLiks.get(cluster).getPatternLogLikelihood(i), fullTreeLik.getPatternLogLikelihood(i), 1e-10);
+            }
+        }
+    }
+
+    public void test4() throws Exception{
+        int[] assignment = createAssignment();
+        List<NewWVTreeLikelihood> treeLiks = createLikelihoods(assignment);
+        PatternWeightTransfer transfer = new PatternWeightTransfer(data.getPatternCount());
+        ClusterLogLikelihoodSums sums = new ClusterLogLikelihoodSums(3);
+        sums.reset(treeLiks);
+        double storedLogP = sums.getLogP(treeLiks);
+        sums.store();
+        for(NewWVTreeLikelihood treeLik: treeLiks){
+            treeLik.store();
+        }
+
+        //The moves are rejected.
+        moveUnit(0, 1, assignment, treeLiks, sums, transfer);
+        moveUnit(4, 2, assignment, treeLiks, sums, transfer);
+        sums.getLogP(treeLiks);
+        sums.restore();
+        for(NewWVTreeLikelihood treeLik: treeLiks){
+            treeLik.restore();
+        }
+        assertEquals(sums.getLogP(treeLiks), storedLogP, 1e-10);
+        assertEquals(sums.getLogP(treeLiks), calculateFullLogP(createAssignment()), 1e-8);
+    }
+
+
+}
@@ -0,0 +1,230 @@
+package test;
+
+import beast.core.State;
+import beast.core.parameter.DPPointer;
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.ParameterList;
+import beast.core.parameter.QuietRealParameter;
+import beast.evolution.operators.ClusterMembershipIndex;
+import junit.framework.TestCase;
+
+/**
+ * @author Chieh-Hsi Wu
+ */
+public class ClusterMembershipIndexTest extends TestCase {
+    private QuietRealParameter[] parameters;
+    private DPPointer pointers;
+    private ParameterList list;
+    private State state;
+    private ClusterMembershipIndex index;
+
+    protected void setUp() throws Exception{
+        parameters = new QuietRealParameter[]{
+                new QuietRealParameter(new Double[]{1.0}),
+                new QuietRealParameter(new Double[]{2.0}),
+                new QuietRealParameter(new Double[]{3.0})
+        };
+
+        //Units 0, 3 and 5 are in cluster 0, units 1 and 4 in cluster 1 and units 2 and 6 in cluster 2.
+        int[] assignment = new int[]{0,1,2,0,1,0,2};
+        pointers = new DPPointer();
+        pointers.initByName(
+                "uniqueParameter", parameters[0],
+                "uniqueParameter", parameters[1],
+                "uniqueParameter", parameters[2],
+                "initialAssignment", new IntegerParameter(toIntegers(assignment))
+        );
+
+        list = new ParameterList();
+        list.initByName(
+                "parameter", parameters[0],
+                "parameter", parameters[1],
+                "parameter", parameters[2]
+        );
+
+        state = new State();
+        state.initByName(
+                "stateNode", pointers,
+                "stateNode", list
+        );
+        state.initialise();
+
+        index = new ClusterMembershipIndex();
+        index.initByName(
+                "pointers", pointers,
+                "list", list
+        );
+    }
+
+    private Integer[] toIntegers(int[] values){
+        Integer[] integers = new Integer[values.length];
+        for(int i = 0; i < values.length; i++){
+            integers[i] = values[i];
+        }
+        return integers;
+    }
+
+    /*
+     * Checks the index against the clusters that the pointers point to.
+     */
+    private void assertIndexMatchesPointers(){
+        assertEquals(index.getClusterCount(),list.getDimension());
+        int[] sizes = new int[list.getDimension()];
+        for(int unit = 0; unit < pointers.getDimension(); unit++){
+            int cluster = pointers.indexInList(unit, list);
+            assertEquals(index.getCluster(unit),cluster);
+            sizes[cluster]++;
+        }
+
+        for(int cluster = 0; cluster < sizes.length; cluster++){
+            assertEquals(index.getClusterSize(cluster),sizes[cluster]);
+            for(int k = 0; k < sizes[cluster]; k++){
+                assertEquals(pointers.indexInList(index.getMember(cluster, k), list),cluster);
+            }
+        }
+    }
+
+    /*
+     * The MCMC stores the state before the operator makes its proposal.
+     */
+    private void storeState(){
+        state.store(0);
+    }
+
+    /*
+     * After the proposal, the MCMC stores the calculation nodes and then checks which of them need recalculation.
+     */
+    private boolean checkIndex(){
+        index.store();
+        return index.requiresRecalculation();
+    }
+
+    private void reject(){
+        state.restore();
+        index.restore();
+    }
+
+    private void accept(){
+        state.acceptCalculationNodes();
+    }
+
+
+
+    public void test1() throws Exception{
+        assertIndexMatchesPointers();
+        assertEquals(index.getClusterSize(0),3);
+        assertEquals(index.getClusterSize(1),2);
+        assertEquals(index.getClusterSize(2),2);
+
+        //A single change declared in the proposal is applied to the index without a rebuild.
+        int rebuildCount = index.getRebuildCount();
+        storeState();
+        index.expectSingleChange();
+        pointers.point(3, parameters[2]);
+        assertTrue(checkIndex());
+        assertEquals(index.getRebuildCount(),rebuildCount);
+        assertIndexMatchesPointers();
+        assertEquals(index.getClusterSize(0),2);
+        assertEquals(index.getClusterSize(2),3);
+
+        //The change is rejected.
+        reject();
+        assertEquals(index.getRebuildCount(),rebuildCount);
+        assertIndexMatchesPointers();
+        assertEquals(index.getCluster(3),0);
+        assertEquals(index.getClusterSize(0),3);
+        assertEquals(index.getClusterSize(2),2);
+    }
+
+    public void test2() throws Exception{
+        //Changes of more than one pointer that are not declared as a single change rebuild the index.
+        int rebuildCount = index.getRebuildCount();
+        storeState();
+        pointers.point(0, parameters[1]);
+        pointers.point(5, parameters[2]);
+        pointers.point(6, parameters[0]);
+        assertTrue(checkIndex());
+        assertEquals(index.getRebuildCount(),rebuildCount + 1);
+        assertIndexMatchesPointers();
+        assertEquals(index.getClusterSize(0),2);
+        assertEquals(index.getClusterSize(1),3);
+        assertEquals(index.getClusterSize(2),2);
+
+        //The index of the stored state is brought back.
+        reject();
+        assertIndexMatchesPointers();
+        assertEquals(index.getCluster(0),0);
+        assertEquals(index.getCluster(5),0);
+        assertEquals(index.getCluster(6),2);
+
+        //The index is still updated incrementally after the restore.
+        storeState();
+        index.expectSingleChange();
+        pointers.point(1, parameters[0]);
+        assertTrue(checkIndex());
+        assertEquals(index.getRebuildCount(),rebuildCount + 1);
+        assertIndexMatchesPointers();
+        accept();
+    }
+
+    public void test3() throws Exception{
+        //A swap of two pointers.
+        int rebuildCount = index.getRebuildCount();
+        storeState();
+        index.expectSingleChange();
+        pointers.swapPointers(0, 6);
+        assertTrue(checkIndex());
+        assertEquals(index.getRebuildCount(),rebuildCount);
+        assertIndexMatchesPointers();
+        assertEquals(index.getCluster(0),2);
+        assertEquals(index.getCluster(6),0);
+        accept();
+
+        //The accepted swap is kept across a rejected change.
+        storeState();
+        index.expectSingleChange();
+        pointers.point(4, parameters[0]);
+        assertTrue(checkIndex());
+        assertEquals(index.getRebuildCount(),rebuildCount);
+        reject();
+        assertIndexMatchesPointers();
+        assertEquals(index.getCluster(0),2);
+        assertEquals(index.getCluster(4),1);
+        assertEquals(index.getCluster(6),0);
+    }
+
+    public void test4() throws Exception{
+        //A declaration holds for a single proposal only.
+        int rebuildCount = index.getRebuildCount();
+        storeState();
+        index.expectSingleChange();
+        pointers.point(2, parameters[0]);
+        assertTrue(checkIndex());
+        accept();
+
+        storeState();
+        pointers.point(2, parameters[1]);
+        pointers.point(3, parameters[1]);
+        assertTrue(checkIndex());
+        assertEquals(index.getRebuildCount(),rebuildCount + 1);
+        assertIndexMatchesPointers();
+        reject();
+        assertIndexMatchesPointers();
+        assertEquals(index.getCluster(2),0);
+        assertEquals(index.getCluster(3),0);
+
+        //A restore discards a declaration that has not been used, as when the proposal is turned down.
+        storeState();
+        index.expectSingleChange();
+        reject();
+        storeState();
+        pointers.point(0, parameters[2]);
+        pointers.point(1, parameters[2]);
+        assertTrue(checkIndex());
+        assertEquals(index.getRebuildCount(),rebuildCount + 2);
+        assertIndexMatchesPointers();
+    }
+
+
+
+}
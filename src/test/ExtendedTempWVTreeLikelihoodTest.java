@@ -0,0 +1,102 @@
+package test;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.GeneralUnitAlignment;
+import beast.evolution.alignment.Sequence;
+import beast.evolution.likelihood.ExtendedTempWVTreeLikelihood;
+import junit.framework.TestCase;
+
+/**
+ * @author Chieh-Hsi Wu
+ */
+public class ExtendedTempWVTreeLikelihoodTest extends TestCase {
+
+    /*
+     * Gives each pattern a log-likelihood made of its index and the first model parameter,
+     * so that the candidates of a batch can be told apart without a tree.
+     */
+    static class PatternIndexLikelihood extends ExtendedTempWVTreeLikelihood {
+        int callCount;
+
+        public double calculateLogP(
+                RealParameter modelParameters,
+                RealParameter modelCode,
+                RealParameter freqs,
+                RealParameter alpha,
+                RealParameter invPr,
+                RealParameter rate,
+                RealParameter siteModelIndicator) throws Exception{
+            int patternCount = m_data.get().getPatternCount();
+            if(m_fPatternLogLikelihoods == null){
+                m_fPatternLogLikelihoods = new double[patternCount];
+            }
+            logP = 0.0;
+            for(int i = 0; i < patternCount; i++){
+                m_fPatternLogLikelihoods[i] = -(i + 1)*modelParameters.getValue(0)*rate.getValue();
+                logP += m_fPatternLogLikelihoods[i];
+            }
+            callCount++;
+            return logP;
+        }
+    }
+
+    private RealParameter[] createParameters(double[] values){
+        RealParameter[] parameters = new RealParameter[values.length];
+        for(int i = 0; i < values.length; i++){
+            parameters[i] = new RealParameter(new Double[]{values[i]});
+        }
+        return parameters;
+    }
+
+
+
+    public void test1() throws Exception{
+        Sequence taxa1 = new Sequence("taxa1", "AGAAATATGTCTGAT");
+        Sequence taxa2 = new Sequence("taxa2", "AGAAATATGTCTGCT");
+        Sequence taxa3 = new Sequence("taxa3", "AGCAATATGTCTGAT");
+
+        GeneralUnitAlignment data = new GeneralUnitAlignment();
+        data.initByName(
+                "sequence", taxa1,
+                "sequence", taxa2,
+                "sequence", taxa3,
+                "dataType", "nucleotide",
+                "unitDefinition", "codon"
+        );
+
+        PatternIndexLikelihood tempLik = new PatternIndexLikelihood();
+        tempLik.m_data.setValue(data, tempLik);
+
+        RealParameter[] modelParameters = createParameters(new double[]{0.5, 1.0, 2.0, 4.0});
+        RealParameter[] rate = createParameters(new double[]{1.0, 1.5, 0.5, 2.0});
+        RealParameter[] other = createParameters(new double[]{0.0, 0.0, 0.0, 0.0});
+
+        //The candidates before firstCandidate are not evaluated.
+        int firstCandidate = 1;
+        for(int unit = 0; unit < data.getUnitCount(); unit++){
+            int callCount = tempLik.callCount;
+            double[] logPs = tempLik.calculateLogPs(
+                    modelParameters, other, other, other, other, rate, other, firstCandidate, data, unit);
+            assertEquals(logPs.length,modelParameters.length - firstCandidate);
+            assertEquals(tempLik.callCount,callCount + logPs.length);
+
+            //The log-likelihood of the unit is the sum of those of its sites.
+            int[] sites = data.getSitesByUnit(unit);
+            for(int k = 0; k < logPs.length; k++){
+                int candidate = firstCandidate + k;
+                double expected = 0.0;
+                for(int site: sites){
+                    expected -= (data.getPatternIndex(site) + 1)*modelParameters[candidate].getValue(0)*rate[candidate].getValue();
+                }
+                assertEquals(logPs[k], expected, 1e-10);
+            }
+        }
+
+        //No candidates are left to evaluate.
+        double[] logPs = tempLik.calculateLogPs(
+                modelParameters, other, other, other, other, rate, other, modelParameters.length, data, 0);
+        assertEquals(logPs.length,0);
+    }
+
+
+}
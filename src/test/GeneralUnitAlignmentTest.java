@@ -5,6 +5,10 @@ import beast.evolution.alignment.GeneralUnitAlignment;
 import beast.evolution.alignment.Sequence;
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.RandomAccessFile;
+
 /**
  * @author Chieh-Hsi Wu
  */
@@ -33,6 +37,12 @@ public class GeneralUnitAlignmentTest extends TestCase {
 
             assertEquals(data.getUnitBySite(i),siteToUnitMap[i]);
         }
+
+        assertEquals(data.getUnitCount(),siteCount);
+        for(int i = 0; i < siteCount; i++){
+            assertEquals(data.getSiteCountGivenUnit(i),1);
+            assertEquals(data.getSiteInUnit(i,0),unitToSitesMap[i]);
+        }
     }
 
     public void test2() throws Exception{
@@ -221,4 +231,335 @@ public class GeneralUnitAlignmentTest extends TestCase {
 
 
 
+    public void test7() throws Exception{
+        Sequence taxa1 = new Sequence("taxa1", "AGAAATATGTCTGAT");
+        Sequence taxa2 = new Sequence("taxa2", "AGAAATATGTCTGAT");
+        Sequence taxa3 = new Sequence("taxa3", "AGAAATATGTCTGAT");
+
+        GeneralUnitAlignment data = new GeneralUnitAlignment();
+        data.initByName(
+                "sequence", taxa1,
+                "sequence", taxa2,
+                "sequence", taxa3,
+                "dataType", "nucleotide",
+                "unitDefinition", "codonByGene",
+                "geneEndingSitePositions", "7 15"
+        );
+
+        int[][] unitToSitesMap = new int[6][];
+        unitToSitesMap[0] = new int[]{0,3,6};
+        unitToSitesMap[1] = new int[]{1,4};
+        unitToSitesMap[2] = new int[]{2,5};
+        unitToSitesMap[3] = new int[]{7,10,13};
+        unitToSitesMap[4] = new int[]{8,11,14};
+        unitToSitesMap[5] = new int[]{9,12};
+
+        assertEquals(data.getUnitCount(),unitToSitesMap.length);
+        for(int i = 0; i < unitToSitesMap.length; i ++){
+            assertEquals(data.getSiteCountGivenUnit(i),unitToSitesMap[i].length);
+            int[] sites = data.getSitesByUnit(i);
+            for(int j = 0; j < unitToSitesMap[i].length; j++){
+                assertEquals(data.getSiteInUnit(i,j),unitToSitesMap[i][j]);
+                assertEquals(sites[j],unitToSitesMap[i][j]);
+            }
+        }
+    }
+
+
+
+    public void test8() throws Exception{
+        Sequence taxa1 = new Sequence("taxa1", "AGAAATATGTCTGAT");
+        Sequence taxa2 = new Sequence("taxa2", "AGAAATATGTCTGAT");
+        Sequence taxa3 = new Sequence("taxa3", "AGAAATATGTCTGAT");
+
+        GeneralUnitAlignment data = new GeneralUnitAlignment();
+        data.initByName(
+                "sequence", taxa1,
+                "sequence", taxa2,
+                "sequence", taxa3,
+                "dataType", "nucleotide",
+                "siteToUnitMap", "1 1 1 2 1 1 3 3 3 4 7 5 6 5 6"
+        );
+
+        for(int i = 0; i < data.getUnitCount(); i ++){
+            int[] sites = data.getSitesByUnit(i);
+            int totalWeight = 0;
+            for(int j = 0; j < data.getPatternCountGivenUnit(i); j++){
+                int patternIndex = data.getPatternInUnit(i,j);
+                int weight = 0;
+                for(int site: sites){
+                    if(data.getPatternIndex(site) == patternIndex){
+                        weight++;
+                    }
+                }
+                assertEquals(data.getPatternWeightInUnit(i,j),weight);
+                if(j > 0){
+                    assertTrue(data.getPatternInUnit(i,j - 1) < patternIndex);
+                }
+                totalWeight += weight;
+            }
+            assertEquals(totalWeight,data.getSiteCountGivenUnit(i));
+        }
+    }
+
+
+
+    public void test9() throws Exception{
+        Sequence taxa1 = new Sequence("taxa1", "ACGACG");
+        Sequence taxa2 = new Sequence("taxa2", "ACGACG");
+        Sequence taxa3 = new Sequence("taxa3", "ATGATG");
+
+        GeneralUnitAlignment data = new GeneralUnitAlignment();
+        data.initByName(
+                "sequence", taxa1,
+                "sequence", taxa2,
+                "sequence", taxa3,
+                "dataType", "nucleotide",
+                "siteToUnitMap", "1 2 2 1 3 3"
+        );
+
+        assertEquals(data.getUnitClassCount(),2);
+        for(int i = 0; i < data.getUnitCount(); i ++){
+            for(int j = 0; j < data.getUnitCount(); j ++){
+                boolean samePatterns = data.getPatternCountGivenUnit(i) == data.getPatternCountGivenUnit(j);
+                for(int k = 0; samePatterns && k < data.getPatternCountGivenUnit(i); k++){
+                    samePatterns = data.getPatternInUnit(i,k) == data.getPatternInUnit(j,k) &&
+                            data.getPatternWeightInUnit(i,k) == data.getPatternWeightInUnit(j,k);
+                }
+                assertEquals(data.getUnitClass(i) == data.getUnitClass(j),samePatterns);
+            }
+        }
+    }
+
+
+
+    public void test10() throws Exception{
+        Sequence taxa1 = new Sequence("taxa1", "AGAAATATGTCTGAT");
+        Sequence taxa2 = new Sequence("taxa2", "AGAAATATGTCTGAT");
+        Sequence taxa3 = new Sequence("taxa3", "AGAAATATGTCTGAT");
+
+        File mapFile = File.createTempFile("siteToUnitMap", ".txt");
+        mapFile.deleteOnExit();
+        FileWriter writer = new FileWriter(mapFile);
+        writer.write("1 1 1 2 1 1 3 3\n3 4 7 5 6 5 6\n");
+        writer.close();
+
+        GeneralUnitAlignment data = new GeneralUnitAlignment();
+        data.initByName(
+                "sequence", taxa1,
+                "sequence", taxa2,
+                "sequence", taxa3,
+                "dataType", "nucleotide",
+                "siteToUnitMapFile", mapFile.getPath()
+        );
+
+        int[][] unitToSitesMap = new int[7][];
+        unitToSitesMap[0] = new int[]{0,1,2,4,5};
+        unitToSitesMap[1] = new int[]{3};
+        unitToSitesMap[2] = new int[]{6,7,8};
+        unitToSitesMap[3] = new int[]{9};
+        unitToSitesMap[4] = new int[]{10};
+        unitToSitesMap[5] = new int[]{11,13};
+        unitToSitesMap[6] = new int[]{12,14};
+
+        assertEquals(data.getUnitCount(),unitToSitesMap.length);
+        for(int i = 0; i < unitToSitesMap.length; i ++){
+            assertEquals(data.getSiteCountGivenUnit(i),unitToSitesMap[i].length);
+            for(int j = 0; j < unitToSitesMap[i].length; j++){
+                assertEquals(data.getSiteInUnit(i,j),unitToSitesMap[i][j]);
+                assertEquals(data.getUnitBySite(unitToSitesMap[i][j]),i);
+            }
+        }
+    }
+
+
+
+    public void test11() throws Exception{
+        Sequence taxa1 = new Sequence("taxa1", "AGAAATATGTCTGAT");
+        Sequence taxa2 = new Sequence("taxa2", "AGAAATATGTCTGAT");
+        Sequence taxa3 = new Sequence("taxa3", "AGAAATATGTCTGAT");
+
+        GeneralUnitAlignment data = new GeneralUnitAlignment();
+        data.initByName(
+                "sequence", taxa1,
+                "sequence", taxa2,
+                "sequence", taxa3,
+                "dataType", "nucleotide",
+                "unitDefinition", "gene",
+                "geneEndingSitePositions", "4 9 15"
+        );
+
+        int[] siteToUnitMap = new int[]{0,0,0,0,1,1,1,1,1,2,2,2,2,2,2};
+        assertEquals(data.getUnitCount(),3);
+        for(int i = 0; i < siteToUnitMap.length; i++){
+            assertEquals(data.getUnitBySite(i),siteToUnitMap[i]);
+        }
+
+        data = new GeneralUnitAlignment();
+        data.initByName(
+                "sequence", taxa1,
+                "sequence", taxa2,
+                "sequence", taxa3,
+                "dataType", "nucleotide",
+                "unitDefinition", "codonByGene",
+                "geneEndingSitePositions", "7 15"
+        );
+
+        siteToUnitMap = new int[]{0,1,2,0,1,2,0,3,4,5,3,4,5,3,4};
+        for(int i = 0; i < siteToUnitMap.length; i++){
+            assertEquals(data.getUnitBySite(i),siteToUnitMap[i]);
+        }
+    }
+
+
+
+    public void test12() throws Exception{
+        Sequence taxa1 = new Sequence("taxa1", "AGAAATATGTCTGAT");
+        Sequence taxa2 = new Sequence("taxa2", "AGAAATATGTCTGAT");
+        Sequence taxa3 = new Sequence("taxa3", "AGAAATATGTCTGAC");
+
+        File cacheFile = File.createTempFile("unitCache", ".bin");
+        cacheFile.delete();
+        cacheFile.deleteOnExit();
+
+        GeneralUnitAlignment[] data = new GeneralUnitAlignment[2];
+        for(int i = 0; i < data.length; i++){
+            data[i] = new GeneralUnitAlignment();
+            data[i].initByName(
+                    "sequence", taxa1,
+                    "sequence", taxa2,
+                    "sequence", taxa3,
+                    "dataType", "nucleotide",
+                    "siteToUnitMap", "1 1 1 2 1 1 3 3 3 4 7 5 6 5 6",
+                    "unitCacheFile", cacheFile.getPath()
+            );
+            assertTrue(cacheFile.exists());
+        }
+
+        //The first alignment writes the cache and the second one reads it.
+        assertFalse(data[0].isReadFromUnitCache());
+        assertTrue(data[1].isReadFromUnitCache());
+        assertEquals(data[1].getPatternCount(),data[0].getPatternCount());
+
+        assertEquals(data[1].getUnitCount(),data[0].getUnitCount());
+        assertEquals(data[1].getUnitClassCount(),data[0].getUnitClassCount());
+        for(int i = 0; i < data[0].getUnitCount(); i ++){
+            assertEquals(data[1].getSiteCountGivenUnit(i),data[0].getSiteCountGivenUnit(i));
+            for(int j = 0; j < data[0].getSiteCountGivenUnit(i); j++){
+                assertEquals(data[1].getSiteInUnit(i,j),data[0].getSiteInUnit(i,j));
+            }
+            assertEquals(data[1].getPatternCountGivenUnit(i),data[0].getPatternCountGivenUnit(i));
+            for(int j = 0; j < data[0].getPatternCountGivenUnit(i); j++){
+                assertEquals(data[1].getPatternInUnit(i,j),data[0].getPatternInUnit(i,j));
+                assertEquals(data[1].getPatternWeightInUnit(i,j),data[0].getPatternWeightInUnit(i,j));
+            }
+            assertEquals(data[1].getUnitClass(i),data[0].getUnitClass(i));
+        }
+        for(int i = 0; i < data[0].getSiteCount(); i++){
+            assertEquals(data[1].getUnitBySite(i),data[0].getUnitBySite(i));
+        }
+
+        //A different unit definition must not use the cache.
+        GeneralUnitAlignment codonData = new GeneralUnitAlignment();
+        codonData.initByName(
+                "sequence", taxa1,
+                "sequence", taxa2,
+                "sequence", taxa3,
+                "dataType", "nucleotide",
+                "unitDefinition", "codon",
+                "unitCacheFile", cacheFile.getPath()
+        );
+        assertFalse(codonData.isReadFromUnitCache());
+        assertEquals(codonData.getUnitCount(),3);
+    }
+
+
+
+    public void test13() throws Exception{
+        Sequence taxa1 = new Sequence("taxa1", "AGAAATATGTCTGAT");
+        Sequence taxa2 = new Sequence("taxa2", "AGAAATATGTCTGAT");
+        Sequence taxa3 = new Sequence("taxa3", "AGAAATATGTCTGAT");
+
+        GeneralUnitAlignment data = new GeneralUnitAlignment();
+        data.initByName(
+                "sequence", taxa1,
+                "sequence", taxa2,
+                "sequence", taxa3,
+                "dataType", "nucleotide",
+                "unitDefinition", "block",
+                "blockLength", 4,
+                "geneEndingSitePositions", "6 15"
+        );
+
+        int[][] unitToSitesMap = new int[5][];
+        unitToSitesMap[0] = new int[]{0,1,2,3};
+        unitToSitesMap[1] = new int[]{4,5};
+        unitToSitesMap[2] = new int[]{6,7,8,9};
+        unitToSitesMap[3] = new int[]{10,11,12,13};
+        unitToSitesMap[4] = new int[]{14};
+
+        assertEquals(data.getUnitCount(),unitToSitesMap.length);
+        for(int i = 0; i < unitToSitesMap.length; i ++){
+            assertEquals(data.getSiteCountGivenUnit(i),unitToSitesMap[i].length);
+            int[] sites = data.getSitesByUnit(i);
+            for(int j = 0; j < unitToSitesMap[i].length; j++){
+                assertEquals(data.getSiteInUnit(i,j),unitToSitesMap[i][j]);
+                assertEquals(sites[j],unitToSitesMap[i][j]);
+                assertEquals(data.getUnitBySite(unitToSitesMap[i][j]),i);
+            }
+        }
+    }
+
+
+
+    public void test14() throws Exception{
+        Sequence taxa1 = new Sequence("taxa1", "AGAAATATGTCTGAT");
+        Sequence taxa2 = new Sequence("taxa2", "AGAAATATGTCTGAT");
+        Sequence taxa3 = new Sequence("taxa3", "AGAAATATGTCTGAC");
+
+        File cacheFile = File.createTempFile("unitCache", ".bin");
+        cacheFile.delete();
+        cacheFile.deleteOnExit();
+        File mapFile = File.createTempFile("siteToUnitMap", ".txt");
+        mapFile.deleteOnExit();
+
+        String[] maps = new String[]{
+                "1 1 1 2 1 1 3 3 3 4 7 5 6 5 6",
+                "1 1 1 2 1 1 3 3 3 4 7 5 6 5 5"
+        };
+        int[] unitCounts = new int[]{7, 7};
+        int[] lastSiteUnitSizes = new int[]{2, 3};
+
+        for(int i = 0; i < 3; i++){
+            //The second map has the same length as the first, so only its contents tell them apart.
+            FileWriter writer = new FileWriter(mapFile);
+            writer.write(maps[Math.min(i, 1)]);
+            writer.close();
+
+            if(i == 2){
+                //A truncated cache is rebuilt.
+                RandomAccessFile file = new RandomAccessFile(cacheFile, "rw");
+                file.setLength(file.length() - 6);
+                file.close();
+            }
+
+            GeneralUnitAlignment data = new GeneralUnitAlignment();
+            data.initByName(
+                    "sequence", taxa1,
+                    "sequence", taxa2,
+                    "sequence", taxa3,
+                    "dataType", "nucleotide",
+                    "siteToUnitMapFile", mapFile.getPath(),
+                    "unitCacheFile", cacheFile.getPath()
+            );
+            assertEquals(data.getUnitCount(),unitCounts[Math.min(i, 1)]);
+            assertEquals(data.getSiteCountGivenUnit(data.getUnitBySite(14)),lastSiteUnitSizes[Math.min(i, 1)]);
+            assertEquals(data.getPatternCount(),5);
+            //The cache never matches: the map file changes, and then the cache is truncated.
+            assertFalse(data.isReadFromUnitCache());
+        }
+    }
+
+
+
 }
@@ -0,0 +1,94 @@
+package test;
+
+import beast.evolution.operators.LogCategoricalSampler;
+import beast.util.Randomizer;
+import junit.framework.TestCase;
+
+/**
+ * @author Chieh-Hsi Wu
+ */
+public class LogCategoricalSamplerTest extends TestCase {
+
+
+
+    public void test1() throws Exception{
+        LogCategoricalSampler sampler = new LogCategoricalSampler();
+
+        //All the categories are impossible.
+        double[] logWeights = sampler.getLogWeights(3);
+        logWeights[0] = Double.NEGATIVE_INFINITY;
+        logWeights[1] = Double.NEGATIVE_INFINITY;
+        logWeights[2] = Double.NEGATIVE_INFINITY;
+        assertEquals(sampler.sample(3),-1);
+
+        logWeights[1] = Double.NaN;
+        assertEquals(sampler.sample(3),-1);
+
+        //Only one category is possible.
+        logWeights[1] = -5.0;
+        for(int i = 0; i < 100; i++){
+            assertEquals(sampler.sample(3),1);
+        }
+
+        //Only the categories with infinite log-weights can be chosen.
+        logWeights[0] = Double.POSITIVE_INFINITY;
+        for(int i = 0; i < 100; i++){
+            assertEquals(sampler.sample(3),0);
+        }
+
+        //The categories after size are ignored.
+        logWeights[0] = Double.NEGATIVE_INFINITY;
+        logWeights[2] = 10.0;
+        for(int i = 0; i < 100; i++){
+            assertEquals(sampler.sample(2),1);
+        }
+    }
+
+    public void test2() throws Exception{
+        Randomizer.setSeed(127);
+        LogCategoricalSampler sampler = new LogCategoricalSampler();
+
+        //The log-weights would overflow if they were exponentiated without the shift.
+        double[] logWeights = sampler.getLogWeights(3);
+        logWeights[0] = 1000.0;
+        logWeights[1] = 1000.0 + Math.log(2.0);
+        logWeights[2] = 1000.0 + Math.log(3.0);
+
+        int sampleCount = 60000;
+        int[] counts = new int[3];
+        for(int i = 0; i < sampleCount; i++){
+            counts[sampler.sample(3)]++;
+        }
+
+        assertEquals(counts[0]/(double)sampleCount, 1.0/6.0, 0.01);
+        assertEquals(counts[1]/(double)sampleCount, 2.0/6.0, 0.01);
+        assertEquals(counts[2]/(double)sampleCount, 3.0/6.0, 0.01);
+
+        //The same applies to log-weights that would underflow.
+        logWeights[0] = -1000.0 + Math.log(3.0);
+        logWeights[1] = -1000.0;
+        logWeights[2] = Double.NEGATIVE_INFINITY;
+        counts = new int[3];
+        for(int i = 0; i < sampleCount; i++){
+            counts[sampler.sample(3)]++;
+        }
+        assertEquals(counts[0]/(double)sampleCount, 0.75, 0.01);
+        assertEquals(counts[1]/(double)sampleCount, 0.25, 0.01);
+        assertEquals(counts[2],0);
+    }
+
+    public void test3() throws Exception{
+        LogCategoricalSampler sampler = new LogCategoricalSampler();
+
+        //The buffer is only replaced when a larger one is needed.
+        double[] logWeights = sampler.getLogWeights(4);
+        assertSame(sampler.getLogWeights(2),logWeights);
+        assertSame(sampler.getLogWeights(4),logWeights);
+        double[] largerLogWeights = sampler.getLogWeights(5);
+        assertTrue(largerLogWeights.length >= 5);
+        assertSame(sampler.getLogWeights(3),largerLogWeights);
+    }
+
+
+
+}
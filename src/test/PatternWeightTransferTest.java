@@ -0,0 +1,192 @@
+package test;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.GeneralUnitAlignment;
+import beast.evolution.alignment.Sequence;
+import beast.evolution.branchratemodel.StrictClockModel;
+import beast.evolution.likelihood.PatternWeightTransfer;
+import beast.evolution.likelihood.SparseWVTreeLikelihood;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.Frequencies;
+import beast.evolution.substitutionmodel.HKY;
+import beast.util.TreeParser;
+import junit.framework.TestCase;
+
+/**
+ * @author Chieh-Hsi Wu
+ */
+public class PatternWeightTransferTest extends TestCase {
+    private GeneralUnitAlignment data;
+    private TreeParser tree;
+    private SiteModel siteModel;
+    private StrictClockModel clockModel;
+
+    protected void setUp() throws Exception{
+        Sequence taxa1 = new Sequence("taxa1", "AGAAATATGTCTGATAAAGCGTTAG");
+        Sequence taxa2 = new Sequence("taxa2", "AGAAATATGTCTGACCAAGCGTTTG");
+        Sequence taxa3 = new Sequence("taxa3", "AGGAATATGTCTGATAAAGCATTAG");
+        Sequence taxa4 = new Sequence("taxa4", "ACAAATTTGTCCGATACAGCGTTAG");
+
+        data = new GeneralUnitAlignment();
+        data.initByName(
+                "sequence", taxa1,
+                "sequence", taxa2,
+                "sequence", taxa3,
+                "sequence", taxa4,
+                "dataType", "nucleotide",
+                "unitDefinition", "codon"
+        );
+
+        tree = new TreeParser();
+        tree.initByName(
+                "taxa", data,
+                "newick", "((taxa1:0.1,taxa2:0.2):0.05,(taxa3:0.15,taxa4:0.3):0.1);",
+                "IsLabelledNewick", true
+        );
+
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("frequencies", new RealParameter(new Double[]{0.3, 0.2, 0.2, 0.3}));
+        HKY hky = new HKY();
+        hky.initByName(
+                "kappa", new RealParameter(new Double[]{3.0}),
+                "frequencies", freqs
+        );
+
+        siteModel = new SiteModel();
+        siteModel.initByName(
+                "mutationRate", new RealParameter(new Double[]{1.0}),
+                "substModel", hky
+        );
+
+        clockModel = new StrictClockModel();
+        clockModel.initByName("clock.rate", new RealParameter(new Double[]{1.0}));
+    }
+
+    /*
+     * Adds the pattern weights of a unit to the given weights.
+     */
+    private void addUnitWeights(int[] weights, int unitIndex, int sign){
+        for(int i = 0; i < data.getPatternCountGivenUnit(unitIndex); i++){
+            weights[data.getPatternInUnit(unitIndex, i)] += sign*data.getPatternWeightInUnit(unitIndex, i);
+        }
+    }
+
+    private SparseWVTreeLikelihood createLikelihood(int[] weights){
+        return new SparseWVTreeLikelihood(weights.clone(), data, tree, false, siteModel, clockModel, 1.0);
+    }
+
+    private void assertWeightsEqual(int[] actual, int[] expected){
+        assertEquals(actual.length,expected.length);
+        for(int i = 0; i < expected.length; i++){
+            assertEquals(actual[i],expected[i]);
+        }
+    }
+
+
+
+    public void test1() throws Exception{
+        //Unit 0 and 1 are in the first cluster and unit 2 is in the second.
+        int patternCount = data.getPatternCount();
+        int[] weights1 = new int[patternCount];
+        int[] weights2 = new int[patternCount];
+        addUnitWeights(weights1, 0, 1);
+        addUnitWeights(weights1, 1, 1);
+        addUnitWeights(weights2, 2, 1);
+        SparseWVTreeLikelihood treeLik1 = createLikelihood(weights1);
+        SparseWVTreeLikelihood treeLik2 = createLikelihood(weights2);
+
+        //Nothing is changed until the transfer is applied.
+        PatternWeightTransfer transfer = new PatternWeightTransfer(patternCount);
+        transfer.moveUnit(data, 1, treeLik1, treeLik2);
+        assertWeightsEqual(treeLik1.getPatternWeights(), weights1);
+        assertWeightsEqual(treeLik2.getPatternWeights(), weights2);
+
+        transfer.apply();
+        addUnitWeights(weights1, 1, -1);
+        addUnitWeights(weights2, 1, 1);
+        assertWeightsEqual(treeLik1.getPatternWeights(), weights1);
+        assertWeightsEqual(treeLik2.getPatternWeights(), weights2);
+
+        //A move to the same likelihood changes nothing.
+        transfer.moveUnit(data, 0, treeLik1, treeLik1);
+        transfer.apply();
+        assertWeightsEqual(treeLik1.getPatternWeights(), weights1);
+    }
+
+    public void test2() throws Exception{
+        int patternCount = data.getPatternCount();
+        int[] weights1 = new int[patternCount];
+        int[] weights2 = new int[patternCount];
+        addUnitWeights(weights1, 0, 1);
+        addUnitWeights(weights2, 1, 1);
+        addUnitWeights(weights2, 2, 1);
+        SparseWVTreeLikelihood treeLik1 = createLikelihood(weights1);
+        SparseWVTreeLikelihood treeLik2 = createLikelihood(weights2);
+        int activeCount1 = treeLik1.getActivePatternCount();
+        int activeCount2 = treeLik2.getActivePatternCount();
+
+        //A unit moved and moved back in the same transfer nets to no change.
+        PatternWeightTransfer transfer = new PatternWeightTransfer(patternCount);
+        transfer.moveUnit(data, 2, treeLik2, treeLik1);
+        transfer.moveUnit(data, 2, treeLik1, treeLik2);
+        transfer.apply();
+        assertWeightsEqual(treeLik1.getPatternWeights(), weights1);
+        assertWeightsEqual(treeLik2.getPatternWeights(), weights2);
+        assertEquals(treeLik1.getActivePatternCount(),activeCount1);
+        assertEquals(treeLik2.getActivePatternCount(),activeCount2);
+
+        //The units of a move between three likelihoods are collected in one transfer.
+        int[] weights3 = new int[patternCount];
+        SparseWVTreeLikelihood treeLik3 = createLikelihood(weights3);
+        transfer.moveUnit(data, 0, treeLik1, treeLik3);
+        transfer.moveUnit(data, 2, treeLik2, treeLik3);
+        transfer.apply();
+        addUnitWeights(weights1, 0, -1);
+        addUnitWeights(weights3, 0, 1);
+        addUnitWeights(weights2, 2, -1);
+        addUnitWeights(weights3, 2, 1);
+        assertWeightsEqual(treeLik1.getPatternWeights(), weights1);
+        assertWeightsEqual(treeLik2.getPatternWeights(), weights2);
+        assertWeightsEqual(treeLik3.getPatternWeights(), weights3);
+        assertEquals(treeLik1.getActivePatternCount(),0);
+    }
+
+    public void test3() throws Exception{
+        int patternCount = data.getPatternCount();
+        int[] weights1 = new int[patternCount];
+        int[] weights2 = new int[patternCount];
+        addUnitWeights(weights1, 0, 1);
+        addUnitWeights(weights1, 2, 1);
+        addUnitWeights(weights2, 1, 1);
+        SparseWVTreeLikelihood treeLik1 = createLikelihood(weights1);
+        SparseWVTreeLikelihood treeLik2 = createLikelihood(weights2);
+        double logP1 = treeLik1.calculateLogP();
+        double logP2 = treeLik2.calculateLogP();
+        treeLik1.store();
+        treeLik2.store();
+
+        //The proposal moves a unit, which is then rejected.
+        PatternWeightTransfer transfer = new PatternWeightTransfer(patternCount);
+        transfer.moveUnit(data, 2, treeLik1, treeLik2);
+        transfer.apply();
+        double proposedLogP = treeLik1.calculateLogP() + treeLik2.calculateLogP();
+        int[] proposedWeights1 = weights1.clone();
+        addUnitWeights(proposedWeights1, 2, -1);
+        assertWeightsEqual(treeLik1.getPatternWeights(), proposedWeights1);
+
+        treeLik1.restore();
+        treeLik2.restore();
+        assertWeightsEqual(treeLik1.getPatternWeights(), weights1);
+        assertWeightsEqual(treeLik2.getPatternWeights(), weights2);
+        assertEquals(treeLik1.calculateLogP(), logP1, 1e-10);
+        assertEquals(treeLik2.calculateLogP(), logP2, 1e-10);
+
+        //The same move proposed again gives the same likelihood.
+        transfer.moveUnit(data, 2, treeLik1, treeLik2);
+        transfer.apply();
+        assertEquals(treeLik1.calculateLogP() + treeLik2.calculateLogP(), proposedLogP, 1e-10);
+    }
+
+
+
+}
@@ -0,0 +1,206 @@
+package test;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.alignment.Sequence;
+import beast.evolution.branchratemodel.StrictClockModel;
+import beast.evolution.likelihood.NewWVTreeLikelihood;
+import beast.evolution.likelihood.SparseWVTreeLikelihood;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.Frequencies;
+import beast.evolution.substitutionmodel.HKY;
+import beast.util.TreeParser;
+import junit.framework.TestCase;
+
+/**
+ * @author Chieh-Hsi Wu
+ */
+public class SparseWVTreeLikelihoodTest extends TestCase {
+    private Alignment data;
+    private TreeParser tree;
+    private SiteModel siteModel;
+    private StrictClockModel clockModel;
+
+    protected void setUp() throws Exception{
+        Sequence taxa1 = new Sequence("taxa1", "AGAAATATGTCTGATAAAGCGTTAG");
+        Sequence taxa2 = new Sequence("taxa2", "AGAAATATGTCTGACCAAGCGTTTG");
+        Sequence taxa3 = new Sequence("taxa3", "AGGAATATGTCTGATAAAGCATTAG");
+        Sequence taxa4 = new Sequence("taxa4", "ACAAATTTGTCCGATACAGCGTTAG");
+
+        data = new Alignment();
+        data.initByName(
+                "sequence", taxa1,
+                "sequence", taxa2,
+                "sequence", taxa3,
+                "sequence", taxa4,
+                "dataType", "nucleotide"
+        );
+
+        tree = new TreeParser();
+        tree.initByName(
+                "taxa", data,
+                "newick", "((taxa1:0.1,taxa2:0.2):0.05,(taxa3:0.15,taxa4:0.3):0.1);",
+                "IsLabelledNewick", true
+        );
+
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("frequencies", new RealParameter(new Double[]{0.3, 0.2, 0.2, 0.3}));
+        HKY hky = new HKY();
+        hky.initByName(
+                "kappa", new RealParameter(new Double[]{3.0}),
+                "frequencies", freqs
+        );
+
+        siteModel = new SiteModel();
+        siteModel.initByName(
+                "mutationRate", new RealParameter(new Double[]{1.0}),
+                "gammaCategoryCount", 4,
+                "shape", new RealParameter(new Double[]{0.5}),
+                "substModel", hky
+        );
+
+        clockModel = new StrictClockModel();
+        clockModel.initByName("clock.rate", new RealParameter(new Double[]{1.0}));
+    }
+
+    /*
+     * Weights of some of the patterns, with the others left at zero.
+     */
+    private int[] createWeights(){
+        int[] weights = new int[data.getPatternCount()];
+        for(int i = 0; i < weights.length; i += 3){
+            weights[i] = i%2 + 1;
+        }
+        return weights;
+    }
+
+    private int countActivePatterns(int[] weights){
+        int count = 0;
+        for(int weight: weights){
+            if(weight > 0){
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private double calculateFullLogP(int[] weights) throws Exception{
+        NewWVTreeLikelihood treeLik = new NewWVTreeLikelihood(weights, data, tree, false, siteModel, clockModel);
+        return treeLik.calculateLogP();
+    }
+
+    private SparseWVTreeLikelihood createSparseLikelihood(int[] weights){
+        //Every cluster is calculated over its active patterns.
+        return new SparseWVTreeLikelihood(weights.clone(), data, tree, false, siteModel, clockModel, 1.0);
+    }
+
+
+
+    public void test1() throws Exception{
+        int[] weights = createWeights();
+        SparseWVTreeLikelihood treeLik = createSparseLikelihood(weights);
+        assertEquals(treeLik.getActivePatternCount(),countActivePatterns(weights));
+
+        //The likelihood over the active patterns is that of the full tree likelihood.
+        assertEquals(treeLik.calculateLogP(), calculateFullLogP(weights), 1e-8);
+
+        //Each pattern log-likelihood is that of the full tree likelihood, including those of the inactive patterns.
+        int[] allWeights = new int[weights.length];
+        for(int i = 0; i < allWeights.length; i++){
+            allWeights[i] = 1;
+        }
+        NewWVTreeLikelihood fullTreeLik = new NewWVTreeLikelihood(allWeights, data, tree, false, siteModel, clockModel);
+        fullTreeLik.calculateLogP();
+        for(int i = 0; i < weights.length; i++){
+            assertEquals(treeLik.getPatternLogLikelihood(i), fullTreeLik.getPatternLogLikelihood(i), 1e-8);
+        }
+    }
+
+    public void test2() throws Exception{
+        int[] weights = createWeights();
+        SparseWVTreeLikelihood treeLik = createSparseLikelihood(weights);
+
+        //A pattern becomes active when its weight becomes positive and inactive when it drops to zero.
+        int activeCount = treeLik.getActivePatternCount();
+        treeLik.addWeight(1, 2);
+        assertEquals(treeLik.getActivePatternCount(),activeCount + 1);
+        treeLik.addWeight(1, 1);
+        assertEquals(treeLik.getActivePatternCount(),activeCount + 1);
+        treeLik.removeWeight(1, 3);
+        assertEquals(treeLik.getActivePatternCount(),activeCount);
+        treeLik.removeWeight(0, weights[0]);
+        assertEquals(treeLik.getActivePatternCount(),activeCount - 1);
+
+        weights[0] = 0;
+        assertEquals(treeLik.calculateLogP(), calculateFullLogP(weights), 1e-8);
+    }
+
+    public void test3() throws Exception{
+        int[] weights = createWeights();
+        SparseWVTreeLikelihood treeLik = createSparseLikelihood(weights);
+        double storedLogP = treeLik.calculateLogP();
+        int storedActiveCount = treeLik.getActivePatternCount();
+        treeLik.store();
+
+        //A proposal moves weights between patterns, which activates one pattern and deactivates another.
+        int[] newWeights = weights.clone();
+        treeLik.removeWeight(0, weights[0]);
+        newWeights[0] = 0;
+        treeLik.addWeight(2, 4);
+        newWeights[2] += 4;
+        treeLik.addWeight(3, 1);
+        newWeights[3] += 1;
+        assertEquals(treeLik.getActivePatternCount(),countActivePatterns(newWeights));
+        assertEquals(treeLik.calculateLogP(), calculateFullLogP(newWeights), 1e-8);
+
+        //The proposal is rejected, so the weights, the active patterns and the likelihood are those of the stored state.
+        treeLik.restore();
+        assertEquals(treeLik.getActivePatternCount(),storedActiveCount);
+        int[] restoredWeights = treeLik.getPatternWeights();
+        for(int i = 0; i < weights.length; i++){
+            assertEquals(restoredWeights[i],weights[i]);
+        }
+        assertEquals(treeLik.calculateLogP(), storedLogP, 1e-10);
+
+        //The active patterns are still updated correctly after the restore.
+        treeLik.removeWeight(0, weights[0]);
+        assertEquals(treeLik.getActivePatternCount(),storedActiveCount - 1);
+        treeLik.addWeight(0, weights[0]);
+        assertEquals(treeLik.getActivePatternCount(),storedActiveCount);
+        assertEquals(treeLik.calculateLogP(), storedLogP, 1e-10);
+    }
+
+    public void test4() throws Exception{
+        int[] weights = createWeights();
+        SparseWVTreeLikelihood treeLik = createSparseLikelihood(weights);
+        double logP = treeLik.calculateLogP();
+
+        //The active patterns evaluated in two ranges with separate buffers add up to the likelihood.
+        assertTrue(treeLik.prepareSparseCalculation());
+        int activeCount = treeLik.getActivePatternCount();
+        double sum = treeLik.calculateActivePatterns(0, activeCount/2, treeLik.createPartialsBuffer()) +
+                treeLik.calculateActivePatterns(activeCount/2, activeCount, treeLik.createPartialsBuffer());
+        assertEquals(sum, logP, 1e-10);
+    }
+
+    public void test5() throws Exception{
+        //A third of the patterns are active, which is more than the fraction given, so the full tree likelihood is used.
+        int[] weights = createWeights();
+        SparseWVTreeLikelihood treeLik = new SparseWVTreeLikelihood(weights.clone(), data, tree, false, siteModel, clockModel, 0.2);
+        assertFalse(treeLik.prepareSparseCalculation());
+        assertEquals(treeLik.calculateLogP(), calculateFullLogP(weights), 1e-8);
+
+        //Removing patterns makes the cluster sparse.
+        for(int i = 0; i < weights.length; i++){
+            if(weights[i] > 0 && treeLik.getActivePatternCount() > 0.2*weights.length){
+                treeLik.removeWeight(i, weights[i]);
+                weights[i] = 0;
+            }
+        }
+        assertTrue(treeLik.prepareSparseCalculation());
+        assertEquals(treeLik.calculateLogP(), calculateFullLogP(weights), 1e-8);
+    }
+
+
+
+}
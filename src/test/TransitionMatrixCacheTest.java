@@ -0,0 +1,182 @@
+package test;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.likelihood.CachedSubstitutionModel;
+import beast.evolution.likelihood.TransitionMatrixCache;
+import beast.evolution.substitutionmodel.Frequencies;
+import beast.evolution.substitutionmodel.HKY;
+import junit.framework.TestCase;
+
+/**
+ * @author Chieh-Hsi Wu
+ */
+public class TransitionMatrixCacheTest extends TestCase {
+
+    private HKY createHKY(double kappa) throws Exception{
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("frequencies", new RealParameter(new Double[]{0.1, 0.2, 0.3, 0.4}));
+
+        HKY hky = new HKY();
+        hky.initByName(
+                "kappa", new RealParameter(new Double[]{kappa}),
+                "frequencies", freqs
+        );
+        return hky;
+    }
+
+    private void assertMatrixEquals(double[] expected, double[] actual){
+        assertEquals(expected.length, actual.length);
+        for(int i = 0; i < expected.length; i++){
+            assertEquals(expected[i], actual[i], 1e-8);
+        }
+    }
+
+
+
+    public void test1() throws Exception{
+        HKY hky = createHKY(2.0);
+        TransitionMatrixCache cache = new TransitionMatrixCache(10);
+
+        double[] expected = new double[16];
+        double[] matrix = new double[16];
+        hky.getTransitionProbabilities(null, 1.0, 0.0, 0.5, expected);
+        cache.getTransitionProbabilities(hky, null, 1.0, 0.0, 0.5, matrix);
+        assertMatrixEquals(expected, matrix);
+        assertEquals(cache.getMissCount(),1);
+        assertEquals(cache.getDecompositionCount(),1);
+
+        //The same expected number of substitutions is found in the cache,
+        //whatever the branch length and rate it is made of.
+        matrix = new double[16];
+        cache.getTransitionProbabilities(hky, null, 2.0, 1.5, 1.0, matrix);
+        assertMatrixEquals(expected, matrix);
+        assertEquals(cache.getHitCount(),1);
+
+        //A different distance is calculated from the same decomposition.
+        hky.getTransitionProbabilities(null, 1.0, 0.0, 0.1, expected);
+        cache.getTransitionProbabilities(hky, null, 1.0, 0.0, 0.1, matrix);
+        assertMatrixEquals(expected, matrix);
+        assertEquals(cache.getMissCount(),2);
+        assertEquals(cache.getDecompositionCount(),1);
+    }
+
+    public void test2() throws Exception{
+        HKY hky = createHKY(2.0);
+        TransitionMatrixCache cache = new TransitionMatrixCache(10);
+
+        double[] stored = new double[16];
+        cache.getTransitionProbabilities(hky, null, 1.0, 0.0, 0.5, stored);
+        cache.store();
+
+        //A proposal changes the model, so its matrices are discarded.
+        cache.invalidate(hky);
+        double[] matrix = new double[16];
+        cache.getTransitionProbabilities(hky, null, 1.0, 0.0, 0.5, matrix);
+        assertEquals(cache.getMissCount(),2);
+        assertEquals(cache.getDecompositionCount(),2);
+
+        //The proposal is rejected, so the matrices and the decomposition of the stored state are used again.
+        cache.restore();
+        long hitCount = cache.getHitCount();
+        cache.getTransitionProbabilities(hky, null, 1.0, 0.0, 0.5, matrix);
+        assertMatrixEquals(stored, matrix);
+        assertEquals(cache.getHitCount(),hitCount + 1);
+
+        double[] expected = new double[16];
+        hky.getTransitionProbabilities(null, 1.0, 0.0, 0.2, expected);
+        cache.getTransitionProbabilities(hky, null, 1.0, 0.0, 0.2, matrix);
+        assertMatrixEquals(expected, matrix);
+        assertEquals(cache.getDecompositionCount(),2);
+
+        //An accepted change is kept by the store.
+        cache.invalidate(hky);
+        cache.store();
+        cache.restore();
+        long missCount = cache.getMissCount();
+        cache.getTransitionProbabilities(hky, null, 1.0, 0.0, 0.5, matrix);
+        assertEquals(cache.getMissCount(),missCount + 1);
+        assertEquals(cache.getDecompositionCount(),3);
+    }
+
+    public void test3() throws Exception{
+        HKY hky1 = createHKY(2.0);
+        HKY hky2 = createHKY(5.0);
+        TransitionMatrixCache cache = new TransitionMatrixCache(10);
+
+        double[] matrix1 = new double[16];
+        double[] matrix2 = new double[16];
+        cache.getTransitionProbabilities(hky1, null, 1.0, 0.0, 0.5, matrix1);
+        cache.getTransitionProbabilities(hky2, null, 1.0, 0.0, 0.5, matrix2);
+        cache.store();
+
+        //The invalidation of one model does not discard the matrices of another.
+        cache.invalidate(hky1);
+        long hitCount = cache.getHitCount();
+        double[] matrix = new double[16];
+        cache.getTransitionProbabilities(hky2, null, 1.0, 0.0, 0.5, matrix);
+        assertMatrixEquals(matrix2, matrix);
+        assertEquals(cache.getHitCount(),hitCount + 1);
+
+        //The change is rejected, so the matrices of both models are used again.
+        cache.restore();
+        hitCount = cache.getHitCount();
+        cache.getTransitionProbabilities(hky1, null, 1.0, 0.0, 0.5, matrix);
+        assertMatrixEquals(matrix1, matrix);
+        cache.getTransitionProbabilities(hky2, null, 1.0, 0.0, 0.5, matrix);
+        assertMatrixEquals(matrix2, matrix);
+        assertEquals(cache.getHitCount(),hitCount + 2);
+    }
+
+    public void test4() throws Exception{
+        HKY hky = createHKY(2.0);
+        TransitionMatrixCache cache = new TransitionMatrixCache(2);
+
+        double[] matrix = new double[16];
+        cache.getTransitionProbabilities(hky, null, 1.0, 0.0, 0.1, matrix);
+        cache.getTransitionProbabilities(hky, null, 1.0, 0.0, 0.2, matrix);
+        cache.getTransitionProbabilities(hky, null, 1.0, 0.0, 0.3, matrix);
+
+        //The least recently used matrix has been dropped.
+        long missCount = cache.getMissCount();
+        cache.getTransitionProbabilities(hky, null, 1.0, 0.0, 0.3, matrix);
+        assertEquals(cache.getMissCount(),missCount);
+        cache.getTransitionProbabilities(hky, null, 1.0, 0.0, 0.1, matrix);
+        assertEquals(cache.getMissCount(),missCount + 1);
+    }
+
+    public void test5() throws Exception{
+        HKY hky1 = createHKY(2.0);
+        HKY hky2 = createHKY(5.0);
+        TransitionMatrixCache cache = new TransitionMatrixCache(10);
+
+        //The view used by the full tree likelihood reads the matrices of its model through the cache.
+        CachedSubstitutionModel view = new CachedSubstitutionModel(hky1, cache);
+        double[] expected = new double[16];
+        double[] matrix = new double[16];
+        hky1.getTransitionProbabilities(null, 1.0, 0.0, 0.5, expected);
+        view.getTransitionProbabilities(null, 1.0, 0.0, 0.5, matrix);
+        assertMatrixEquals(expected, matrix);
+        cache.getTransitionProbabilities(hky1, null, 1.0, 0.0, 0.5, matrix);
+        assertEquals(cache.getHitCount(),1);
+        assertMatrixEquals(hky1.getFrequencies(), view.getFrequencies());
+
+        //A released likelihood given another model.
+        view.setModel(hky2);
+        hky2.getTransitionProbabilities(null, 1.0, 0.0, 0.5, expected);
+        view.getTransitionProbabilities(null, 1.0, 0.0, 0.5, matrix);
+        assertMatrixEquals(expected, matrix);
+        assertEquals(cache.getMissCount(),2);
+    }
+
+    public void test6() throws Exception{
+        //A cache that cannot hold a matrix would drop every matrix it is given.
+        try{
+            new TransitionMatrixCache(0);
+            fail("A cache of size 0 was accepted.");
+        }catch(RuntimeException e){
+        }
+    }
+
+
+
+}